@@ -59,6 +59,18 @@ public interface KrokiMacroConfiguration
         return false;
     }
 
+    /**
+     * @return {@code true} to communicate with the host specified by {@link #getKrokiHost()} using HTTP/2, so that
+     *     concurrent render requests are multiplexed over a single connection; HTTP/1.1 is used if the host doesn't
+     *     support HTTP/2; this is taken into account only when {@link #getKrokiUseTLS()} is {@code true}; defaults to
+     *     {@code false}
+     * @since 1.2
+     */
+    default boolean getKrokiUseHTTP2()
+    {
+        return false;
+    }
+
     /**
      * @return the host running the Kroki API, specified either by its name or by its IP address; this allows you to use
      *     a remote API instance, running on a separate machine, rather than a API instance running in a Docker
@@ -78,4 +90,96 @@ public interface KrokiMacroConfiguration
      * @return the {@link HealthCheckRequestParameters} to use for testing the service's availability
      */
     HealthCheckRequestParameters getHealthCheckRequest();
+
+    /**
+     * @return the maximum number of connections kept open to the Kroki API; defaults to {@code 20}
+     * @since 1.2
+     */
+    default int getKrokiMaxConnections()
+    {
+        return 20;
+    }
+
+    /**
+     * @return the time, in milliseconds, to wait for a connection to the Kroki API to be established; defaults to
+     *     {@code 5000}
+     * @since 1.2
+     */
+    default int getKrokiConnectTimeout()
+    {
+        return 5000;
+    }
+
+    /**
+     * @return the time, in milliseconds, to wait for the Kroki API to respond to a render request; defaults to
+     *     {@code 60000}
+     * @since 1.2
+     */
+    default int getKrokiReadTimeout()
+    {
+        return 60000;
+    }
+
+    /**
+     * @return the time, in milliseconds, after which an idle connection to the Kroki API is closed; defaults to
+     *     {@code 30000}
+     * @since 1.2
+     */
+    default int getKrokiConnectionIdleTimeout()
+    {
+        return 30000;
+    }
+
+    /**
+     * @return the maximum length of the encoded diagram source for which the diagram is requested with a {@code GET}
+     *     request, the source being compressed with deflate and encoded with base64url in the request URL; this makes
+     *     the responses cacheable by any HTTP cache placed in front of the Kroki API; larger sources are sent in the
+     *     body of a {@code POST} request; defaults to {@code 0}, meaning that {@code POST} requests are always used
+     * @since 1.2
+     */
+    default int getKrokiGetRequestMaxLength()
+    {
+        return 0;
+    }
+
+    /**
+     * @return the minimum size, in bytes, of the diagram sources that are sent gzip-compressed to the Kroki API, which
+     *     requires a Kroki API (or a proxy in front of it) that accepts compressed request bodies; defaults to
+     *     {@code 0}, meaning that the request bodies are never compressed
+     * @since 1.2
+     */
+    default int getKrokiRequestCompressionThreshold()
+    {
+        return 0;
+    }
+
+    /**
+     * @return the maximum number of diagrams rendered at the same time by the Kroki API; defaults to the maximum
+     *     number of connections to the Kroki API
+     * @since 1.2
+     */
+    default int getKrokiMaxConcurrentRenders()
+    {
+        return getKrokiMaxConnections();
+    }
+
+    /**
+     * @return the maximum number of renders waiting for the Kroki API when the maximum number of concurrent renders is
+     *     reached; the renders that don't fit in the queue are rejected; defaults to {@code 100}
+     * @since 1.2
+     */
+    default int getKrokiRenderQueueSize()
+    {
+        return 100;
+    }
+
+    /**
+     * @return the maximum time, in milliseconds, a render waits in the queue before being rejected; defaults to
+     *     {@code 10000}
+     * @since 1.2
+     */
+    default int getKrokiRenderQueueTimeout()
+    {
+        return 10000;
+    }
 }
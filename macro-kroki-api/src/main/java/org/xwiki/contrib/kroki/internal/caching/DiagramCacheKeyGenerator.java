@@ -0,0 +1,194 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Computes the keys used to cache the rendered diagrams. Each field is hashed as its length followed by its UTF-8
+ * encoding, so that different fields can't produce the same key when concatenated, and the diagram content is encoded
+ * in small chunks instead of being copied. The digest algorithm can be configured in xwiki.properties using the
+ * {@code contrib.krokiMacro.cache.keyAlgorithm} property ({@code SHA-256} by default, {@code MD5} is faster).
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = DiagramCacheKeyGenerator.class)
+@Singleton
+public class DiagramCacheKeyGenerator implements Initializable
+{
+    private static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private String algorithm;
+
+    private int keyLength;
+
+    /**
+     * The digest and the encoding buffers of each thread, reused because getting a new digest instance is costly.
+     */
+    private ThreadLocal<KeyDigest> keyDigest;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.algorithm = this.configurationSource.getProperty("contrib.krokiMacro.cache.keyAlgorithm",
+            DEFAULT_ALGORITHM);
+        try {
+            this.keyLength = MessageDigest.getInstance(this.algorithm).getDigestLength() * 2;
+        } catch (NoSuchAlgorithmException e) {
+            throw new InitializationException(
+                String.format("Unsupported diagram cache key algorithm [%s].", this.algorithm), e);
+        }
+
+        this.keyDigest = ThreadLocal.withInitial(() -> {
+            try {
+                return new KeyDigest(MessageDigest.getInstance(this.algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                // Shouldn't happen since the algorithm was checked at initialization.
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Computes the cache key of a diagram.
+     *
+     * @param namespace identifies the engine used to render the diagram, see
+     *     {@link org.xwiki.contrib.kroki.renderer.DiagramRenderer#getCacheNamespace(String)}
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @return the hexadecimal cache key
+     */
+    public String getCacheKey(String namespace, String diagramType, String outputType, String content)
+    {
+        KeyDigest digest = this.keyDigest.get();
+        digest.reset();
+        digest.update(namespace);
+        digest.update(diagramType);
+        digest.update(outputType);
+        digest.update(content);
+        return digest.digest();
+    }
+
+    /**
+     * @return the number of hexadecimal digits of the cache keys, which depends on the digest algorithm
+     */
+    public int getKeyLength()
+    {
+        return this.keyLength;
+    }
+
+    /**
+     * The state used by a thread to compute the cache keys.
+     */
+    private static final class KeyDigest
+    {
+        private final MessageDigest digest;
+
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        KeyDigest(MessageDigest digest)
+        {
+            this.digest = digest;
+        }
+
+        void reset()
+        {
+            this.digest.reset();
+        }
+
+        void update(String field)
+        {
+            if (field == null) {
+                updateLength(-1);
+                return;
+            }
+
+            updateLength(field.length());
+
+            // Encode the field in chunks to avoid copying large diagram sources.
+            CharBuffer input = CharBuffer.wrap(field);
+            this.encoder.reset();
+            CoderResult result;
+            do {
+                result = this.encoder.encode(input, this.buffer, true);
+                flushBuffer();
+            } while (result.isOverflow());
+            while (this.encoder.flush(this.buffer).isOverflow()) {
+                flushBuffer();
+            }
+            flushBuffer();
+        }
+
+        String digest()
+        {
+            byte[] bytes = this.digest.digest();
+            char[] hexText = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                hexText[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+                hexText[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+            }
+            return new String(hexText);
+        }
+
+        private void updateLength(int length)
+        {
+            this.digest.update((byte) (length >>> 24));
+            this.digest.update((byte) (length >>> 16));
+            this.digest.update((byte) (length >>> 8));
+            this.digest.update((byte) length);
+        }
+
+        private void flushBuffer()
+        {
+            this.buffer.flip();
+            this.digest.update(this.buffer);
+            this.buffer.clear();
+        }
+    }
+}
@@ -19,9 +19,14 @@
  */
 package org.xwiki.contrib.kroki.internal.caching;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.EnumUtils;
 import org.slf4j.Logger;
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
@@ -29,19 +34,27 @@ import org.xwiki.cache.CacheManager;
 import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.component.phase.Initializable;
-import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.macro.OutputType;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 
 /**
- * A cache manager for managing TemporaryResourceReferences to generated diagrams.
+ * A cache manager for managing TemporaryResourceReferences to generated diagrams. The capacity, max idle time and
+ * lifespan of the cache can be configured in xwiki.properties using the {@code contrib.krokiMacro.cache.capacity},
+ * {@code contrib.krokiMacro.cache.maxIdle} and {@code contrib.krokiMacro.cache.lifespan} properties. Each supported
+ * {@link OutputType} has its own cache, whose configuration can be overwritten using for instance
+ * {@code contrib.krokiMacro.cache.png.capacity}. The sanitized SVG diagrams that are inlined in the rendered pages are
+ * kept in a separate cache, configured with {@code contrib.krokiMacro.cache.inline.capacity} and so on. The diagrams
+ * of the other output types are not cached, since there would be no bound on the number of caches otherwise.
  *
  * @version $Id$
  */
 @Component(roles = DiagramCacheManager.class)
 @Singleton
-public class DiagramCacheManager implements Initializable
+public class DiagramCacheManager
 {
+    private static final int CAPACITY = 1000;
+
     //one week = 604800 seconds
     private static final int MAX_IDLE = 604800;
 
@@ -49,55 +62,169 @@ public class DiagramCacheManager implements Initializable
 
     private static final String CACHE_ID = "xwiki.store.kroki-cache-" + System.currentTimeMillis();
 
+    private static final String PREFIX = "contrib.krokiMacro.cache.";
+
+    private static final String CAPACITY_PROPERTY = "capacity";
+
+    private static final String MAX_IDLE_PROPERTY = "maxIdle";
+
+    private static final String LIFE_SPAN_PROPERTY = "lifespan";
+
+    private static final String INLINE = "inline";
+
     @Inject
     private Logger logger;
 
     @Inject
     private CacheManager cacheManager;
 
-    private Cache<TemporaryResourceReference> cache;
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The caches dedicated to each output type, created the first time a diagram of that output type is cached.
+     */
+    private final Map<OutputType, Cache<TemporaryResourceReference>> outputTypeCaches = new ConcurrentHashMap<>();
+
+    /**
+     * The cache of inline diagrams, created the first time a diagram is inlined.
+     */
+    private volatile Cache<String> inlineCache;
 
-    @Override
-    public void initialize() throws InitializationException
+    private <T> Cache<T> createCache(String cacheId, int capacity, int maxIdle, int lifespan)
     {
-        this.logger.debug("Initializing the CacheManager.");
         CacheConfiguration cacheConfiguration = new CacheConfiguration();
-        cacheConfiguration.setConfigurationId(CACHE_ID);
+        cacheConfiguration.setConfigurationId(cacheId);
 
-        LRUEvictionConfiguration lru = new LRUEvictionConfiguration(1000);
-        lru.setMaxIdle(MAX_IDLE);
-        lru.setLifespan(LIFE_SPAN);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration(capacity);
+        lru.setMaxIdle(maxIdle);
+        lru.setLifespan(lifespan);
 
         cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
 
         try {
-            cache = cacheManager.createNewLocalCache(cacheConfiguration);
+            return cacheManager.createNewLocalCache(cacheConfiguration);
         } catch (CacheException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * @param outputType the output type of the diagrams
+     * @return the cache of the diagrams of the given output type, or {@code null} if the output type is not supported
+     */
+    private Cache<TemporaryResourceReference> getCache(String outputType)
+    {
+        OutputType type = EnumUtils.getEnum(OutputType.class, outputType);
+        if (type == null) {
+            return null;
+        }
+        return this.outputTypeCaches.computeIfAbsent(type, key -> {
+            this.logger.debug("Creating the cache for the [{}] diagrams.", key);
+            String name = key.name();
+            return createCache(CACHE_ID + '-' + name, getProperty(name, CAPACITY_PROPERTY, CAPACITY),
+                getProperty(name, MAX_IDLE_PROPERTY, MAX_IDLE), getProperty(name, LIFE_SPAN_PROPERTY, LIFE_SPAN));
+        });
+    }
+
+    private Cache<String> getInlineCache()
+    {
+        if (this.inlineCache == null) {
+            synchronized (this) {
+                if (this.inlineCache == null) {
+                    this.logger.debug("Creating the cache for the inline diagrams.");
+                    this.inlineCache = createCache(CACHE_ID + '-' + INLINE,
+                        getProperty(INLINE, CAPACITY_PROPERTY, CAPACITY),
+                        getProperty(INLINE, MAX_IDLE_PROPERTY, MAX_IDLE),
+                        getProperty(INLINE, LIFE_SPAN_PROPERTY, LIFE_SPAN));
+                }
+            }
+        }
+        return this.inlineCache;
+    }
+
+    private int getProperty(String name, int defaultValue)
+    {
+        return this.configurationSource.getProperty(PREFIX + name, defaultValue);
+    }
 
-        this.logger.debug("CacheManager initialized");
+    private int getProperty(String cacheName, String name, int defaultValue)
+    {
+        return this.configurationSource.getProperty(PREFIX + cacheName + '.' + name,
+            getProperty(name, defaultValue));
     }
 
     /**
-     * Adds a new resource to the cache.
+     * Adds a new resource to the cache of the specified output type. Nothing is cached if the output type is not
+     * supported.
      *
+     * @param outputType the output type of the diagram
      * @param contentHash the key value representing a hash
      * @param resourceReference a temporary resource reference to a previously generated diagram
+     * @since 1.2
      */
-    public void addResourceToCache(String contentHash, TemporaryResourceReference resourceReference)
+    public void addResourceToCache(String outputType, String contentHash, TemporaryResourceReference resourceReference)
     {
-        cache.set(contentHash, resourceReference);
+        Cache<TemporaryResourceReference> cache = getCache(outputType);
+        if (cache != null) {
+            cache.set(contentHash, resourceReference);
+        } else {
+            this.logger.debug("The diagrams of the unsupported output type [{}] are not cached.", outputType);
+        }
     }
 
     /**
-     * Gets a resource stored in the cache based on it's associated hash value.
+     * Gets a resource stored in the cache of the specified output type based on it's associated hash value.
      *
+     * @param outputType the output type of the diagram
      * @param contentHash the key value representing a hash
      * @return the resource reference mapped to the contentHash or null if there is no associated resource reference
+     *     or if the output type is not supported
+     * @since 1.2
+     */
+    public TemporaryResourceReference getResourceFromCache(String outputType, String contentHash)
+    {
+        Cache<TemporaryResourceReference> cache = getCache(outputType);
+        return cache != null ? cache.get(contentHash) : null;
+    }
+
+    /**
+     * Removes the resource associated with the given hash value from the cache of the specified output type.
+     *
+     * @param outputType the output type of the diagram
+     * @param contentHash the key value representing a hash
+     * @since 1.2
+     */
+    public void removeResourceFromCache(String outputType, String contentHash)
+    {
+        Cache<TemporaryResourceReference> cache = getCache(outputType);
+        if (cache != null) {
+            cache.remove(contentHash);
+        }
+    }
+
+    /**
+     * Adds a sanitized SVG diagram, to be inlined in the rendered pages, to the cache.
+     *
+     * @param contentHash the key value representing a hash
+     * @param svg the sanitized SVG markup of the diagram
+     * @since 1.2
+     */
+    public void addInlineDiagramToCache(String contentHash, String svg)
+    {
+        getInlineCache().set(contentHash, svg);
+    }
+
+    /**
+     * Gets a sanitized SVG diagram stored in the cache based on it's associated hash value.
+     *
+     * @param contentHash the key value representing a hash
+     * @return the SVG markup mapped to the contentHash or null if the diagram is not cached
+     * @since 1.2
      */
-    public TemporaryResourceReference getResourceFromCache(String contentHash)
+    public String getInlineDiagramFromCache(String contentHash)
     {
-        return cache.get(contentHash);
+        return getInlineCache().get(contentHash);
     }
 }
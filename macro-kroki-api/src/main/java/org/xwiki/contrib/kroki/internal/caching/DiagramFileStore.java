@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Stores the rendered diagrams on disk, in the permanent directory, by content hash so that they survive a restart.
+ * The least recently used diagrams are deleted when the total size of the stored diagrams exceeds the configured
+ * capacity.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = DiagramFileStore.class)
+@Singleton
+public class DiagramFileStore implements DiagramStore, Initializable
+{
+    /**
+     * The maximum total size, in bytes, of the diagrams stored on disk. A negative or zero value disables the store.
+     */
+    private static final String CAPACITY_PROPERTY = "contrib.krokiMacro.cache.persistentCapacity";
+
+    private static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private Path storeDirectory;
+
+    private long capacity;
+
+    /**
+     * The size of the stored diagrams, by content hash, from the least recently used to the most recently used.
+     */
+    private final Map<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.capacity = this.configurationSource.getProperty(CAPACITY_PROPERTY, DEFAULT_CAPACITY);
+        if (this.capacity <= 0) {
+            this.logger.debug("The persistent diagram store is disabled.");
+            return;
+        }
+
+        this.storeDirectory = new File(this.environment.getPermanentDirectory(), "kroki/diagrams").toPath();
+        try {
+            Files.createDirectories(this.storeDirectory);
+            loadIndex();
+        } catch (IOException e) {
+            throw new InitializationException(
+                String.format("Failed to load the diagrams stored in [%s].", this.storeDirectory), e);
+        }
+
+        this.logger.debug("Loaded [{}] diagrams ([{}] bytes) from [{}].", this.index.size(), this.size,
+            this.storeDirectory);
+    }
+
+    @Override
+    public synchronized boolean contains(String contentHash)
+    {
+        return this.index.containsKey(contentHash);
+    }
+
+    @Override
+    public InputStream getDiagram(String contentHash)
+    {
+        synchronized (this) {
+            if (this.index.get(contentHash) == null) {
+                return null;
+            }
+        }
+
+        Path file = getFile(contentHash);
+        try {
+            // Keep track of the last access so that the least recently used diagrams are evicted first after a
+            // restart.
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the stored diagram [{}]. Root cause: [{}].", file,
+                ExceptionUtils.getRootCauseMessage(e));
+            remove(contentHash);
+            return null;
+        }
+    }
+
+    @Override
+    public DiagramSink openDiagram(String contentHash)
+    {
+        if (this.storeDirectory == null || contains(contentHash)) {
+            return null;
+        }
+
+        FileDiagramSink fileSink = new FileDiagramSink(getFile(contentHash), this.logger);
+        return new DiagramSink()
+        {
+            @Override
+            public void write(byte[] buffer, int offset, int length)
+            {
+                fileSink.write(buffer, offset, length);
+            }
+
+            @Override
+            public void commit()
+            {
+                fileSink.commit();
+                if (fileSink.isCommitted()) {
+                    add(contentHash, fileSink.getSize());
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                fileSink.close();
+            }
+        };
+    }
+
+    private void loadIndex() throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(this.storeDirectory, 2)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        // Index the diagrams from the least recently used to the most recently used.
+        Map<Path, Long> lastModified = new LinkedHashMap<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(DiagramFiles.TEMPORARY_FILE_SUFFIX)) {
+                // Left over by a write that didn't complete.
+                deleteQuietly(file);
+            } else {
+                lastModified.put(file, Files.getLastModifiedTime(file).toMillis());
+            }
+        }
+        List<Path> sortedFiles = lastModified.entrySet().stream().sorted(Map.Entry.comparingByValue())
+            .map(Map.Entry::getKey).collect(Collectors.toList());
+        for (Path file : sortedFiles) {
+            add(file.getFileName().toString(), Files.size(file));
+        }
+    }
+
+    private synchronized void add(String contentHash, long fileSize)
+    {
+        Long previousSize = this.index.put(contentHash, fileSize);
+        this.size += fileSize - (previousSize != null ? previousSize : 0);
+
+        Iterator<Map.Entry<String, Long>> iterator = this.index.entrySet().iterator();
+        while (this.size > this.capacity && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (!entry.getKey().equals(contentHash)) {
+                iterator.remove();
+                this.size -= entry.getValue();
+                deleteQuietly(getFile(entry.getKey()));
+            }
+        }
+    }
+
+    private synchronized void remove(String contentHash)
+    {
+        Long fileSize = this.index.remove(contentHash);
+        if (fileSize != null) {
+            this.size -= fileSize;
+        }
+    }
+
+    private Path getFile(String contentHash)
+    {
+        return DiagramFiles.getFile(this.storeDirectory, contentHash);
+    }
+
+    private void deleteQuietly(Path file)
+    {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                this.logger.debug("Failed to delete [{}]. Root cause: [{}].", file,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helps store the diagrams as files named after their content hash.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public final class DiagramFiles
+{
+    /**
+     * The suffix of the files being written.
+     */
+    static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private DiagramFiles()
+    {
+    }
+
+    /**
+     * @param directory the directory where the diagrams are stored
+     * @param contentHash the content hash of a diagram
+     * @return the file holding the specified diagram
+     */
+    static Path getFile(Path directory, String contentHash)
+    {
+        // Spread the diagrams over multiple directories to avoid having too many files in the same directory.
+        return directory.resolve(contentHash.substring(0, Math.min(2, contentHash.length()))).resolve(contentHash);
+    }
+
+    /**
+     * @param target the file to create or replace
+     * @return a new temporary file, next to the target file, where to write the content of the target file
+     * @throws IOException if the temporary file can't be created
+     */
+    public static Path createTemporaryFile(Path target) throws IOException
+    {
+        Files.createDirectories(target.getParent());
+        return Files.createTempFile(target.getParent(), target.getFileName().toString(), TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Moves a fully written temporary file to the target file, atomically when supported.
+     *
+     * @param temporaryFile the temporary file created with {@link #createTemporaryFile(Path)}
+     * @param target the file to create or replace
+     * @throws IOException if the move fails
+     */
+    public static void move(Path temporaryFile, Path target) throws IOException
+    {
+        try {
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.Closeable;
+
+/**
+ * Receives a diagram while it's being read, so that it can be stored without being read again. The diagram is stored
+ * only if the sink is committed after the whole diagram has been written; closing the sink without committing it
+ * discards what was written. Failures are logged, and make the sink ignore the rest of the diagram, since the diagram
+ * can always be rendered again.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public interface DiagramSink extends Closeable
+{
+    /**
+     * Writes the next bytes of the diagram.
+     *
+     * @param buffer the buffer holding the bytes to write
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     */
+    void write(byte[] buffer, int offset, int length);
+
+    /**
+     * Stores the diagram, once it has been fully written.
+     */
+    void commit();
+
+    /**
+     * Releases the resources used by this sink, discarding the diagram if it wasn't committed.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.InputStream;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Stores rendered diagrams by content hash, outside of the temporary resource store.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Role
+public interface DiagramStore
+{
+    /**
+     * @param contentHash the content hash of the diagram
+     * @return {@code true} if the specified diagram is stored, {@code false} otherwise
+     */
+    boolean contains(String contentHash);
+
+    /**
+     * Opens the stored diagram with the given content hash.
+     *
+     * @param contentHash the content hash of the diagram
+     * @return the content of the stored diagram, or {@code null} if the diagram is not stored
+     */
+    InputStream getDiagram(String contentHash);
+
+    /**
+     * Starts storing a diagram while it's being rendered, unless a diagram with the same content hash is already
+     * stored.
+     *
+     * @param contentHash the content hash of the diagram
+     * @return the sink where to write the diagram, or {@code null} if the diagram doesn't have to be stored
+     */
+    DiagramSink openDiagram(String contentHash);
+}
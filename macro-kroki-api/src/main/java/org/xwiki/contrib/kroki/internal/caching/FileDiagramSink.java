@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+
+/**
+ * Writes a diagram to a temporary file that replaces the target file once committed, so that the target file is never
+ * seen partially written.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+final class FileDiagramSink implements DiagramSink
+{
+    private final Path target;
+
+    private final Logger logger;
+
+    private Path temporaryFile;
+
+    private OutputStream output;
+
+    private long size;
+
+    private boolean committed;
+
+    /**
+     * @param target the file where to store the diagram
+     * @param logger the logger used to report the failures
+     */
+    FileDiagramSink(Path target, Logger logger)
+    {
+        this.target = target;
+        this.logger = logger;
+        try {
+            this.temporaryFile = DiagramFiles.createTemporaryFile(target);
+            this.output = Files.newOutputStream(this.temporaryFile);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+    {
+        if (this.output != null) {
+            try {
+                this.output.write(buffer, offset, length);
+                this.size += length;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    @Override
+    public void commit()
+    {
+        if (this.output != null) {
+            try {
+                this.output.close();
+                this.output = null;
+                DiagramFiles.move(this.temporaryFile, this.target);
+                this.committed = true;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                // The file is deleted anyway.
+            }
+            this.output = null;
+        }
+        if (!this.committed) {
+            deleteTemporaryFile();
+        }
+    }
+
+    /**
+     * @return {@code true} if the diagram has been stored, {@code false} otherwise
+     */
+    boolean isCommitted()
+    {
+        return this.committed;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    long getSize()
+    {
+        return this.size;
+    }
+
+    private void fail(IOException e)
+    {
+        this.logger.warn("Failed to store the diagram [{}]. Root cause: [{}].", this.target,
+            ExceptionUtils.getRootCauseMessage(e));
+        close();
+    }
+
+    private void deleteTemporaryFile()
+    {
+        if (this.temporaryFile != null) {
+            try {
+                Files.deleteIfExists(this.temporaryFile);
+            } catch (IOException e) {
+                this.logger.debug("Failed to delete [{}]. Root cause: [{}].", this.temporaryFile,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+            this.temporaryFile = null;
+        }
+    }
+}
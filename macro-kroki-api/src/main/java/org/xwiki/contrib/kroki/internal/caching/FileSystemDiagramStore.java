@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Stores the rendered diagrams in a directory shared by all the nodes of a cluster (e.g. a network file system), so
+ * that a diagram rendered by a node can be served by the other nodes. The directory is specified in xwiki.properties
+ * using the {@code contrib.krokiMacro.cache.sharedStore.path} property. The stored diagrams are never deleted by this
+ * store.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component
+@Named("filesystem")
+@Singleton
+public class FileSystemDiagramStore implements DiagramStore, Initializable
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private Path storeDirectory;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String path = this.configurationSource.getProperty("contrib.krokiMacro.cache.sharedStore.path");
+        if (StringUtils.isBlank(path)) {
+            throw new InitializationException("The path of the shared diagram store is not configured.");
+        }
+
+        this.storeDirectory = Paths.get(path);
+        try {
+            Files.createDirectories(this.storeDirectory);
+        } catch (IOException e) {
+            throw new InitializationException(
+                String.format("Failed to create the shared diagram store [%s].", this.storeDirectory), e);
+        }
+    }
+
+    @Override
+    public boolean contains(String contentHash)
+    {
+        return Files.isRegularFile(DiagramFiles.getFile(this.storeDirectory, contentHash));
+    }
+
+    @Override
+    public InputStream getDiagram(String contentHash)
+    {
+        Path file = DiagramFiles.getFile(this.storeDirectory, contentHash);
+        try {
+            return Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the shared diagram [{}]. Root cause: [{}].", file,
+                ExceptionUtils.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    @Override
+    public DiagramSink openDiagram(String contentHash)
+    {
+        Path file = DiagramFiles.getFile(this.storeDirectory, contentHash);
+        // Other nodes see the diagram only once it has been fully written.
+        return Files.exists(file) ? null : new FileDiagramSink(file, this.logger);
+    }
+}
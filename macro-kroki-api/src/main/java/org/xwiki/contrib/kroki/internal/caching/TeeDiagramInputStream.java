@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a rendered diagram once while copying it to multiple sinks (e.g. the diagram stores) and enforcing a maximum
+ * size, so that large diagrams are never held in memory and never read twice. The bytes are written to the sinks
+ * straight from the buffer of the reader. The sinks are committed only if the whole diagram has been read.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public class TeeDiagramInputStream extends FilterInputStream
+{
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final long maxSize;
+
+    private final List<DiagramSink> sinks;
+
+    private final byte[] singleByte = new byte[1];
+
+    private long size;
+
+    private boolean endOfStream;
+
+    /**
+     * @param diagram the rendered diagram
+     * @param maxSize the maximum size of the diagram, in bytes; a negative or zero value means there's no limit
+     * @param sinks where to copy the diagram
+     */
+    public TeeDiagramInputStream(InputStream diagram, long maxSize, List<DiagramSink> sinks)
+    {
+        super(diagram);
+
+        this.maxSize = maxSize;
+        this.sinks = new ArrayList<>(sinks);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int value = super.read();
+        if (value < 0) {
+            this.endOfStream = true;
+        } else {
+            count(1);
+            this.singleByte[0] = (byte) value;
+            this.sinks.forEach(sink -> sink.write(this.singleByte, 0, 1));
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        int count = super.read(buffer, offset, length);
+        if (count < 0) {
+            this.endOfStream = true;
+        } else if (count > 0) {
+            count(count);
+            this.sinks.forEach(sink -> sink.write(buffer, offset, count));
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        // The skipped bytes still have to be copied to the sinks.
+        byte[] buffer = new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (count < 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+        // Not supported.
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException("Mark/reset is not supported.");
+    }
+
+    /**
+     * Stores the diagram in all the sinks, if it has been fully read.
+     */
+    public void commit()
+    {
+        if (this.endOfStream) {
+            this.sinks.forEach(DiagramSink::commit);
+        }
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            super.close();
+        } finally {
+            // Discard the diagram from the sinks that were not committed.
+            this.sinks.forEach(DiagramSink::close);
+        }
+    }
+
+    private void count(int count) throws IOException
+    {
+        this.size += count;
+        if (this.maxSize > 0 && this.size > this.maxSize) {
+            // Don't store a truncated diagram.
+            this.sinks.forEach(DiagramSink::close);
+            this.sinks.clear();
+            throw new IOException(
+                String.format("The rendered diagram exceeds the maximum size of [%d] bytes.", this.maxSize));
+        }
+    }
+}
@@ -22,13 +22,18 @@ package org.xwiki.contrib.kroki.internal.configuration;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -37,15 +42,19 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackendRegistry;
 import org.xwiki.contrib.kroki.utils.HealthCheckRequestParameters;
-import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
@@ -84,7 +93,13 @@ public class KrokiConfiguration implements Initializable
 
     private static final String PORT_PROP = "port";
 
-    private static final String XWIKI_CONFIG_CLASS = "XWiki.Kroki.ConfigClass";
+    private static final List<String> KROKI_SPACE = Arrays.asList("XWiki", "Kroki");
+
+    private static final LocalDocumentReference CONFIG_CLASS_REFERENCE =
+        new LocalDocumentReference(KROKI_SPACE, "ConfigClass");
+
+    private static final LocalDocumentReference CONFIG_TEMPLATE_REFERENCE =
+        new LocalDocumentReference(KROKI_SPACE, "ConfigTemplate");
 
     @Inject
     protected Provider<XWikiContext> xcontextProvider;
@@ -96,46 +111,54 @@ public class KrokiConfiguration implements Initializable
     @Inject
     private QueryManager queryManager;
 
+    @Inject
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private KrokiBackendRegistry backendRegistry;
+
     @Inject
     private Logger logger;
 
     /**
-     * Mapping from diagram type to the name of the file/page containing the configuration for the used container.
+     * Mapping from diagram type to the name of the file containing the configuration for the used container.
      */
     private Map<String, String> diagramTypeToConfigFileMap;
 
-    private Map<String, String> diagramTypeToConfigPageMap;
-
     /**
-     * Mapping from configuration file/page to configuration object.
+     * Mapping from configuration file to configuration object.
      */
     private Map<String, KrokiMacroConfiguration> fileToConfigurationMap;
 
-    private Map<String, KrokiMacroConfiguration> pageToConfigurationMap;
+    /**
+     * Mapping from diagram type to the configuration bundled with the macro, replaced as a whole when reloaded.
+     */
+    private volatile Map<String, KrokiMacroConfiguration> fileConfigurations;
 
-    private Map<String, Timestamp> docNameToUpdateTimeMap;
+    /**
+     * The snapshot used when the configurations defined in wiki pages couldn't be loaded.
+     */
+    private volatile KrokiConfigurationSnapshot fileSnapshot;
 
-    private ObjectMapper objectMapper;
+    /**
+     * The configurations defined in wiki pages, indexed by wiki id.
+     */
+    private final Map<String, WikiConfigurations> wikiConfigurations = new ConcurrentHashMap<>();
 
-    private DocumentReference configClassDocReference;
+    private ObjectMapper objectMapper;
 
     @Override
     public void initialize() throws InitializationException
     {
         diagramTypeToConfigFileMap = new HashMap<>();
-        diagramTypeToConfigPageMap = new HashMap<>();
         fileToConfigurationMap = new HashMap<>();
-        pageToConfigurationMap = new HashMap<>();
-        docNameToUpdateTimeMap = new HashMap<>();
-        XWikiContext xcontext = xcontextProvider.get();
-        try {
-            configClassDocReference = xcontext.getWiki().getDocument(XWIKI_CONFIG_CLASS, EntityType.DOCUMENT, xcontext)
-                .getDocumentReference();
-        } catch (XWikiException e) {
-            throw new RuntimeException(e);
-        }
         initializeConfigurationsFromLocalFiles();
-        initializeConfigurationsXWiki();
+
+        Map<String, KrokiMacroConfiguration> configurations = new HashMap<>();
+        diagramTypeToConfigFileMap.forEach(
+            (diagramType, fileName) -> configurations.put(diagramType, fileToConfigurationMap.get(fileName)));
+        fileConfigurations = Collections.unmodifiableMap(configurations);
+        fileSnapshot = new KrokiConfigurationSnapshot(fileConfigurations, Collections.emptyList());
     }
 
     /**
@@ -144,16 +167,7 @@ public class KrokiConfiguration implements Initializable
      */
     public KrokiMacroConfiguration getConfiguration(String diagramType)
     {
-        initializeConfigurationsXWiki();
-        String configurationName = diagramTypeToConfigPageMap.get(diagramType);
-
-        if (configurationName != null) {
-            return pageToConfigurationMap.get(configurationName);
-        } else if (diagramTypeToConfigFileMap.get(diagramType) != null) {
-            return fileToConfigurationMap.get(diagramTypeToConfigFileMap.get(diagramType));
-        }
-
-        return null;
+        return getSnapshot().getConfiguration(diagramType);
     }
 
     /**
@@ -161,66 +175,156 @@ public class KrokiConfiguration implements Initializable
      */
     public List<String> getDiagramTypes()
     {
-        Set<String> availableDiagramTypes = new HashSet<>(diagramTypeToConfigFileMap.keySet());
-        availableDiagramTypes.addAll(diagramTypeToConfigPageMap.keySet());
-        return new ArrayList<>(availableDiagramTypes);
+        return getSnapshot().getDiagramTypes();
     }
 
-    private void initializeConfigurationsXWiki()
+    /**
+     * Updates the configurations defined by the given document, after a configuration object was added, updated or
+     * deleted.
+     *
+     * @param document the document holding the configuration objects, as it was saved
+     * @since 1.2
+     */
+    public void onConfigurationDocumentChanged(XWikiDocument document)
     {
-        XWikiContext xcontext = xcontextProvider.get();
-        List<BaseObject> objects = new ArrayList<>();
-        List<BaseObject> foundObjects;
-        XWikiDocument xdocument = null;
-
-        String queryString = "select doc.fullName, doc.date from Document doc, BaseObject obj where doc"
-            + ".fullName=obj.name and obj.className='XWiki.Kroki.ConfigClass'"
-            + " and doc.fullName <> 'XWiki.Kroki.ConfigTemplate'";
-
-        List<Object[]> docsAndDates = null;
-        List<String> docNames = new ArrayList<>();
+        DocumentReference documentReference = document.getDocumentReference();
+        if (CONFIG_TEMPLATE_REFERENCE.equals(documentReference.getLocalDocumentReference())) {
+            return;
+        }
 
-        try {
-            Query configQuery = queryManager.createQuery(queryString, Query.XWQL);
-            docsAndDates = configQuery.execute();
+        // The configurations of a wiki that were not loaded yet will be read from the database when needed.
+        String wikiId = documentReference.getWikiReference().getName();
+        WikiConfigurations configurations = this.wikiConfigurations.get(wikiId);
+        if (configurations != null && configurations.update(document)) {
+            if (configurations.isMainWiki()) {
+                refreshSubwikis();
+            }
+            retainBackends();
+        }
+    }
 
-            for (Object[] nameDate : docsAndDates) {
-                if (docNameToUpdateTimeMap.isEmpty() || !docNameToUpdateTimeMap.containsKey(nameDate[0])
-                    || !docNameToUpdateTimeMap.get(nameDate[0]).equals(nameDate[1]))
-                {
-                    docNames =
-                        docsAndDates.stream().map(nameAndDate -> (String) nameAndDate[0]).collect(Collectors.toList());
-                    updateUpdateTimeMap(docsAndDates);
-                    break;
-                }
+    /**
+     * Reloads the configurations defined in wiki pages, reading again only the configuration documents that were
+     * added or modified since they were last read, and dropping the ones that were deleted. The changes made to
+     * xwiki.properties are taken into account too, but only the configurations that changed are replaced.
+     *
+     * @since 1.2
+     */
+    public synchronized void reload()
+    {
+        boolean filesChanged = refreshFileConfigurations();
+
+        boolean mainWikiChanged = false;
+        boolean wikiChanged = false;
+        for (WikiConfigurations configurations : this.wikiConfigurations.values()) {
+            boolean changed = configurations.reload();
+            if (!changed && filesChanged) {
+                configurations.publishIfLoaded();
             }
+            mainWikiChanged |= changed && configurations.isMainWiki();
+            wikiChanged |= changed;
+        }
+        if (mainWikiChanged) {
+            refreshSubwikis();
+        }
+        if (filesChanged || wikiChanged) {
+            retainBackends();
+        }
+    }
 
-            for (String documentName : docNames) {
-                xdocument = xcontext.getWiki().getDocument(documentName, EntityType.DOCUMENT, xcontext);
-                foundObjects = xdocument.getXObjects(configClassDocReference);
-                objects.addAll(foundObjects);
+    /**
+     * Releases the backends of the configurations that are no longer published, so that they don't pile up as the
+     * configurations change.
+     */
+    private void retainBackends()
+    {
+        Set<KrokiMacroConfiguration> configurations = new HashSet<>(this.fileConfigurations.values());
+        for (WikiConfigurations configurationsOfWiki : this.wikiConfigurations.values()) {
+            KrokiConfigurationSnapshot snapshot = configurationsOfWiki.snapshot;
+            if (snapshot != null) {
+                configurations.addAll(snapshot.getConfigurations());
             }
-        } catch (QueryException | XWikiException e) {
-            this.logger.debug("Could not initialize configuration from XWiki");
         }
+        this.backendRegistry.retain(configurations);
+    }
+
+    private boolean refreshFileConfigurations()
+    {
+        Map<String, KrokiMacroConfiguration> configurations = refresh(this.fileConfigurations);
+        if (configurations.equals(this.fileConfigurations)) {
+            return false;
+        }
+
+        this.fileConfigurations = Collections.unmodifiableMap(configurations);
+        this.fileSnapshot = new KrokiConfigurationSnapshot(configurations, Collections.emptyList());
+        return true;
+    }
+
+    /**
+     * Resolves again the effective configurations, keeping the ones that didn't change so that their backends are not
+     * initialized again.
+     */
+    private static Map<String, KrokiMacroConfiguration> refresh(Map<String, KrokiMacroConfiguration> configurations)
+    {
+        // A configuration is usually shared by several diagram types.
+        Map<KrokiMacroConfiguration, KrokiMacroConfiguration> refreshedConfigurations = new HashMap<>();
+        Map<String, KrokiMacroConfiguration> refreshed = new HashMap<>();
+        configurations.forEach((diagramType, configuration) -> refreshed.put(diagramType,
+            refreshedConfigurations.computeIfAbsent(configuration, KrokiConfiguration::refresh)));
+        return refreshed;
+    }
+
+    private static KrokiMacroConfiguration refresh(KrokiMacroConfiguration configuration)
+    {
+        return configuration instanceof KrokiContainerConfiguration
+            ? ((KrokiContainerConfiguration) configuration).refresh() : configuration;
+    }
+
+    private KrokiConfigurationSnapshot getSnapshot()
+    {
+        return getWikiConfigurations(this.xcontextProvider.get().getWikiId()).getSnapshot();
+    }
 
-        //if there are differences between the last and current configuration initialize from xwiki
-        //else if no configurations are found from xwiki and the previous initialization was made from xwiki,
-        //or if this is the first initialization and there are no Config Class objects, initialize the configurations
-        // from the local config files
-        //otherwise just keep the current configurations
-        if (!objects.isEmpty()) {
-            updateConfigsFromXWiki(objects);
+    private WikiConfigurations getWikiConfigurations(String wikiId)
+    {
+        WikiConfigurations configurations = this.wikiConfigurations.get(wikiId);
+        if (configurations == null) {
+            // Resolved outside computeIfAbsent because the map doesn't support recursive updates.
+            String mainWikiId = this.xcontextProvider.get().getMainXWiki();
+            WikiConfigurations mainWikiConfigurations =
+                wikiId.equals(mainWikiId) ? null : getWikiConfigurations(mainWikiId);
+            configurations = this.wikiConfigurations.computeIfAbsent(wikiId,
+                key -> new WikiConfigurations(key, mainWikiConfigurations));
         }
+        return configurations;
+    }
+
+    private void refreshSubwikis()
+    {
+        this.wikiConfigurations.values().stream().filter(configurations -> !configurations.isMainWiki())
+            .forEach(WikiConfigurations::publishIfLoaded);
     }
 
-    private void updateUpdateTimeMap(List<Object[]> docAndDateList)
+    private Map<DocumentReference, Long> getConfigurationDocumentDates(String wikiId) throws QueryException
     {
-        docNameToUpdateTimeMap.clear();
+        String queryString = "select distinct doc.fullName, doc.date from Document doc, BaseObject obj where doc"
+            + ".fullName=obj.name and obj.className='XWiki.Kroki.ConfigClass'"
+            + " and doc.fullName <> 'XWiki.Kroki.ConfigTemplate'";
+        List<Object[]> docsAndDates = queryManager.createQuery(queryString, Query.XWQL).setWiki(wikiId).execute();
 
-        for (Object[] nameDate : docAndDateList) {
-            docNameToUpdateTimeMap.put((String) nameDate[0], (Timestamp) nameDate[1]);
+        WikiReference wikiReference = new WikiReference(wikiId);
+        Map<DocumentReference, Long> documentDates = new HashMap<>();
+        for (Object[] nameDate : docsAndDates) {
+            documentDates.put(documentReferenceResolver.resolve((String) nameDate[0], wikiReference),
+                getTime((Date) nameDate[1]));
         }
+        return documentDates;
+    }
+
+    private static Long getTime(Date date)
+    {
+        // Timestamp#equals(Date) is not symmetric so we compare the number of milliseconds.
+        return date != null ? date.getTime() : null;
     }
 
     private void initializeConfigurationsFromLocalFiles()
@@ -285,19 +389,21 @@ public class KrokiConfiguration implements Initializable
             .setPort(port)
             .setHealthCheckRequestParameters(healthCheckRequestParameters)
             .setConfigurationSource(configurationSource)
+            .setConfigName(fileName)
             .build();
-            
-        configuration.setConfigName(fileName);
+
         fileToConfigurationMap.put(fileName, configuration);
     }
 
-    private void updateConfigsFromXWiki(List<BaseObject> objects)
+    private Map<String, KrokiMacroConfiguration> readConfigurations(XWikiDocument document)
     {
-        diagramTypeToConfigPageMap.clear();
-        pageToConfigurationMap.clear();
+        Map<String, KrokiMacroConfiguration> diagramTypeToConfiguration = new HashMap<>();
+        for (BaseObject object : document.getXObjects(CONFIG_CLASS_REFERENCE)) {
+            // Deleted objects leave null entries in the list.
+            if (object == null) {
+                continue;
+            }
 
-        for (BaseObject object : objects) {
-            String configName = object.getStringValue("configurationName");
             String diagramTypes = object.getLargeStringValue("diagramTypes");
             String dockerImage = object.getStringValue("dockerImage");
             String containerName = object.getStringValue(CONTAINER_NAME_PROP);
@@ -346,9 +452,191 @@ public class KrokiConfiguration implements Initializable
                 .build();
 
             for (String diagramType : parsedDiagramTypes) {
-                diagramTypeToConfigPageMap.put(diagramType, configName);
+                diagramTypeToConfiguration.put(diagramType, configuration);
+            }
+        }
+        return diagramTypeToConfiguration;
+    }
+
+    /**
+     * The configurations defined by the configuration objects of a wiki. They are loaded from the database the first
+     * time they are needed and then kept up to date by {@link KrokiConfigurationListener}, so that looking up the
+     * configuration of a diagram type doesn't require any database access. Only the documents that changed are read
+     * again, and each change publishes a new immutable snapshot, built by the thread handling the change. The
+     * configurations of a subwiki also include the ones defined in the main wiki, which they override, so that a farm
+     * can be configured once.
+     */
+    private final class WikiConfigurations
+    {
+        private final String wikiId;
+
+        /**
+         * The configurations of the main wiki, {@code null} for the main wiki itself.
+         */
+        private final WikiConfigurations mainWiki;
+
+        private final Map<DocumentReference, Map<String, KrokiMacroConfiguration>> documentConfigurations =
+            new HashMap<>();
+
+        /**
+         * The modification date of the configuration documents, as they were last read.
+         */
+        private final Map<DocumentReference, Long> documentDates = new HashMap<>();
+
+        /**
+         * The configurations defined in this wiki, as they were last published.
+         */
+        private volatile List<Map<String, KrokiMacroConfiguration>> publishedConfigurations = Collections.emptyList();
+
+        /**
+         * The published configurations, {@code null} until the configurations are loaded.
+         */
+        private volatile KrokiConfigurationSnapshot snapshot;
+
+        WikiConfigurations(String wikiId, WikiConfigurations mainWiki)
+        {
+            this.wikiId = wikiId;
+            this.mainWiki = mainWiki;
+        }
+
+        boolean isMainWiki()
+        {
+            return this.mainWiki == null;
+        }
+
+        KrokiConfigurationSnapshot getSnapshot()
+        {
+            KrokiConfigurationSnapshot currentSnapshot = this.snapshot;
+            if (currentSnapshot == null) {
+                if (this.mainWiki != null) {
+                    // Load the main wiki configurations first, without holding the lock of this wiki.
+                    this.mainWiki.getSnapshot();
+                }
+                synchronized (this) {
+                    if (this.snapshot == null) {
+                        reload();
+                    }
+                    currentSnapshot = this.snapshot;
+                }
+            }
+            return currentSnapshot != null ? currentSnapshot : fileSnapshot;
+        }
+
+        synchronized boolean update(XWikiDocument document)
+        {
+            if (this.snapshot == null) {
+                // Not loaded yet, the update will be read from the database.
+                return false;
+            }
+
+            DocumentReference documentReference = document.getDocumentReference();
+            Long date = getTime(document.getDate());
+            // A save modifying several configuration objects triggers an event for each of them.
+            if (!(this.documentDates.containsKey(documentReference)
+                && Objects.equals(this.documentDates.get(documentReference), date)) && updateDocument(document))
+            {
+                publish();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean reload()
+        {
+            Map<DocumentReference, Long> currentDates;
+            try {
+                currentDates = getConfigurationDocumentDates(this.wikiId);
+            } catch (QueryException e) {
+                // Try again on the next call.
+                logger.debug("Could not initialize configuration from XWiki");
+                return false;
+            }
+
+            boolean changed = this.snapshot == null;
+
+            // Take into account the changes made to xwiki.properties.
+            for (Map.Entry<DocumentReference, Map<String, KrokiMacroConfiguration>> entry
+                : this.documentConfigurations.entrySet())
+            {
+                Map<String, KrokiMacroConfiguration> configurations = refresh(entry.getValue());
+                if (!configurations.equals(entry.getValue())) {
+                    entry.setValue(configurations);
+                    changed = true;
+                }
+            }
+
+            Iterator<DocumentReference> readDocuments = this.documentDates.keySet().iterator();
+            while (readDocuments.hasNext()) {
+                DocumentReference documentReference = readDocuments.next();
+                if (!currentDates.containsKey(documentReference)) {
+                    readDocuments.remove();
+                    changed |= this.documentConfigurations.remove(documentReference) != null;
+                }
+            }
+
+            XWikiContext xcontext = xcontextProvider.get();
+            for (Map.Entry<DocumentReference, Long> entry : currentDates.entrySet()) {
+                if (!this.documentDates.containsKey(entry.getKey())
+                    || !Objects.equals(this.documentDates.get(entry.getKey()), entry.getValue()))
+                {
+                    try {
+                        changed |= updateDocument(xcontext.getWiki().getDocument(entry.getKey(), xcontext));
+                    } catch (XWikiException e) {
+                        logger.warn("Failed to read the Kroki configuration [{}]. Root cause: [{}].", entry.getKey(),
+                            ExceptionUtils.getRootCauseMessage(e));
+                    }
+                }
+            }
+
+            if (changed) {
+                publish();
+            }
+            return changed;
+        }
+
+        synchronized void publishIfLoaded()
+        {
+            if (this.snapshot != null) {
+                publish();
+            }
+        }
+
+        /**
+         * @return {@code true} if the configurations defined by the given document have changed, {@code false}
+         *     otherwise
+         */
+        private boolean updateDocument(XWikiDocument document)
+        {
+            DocumentReference documentReference = document.getDocumentReference();
+            Map<String, KrokiMacroConfiguration> previousConfigurations =
+                this.documentConfigurations.getOrDefault(documentReference, Collections.emptyMap());
+
+            // Keep the configurations that didn't change as they are, so that only the backends of the modified
+            // configurations are initialized again.
+            Map<String, KrokiMacroConfiguration> configurations = readConfigurations(document);
+            configurations.replaceAll((diagramType, configuration) -> previousConfigurations.values().stream()
+                .filter(configuration::equals).findFirst().orElse(configuration));
+
+            this.documentDates.put(documentReference, getTime(document.getDate()));
+            if (configurations.isEmpty()) {
+                this.documentConfigurations.remove(documentReference);
+            } else {
+                this.documentConfigurations.put(documentReference, configurations);
+            }
+            return !configurations.equals(previousConfigurations);
+        }
+
+        private void publish()
+        {
+            this.publishedConfigurations =
+                Collections.unmodifiableList(new ArrayList<>(this.documentConfigurations.values()));
+
+            List<Map<String, KrokiMacroConfiguration>> configurations = new ArrayList<>();
+            if (this.mainWiki != null) {
+                configurations.addAll(this.mainWiki.publishedConfigurations);
             }
-            pageToConfigurationMap.put(configName, configuration);
+            configurations.addAll(this.publishedConfigurations);
+            this.snapshot = new KrokiConfigurationSnapshot(fileConfigurations, configurations);
         }
     }
 }
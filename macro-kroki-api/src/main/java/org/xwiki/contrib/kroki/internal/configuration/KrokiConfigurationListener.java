@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
+import com.xpn.xwiki.objects.BaseObjectReference;
+
+/**
+ * Keeps the configurations defined in wiki pages up to date when a Kroki configuration object is added, updated or
+ * deleted.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component
+@Named(KrokiConfigurationListener.NAME)
+@Singleton
+public class KrokiConfigurationListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "KrokiConfigurationListener";
+
+    private static final String CONFIG_CLASS = "XWiki.Kroki.ConfigClass";
+
+    /**
+     * We use a provider (i.e. lazy initialization) because the listener is registered when the wiki starts, before
+     * the configurations are needed.
+     */
+    @Inject
+    private Provider<KrokiConfiguration> krokiConfigurationProvider;
+
+    /**
+     * Default constructor.
+     */
+    public KrokiConfigurationListener()
+    {
+        super(NAME, Arrays.asList(new XObjectAddedEvent(BaseObjectReference.any(CONFIG_CLASS)),
+            new XObjectUpdatedEvent(BaseObjectReference.any(CONFIG_CLASS)),
+            new XObjectDeletedEvent(BaseObjectReference.any(CONFIG_CLASS))));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.krokiConfigurationProvider.get().onConfigurationDocumentChanged((XWikiDocument) source);
+    }
+}
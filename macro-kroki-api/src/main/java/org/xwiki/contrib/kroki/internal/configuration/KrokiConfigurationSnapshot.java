@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+
+/**
+ * An immutable view of the container configurations available in a wiki, combining the configurations bundled with the
+ * macro and the ones defined in wiki pages. A new snapshot is built whenever the configurations change and replaces
+ * the previous one as a whole, so that concurrent readers never see a partially updated configuration.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+final class KrokiConfigurationSnapshot
+{
+    private final Map<String, KrokiMacroConfiguration> diagramTypeToConfiguration;
+
+    private final List<String> diagramTypes;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param fileConfigurations the configurations bundled with the macro, indexed by diagram type
+     * @param wikiConfigurations the configurations defined in wiki pages, indexed by diagram type, which take
+     *     precedence over the bundled configurations and over the ones that come before them
+     */
+    KrokiConfigurationSnapshot(Map<String, KrokiMacroConfiguration> fileConfigurations,
+        Collection<Map<String, KrokiMacroConfiguration>> wikiConfigurations)
+    {
+        Map<String, KrokiMacroConfiguration> configurations = new HashMap<>(fileConfigurations);
+        wikiConfigurations.forEach(configurations::putAll);
+        this.diagramTypeToConfiguration = Collections.unmodifiableMap(configurations);
+
+        List<String> types = new ArrayList<>(configurations.keySet());
+        Collections.sort(types);
+        this.diagramTypes = Collections.unmodifiableList(types);
+    }
+
+    /**
+     * @param diagramType the type of diagram to be rendered
+     * @return the container configuration for the given diagram type, {@code null} if there is none
+     */
+    KrokiMacroConfiguration getConfiguration(String diagramType)
+    {
+        return this.diagramTypeToConfiguration.get(diagramType);
+    }
+
+    /**
+     * @return the container configurations of all the diagram types
+     */
+    Collection<KrokiMacroConfiguration> getConfigurations()
+    {
+        return this.diagramTypeToConfiguration.values();
+    }
+
+    /**
+     * @return the diagram types that have a container configuration, sorted alphabetically
+     */
+    List<String> getDiagramTypes()
+    {
+        return this.diagramTypes;
+    }
+}
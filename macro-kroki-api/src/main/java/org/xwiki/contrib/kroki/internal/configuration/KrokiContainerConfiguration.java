@@ -20,12 +20,19 @@
 
 package org.xwiki.contrib.kroki.internal.configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
 import org.xwiki.contrib.kroki.utils.HealthCheckRequestParameters;
 
 /**
- * Generic Macro Configuration class.
+ * Generic Macro Configuration class. The effective configuration, taking into account the properties overwritten in
+ * xwiki.properties, is resolved once when the configuration is built, so that reading it doesn't require any lookup.
+ * Use {@link #refresh()} to take into account the changes made to xwiki.properties.
  *
  * @version $Id$
  */
@@ -33,6 +40,13 @@ public final class KrokiContainerConfiguration implements KrokiMacroConfiguratio
 {
     private static final String PREFIX = "contrib.krokiMacro";
 
+    /**
+     * The values used to build this configuration, before being overwritten by xwiki.properties.
+     */
+    private final Builder builder;
+
+    private final String configName;
+
     private final String image;
 
     private final String containerName;
@@ -41,81 +55,235 @@ public final class KrokiContainerConfiguration implements KrokiMacroConfiguratio
 
     private final boolean useTLS;
 
+    private final boolean useHTTP2;
+
     private final String host;
 
     private final Integer port;
 
     private final HealthCheckRequestParameters healthCheckRequestParameters;
 
-    private final ConfigurationSource configurationSource;
+    private final int maxConnections;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private final int connectionIdleTimeout;
+
+    private final int getRequestMaxLength;
+
+    private final int requestCompressionThreshold;
 
-    private String configName;
+    private final int maxConcurrentRenders;
+
+    private final int renderQueueSize;
+
+    private final int renderQueueTimeout;
+
+    private final int hashCode;
 
     private KrokiContainerConfiguration(Builder builder)
     {
-        this.configName = builder.containerName;
-        this.image = builder.image;
-        this.containerName = builder.containerName;
-        this.isContainerReusable = builder.isContainerReusable;
-        this.useTLS = builder.useTLS;
-        this.host = builder.host;
-        this.port = builder.port;
-        this.healthCheckRequestParameters = builder.healthCheckRequestParameters;
-        this.configurationSource = builder.configurationSource;
+        this.builder = builder.copy();
+        this.configName = builder.configName != null ? builder.configName : builder.containerName;
+        // The health check parameters are mutable, so we keep our own copy that is part of the hash code.
+        this.healthCheckRequestParameters = this.builder.healthCheckRequestParameters;
+
+        ConfigurationSource configurationSource = builder.configurationSource;
+        String keyPrefix = PREFIX + this.configName;
+        this.image = configurationSource.getProperty(keyPrefix + "DockerImage", builder.image);
+        this.containerName = configurationSource.getProperty(keyPrefix + "DockerContainerName", builder.containerName);
+        this.isContainerReusable =
+            configurationSource.getProperty(keyPrefix + "DockerContainerReusable", builder.isContainerReusable);
+        this.useTLS = configurationSource.getProperty(keyPrefix + "UseTLS", builder.useTLS);
+        this.useHTTP2 =
+            configurationSource.getProperty(keyPrefix + "UseHTTP2", KrokiMacroConfiguration.super.getKrokiUseHTTP2());
+        this.host = configurationSource.getProperty(keyPrefix + "Host", builder.host);
+        this.port = configurationSource.getProperty(keyPrefix + "Port", builder.port);
+        this.maxConnections = configurationSource.getProperty(keyPrefix + "MaxConnections",
+            KrokiMacroConfiguration.super.getKrokiMaxConnections());
+        this.connectTimeout = configurationSource.getProperty(keyPrefix + "ConnectTimeout",
+            KrokiMacroConfiguration.super.getKrokiConnectTimeout());
+        this.readTimeout = configurationSource.getProperty(keyPrefix + "ReadTimeout",
+            KrokiMacroConfiguration.super.getKrokiReadTimeout());
+        this.connectionIdleTimeout = configurationSource.getProperty(keyPrefix + "ConnectionIdleTimeout",
+            KrokiMacroConfiguration.super.getKrokiConnectionIdleTimeout());
+        this.getRequestMaxLength = configurationSource.getProperty(keyPrefix + "GetRequestMaxLength",
+            KrokiMacroConfiguration.super.getKrokiGetRequestMaxLength());
+        this.requestCompressionThreshold = configurationSource.getProperty(keyPrefix + "RequestCompressionThreshold",
+            KrokiMacroConfiguration.super.getKrokiRequestCompressionThreshold());
+        // Defaults to the effective maximum number of connections.
+        this.maxConcurrentRenders =
+            configurationSource.getProperty(keyPrefix + "MaxConcurrentRenders", this.maxConnections);
+        this.renderQueueSize = configurationSource.getProperty(keyPrefix + "RenderQueueSize",
+            KrokiMacroConfiguration.super.getKrokiRenderQueueSize());
+        this.renderQueueTimeout = configurationSource.getProperty(keyPrefix + "RenderQueueTimeout",
+            KrokiMacroConfiguration.super.getKrokiRenderQueueTimeout());
+
+        // The configurations are used as map keys on the render path.
+        this.hashCode = new HashCodeBuilder().append(this.configName).append(this.image).append(this.containerName)
+            .append(this.isContainerReusable).append(this.useTLS).append(this.useHTTP2).append(this.host)
+            .append(this.port).append(this.healthCheckRequestParameters).append(this.maxConnections)
+            .append(this.connectTimeout).append(this.readTimeout).append(this.connectionIdleTimeout)
+            .append(this.getRequestMaxLength).append(this.requestCompressionThreshold)
+            .append(this.maxConcurrentRenders).append(this.renderQueueSize).append(this.renderQueueTimeout)
+            .toHashCode();
+    }
+
+    /**
+     * Resolves again the effective configuration, taking into account the changes made to xwiki.properties.
+     *
+     * @return this configuration if the effective configuration didn't change, a new configuration otherwise
+     * @since 1.2
+     */
+    public KrokiContainerConfiguration refresh()
+    {
+        KrokiContainerConfiguration refreshed = new KrokiContainerConfiguration(this.builder);
+        return refreshed.equals(this) ? this : refreshed;
     }
 
     /**
-     * Set the configuration name to be used for setting properties form xwiki.properties.
-     * @param configName configuration name to be set
+     * @return the name of the configuration, used to overwrite its properties from xwiki.properties
+     * @since 1.2
      */
-    public void setConfigName(String configName)
+    public String getConfigName()
     {
-        this.configName = configName;
+        return this.configName;
     }
 
     @Override
     public String getKrokiDockerImage()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "DockerImage", image);
+        return this.image;
     }
 
     @Override
     public String getKrokiDockerContainerName()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "DockerContainerName", containerName);
+        return this.containerName;
     }
 
     @Override
     public boolean isKrokiDockerContainerReusable()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "DockerContainerReusable",
-            isContainerReusable);
+        return this.isContainerReusable;
     }
 
     @Override
     public boolean getKrokiUseTLS()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "UseTLS", useTLS);
+        return this.useTLS;
+    }
+
+    @Override
+    public boolean getKrokiUseHTTP2()
+    {
+        return this.useHTTP2;
     }
 
     @Override
     public String getKrokiHost()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "Host", host);
+        return this.host;
     }
 
     @Override
     public Integer getKrokiPort()
     {
-        return this.configurationSource.getProperty(PREFIX + configName + "Port", port);
+        return this.port;
     }
 
     @Override
     public HealthCheckRequestParameters getHealthCheckRequest()
     {
-        return healthCheckRequestParameters;
+        return copyOf(this.healthCheckRequestParameters);
+    }
+
+    @Override
+    public int getKrokiMaxConnections()
+    {
+        return this.maxConnections;
+    }
+
+    @Override
+    public int getKrokiConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    @Override
+    public int getKrokiReadTimeout()
+    {
+        return this.readTimeout;
+    }
+
+    @Override
+    public int getKrokiConnectionIdleTimeout()
+    {
+        return this.connectionIdleTimeout;
+    }
+
+    @Override
+    public int getKrokiGetRequestMaxLength()
+    {
+        return this.getRequestMaxLength;
+    }
+
+    @Override
+    public int getKrokiRequestCompressionThreshold()
+    {
+        return this.requestCompressionThreshold;
+    }
+
+    @Override
+    public int getKrokiMaxConcurrentRenders()
+    {
+        return this.maxConcurrentRenders;
+    }
+
+    @Override
+    public int getKrokiRenderQueueSize()
+    {
+        return this.renderQueueSize;
+    }
+
+    @Override
+    public int getKrokiRenderQueueTimeout()
+    {
+        return this.renderQueueTimeout;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (object == this) {
+            return true;
+        } else if (object == null || object.getClass() != getClass() || object.hashCode() != this.hashCode) {
+            return false;
+        }
+
+        KrokiContainerConfiguration other = (KrokiContainerConfiguration) object;
+        return new EqualsBuilder().append(this.configName, other.configName).append(this.image, other.image)
+            .append(this.containerName, other.containerName)
+            .append(this.isContainerReusable, other.isContainerReusable).append(this.useTLS, other.useTLS)
+            .append(this.useHTTP2, other.useHTTP2).append(this.host, other.host).append(this.port, other.port)
+            .append(this.healthCheckRequestParameters, other.healthCheckRequestParameters)
+            .append(this.maxConnections, other.maxConnections).append(this.connectTimeout, other.connectTimeout)
+            .append(this.readTimeout, other.readTimeout)
+            .append(this.connectionIdleTimeout, other.connectionIdleTimeout)
+            .append(this.getRequestMaxLength, other.getRequestMaxLength)
+            .append(this.requestCompressionThreshold, other.requestCompressionThreshold)
+            .append(this.maxConcurrentRenders, other.maxConcurrentRenders)
+            .append(this.renderQueueSize, other.renderQueueSize)
+            .append(this.renderQueueTimeout, other.renderQueueTimeout).isEquals();
     }
 
+    @Override
+    public int hashCode()
+    {
+        return this.hashCode;
+    }
 
     /**
      * Generic Macro Configuration class builder.
@@ -124,6 +292,7 @@ public final class KrokiContainerConfiguration implements KrokiMacroConfiguratio
      */
     public static class Builder
     {
+        private String configName;
         private String image;
         private String containerName;
         private boolean isContainerReusable;
@@ -140,6 +309,19 @@ public final class KrokiContainerConfiguration implements KrokiMacroConfiguratio
         {
         }
 
+        /**
+         * Set the configuration name used to overwrite properties from xwiki.properties, which defaults to the
+         * container name.
+         * @param configName configuration name
+         * @return Builder instance
+         * @since 1.2
+         */
+        public Builder setConfigName(String configName)
+        {
+            this.configName = configName;
+            return this;
+        }
+
         /**
          * Set the docker image to be instantiated if no host available.
          * @param image docker image
@@ -237,5 +419,25 @@ public final class KrokiContainerConfiguration implements KrokiMacroConfiguratio
         {
             return new KrokiContainerConfiguration(this);
         }
+
+        private Builder copy()
+        {
+            return new Builder().setConfigName(this.configName).setImage(this.image)
+                .setContainerName(this.containerName).setContainerReusable(this.isContainerReusable)
+                .setTLS(this.useTLS).setHost(this.host).setPort(this.port)
+                .setHealthCheckRequestParameters(copyOf(this.healthCheckRequestParameters))
+                .setConfigurationSource(this.configurationSource);
+        }
+    }
+
+    private static HealthCheckRequestParameters copyOf(HealthCheckRequestParameters parameters)
+    {
+        if (parameters == null) {
+            return null;
+        }
+
+        List<Integer> acceptedStatusCodes = parameters.getAcceptedStatusCodes();
+        return new HealthCheckRequestParameters(parameters.getPath(), parameters.getBody(), parameters.getHttpVerb(),
+            acceptedStatusCodes != null ? new ArrayList<>(acceptedStatusCodes) : null);
     }
 }
@@ -248,6 +248,16 @@ public class ContainerManager implements Initializable
         return network.getIpAddress();
     }
 
+    /**
+     * @param containerId the container id
+     * @return the id of the image the specified container was created from
+     * @since 1.2
+     */
+    public String getImageId(String containerId)
+    {
+        return inspectContainer(containerId).getImageId();
+    }
+
     /**
      * Remove the specified container.
      *
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Attaches the rendered diagrams to the documents that are being saved, when the diagrams are stored as attachments.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component
+@Named(DiagramAttachmentListener.NAME)
+@Singleton
+public class DiagramAttachmentListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "KrokiDiagramAttachmentListener";
+
+    /**
+     * We use a provider (i.e. lazy initialization) because the listener is registered when the wiki starts, before
+     * the diagrams are needed.
+     */
+    @Inject
+    private Provider<DiagramAttachmentManager> diagramAttachmentManagerProvider;
+
+    /**
+     * Default constructor.
+     */
+    public DiagramAttachmentListener()
+    {
+        super(NAME, Arrays.asList(new DocumentCreatingEvent(), new DocumentUpdatingEvent()));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DiagramAttachmentManager diagramAttachmentManager = this.diagramAttachmentManagerProvider.get();
+        if (diagramAttachmentManager.isEnabled()) {
+            diagramAttachmentManager.updateDiagramAttachments((XWikiDocument) source, (XWikiContext) data);
+        }
+    }
+}
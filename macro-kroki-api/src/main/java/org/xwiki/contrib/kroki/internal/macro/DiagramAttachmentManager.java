@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheKeyGenerator;
+import org.xwiki.contrib.kroki.macro.KrokiMacroParameters;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Stores the rendered diagrams as attachments of the document containing the Kroki macro, when enabled in
+ * xwiki.properties with {@code contrib.krokiMacro.persistence=attachment}. The attachments are named after the
+ * diagram cache key so they are reused as long as the diagram doesn't change, even after a restart, and they are
+ * served with the HTTP caching of the attachments.
+ * <p>
+ * The diagrams are attached when the document is saved by a user with edit right, as part of the saved version, and
+ * the attachments of the diagrams that are no longer in the document are removed at the same time. Only the diagrams
+ * that have already been rendered (e.g. when the document was previewed) are attached, so that saving a document never
+ * waits for Kroki: the other diagrams are rendered in the background and attached the next time the document is
+ * saved. Viewing a document never modifies it: the diagrams that are not attached yet are served as temporary
+ * resources.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = DiagramAttachmentManager.class)
+@Singleton
+public class DiagramAttachmentManager
+{
+    private static final String ATTACHMENT_PERSISTENCE = "attachment";
+
+    private static final String ATTACHMENT_PREFIX = "kroki-";
+
+    @Inject
+    private DiagramResourceManager diagramResourceManager;
+
+    @Inject
+    private InlineDiagramManager inlineDiagramManager;
+
+    @Inject
+    private DiagramCacheKeyGenerator cacheKeyGenerator;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * @return {@code true} if the rendered diagrams should be stored as attachments, {@code false} otherwise
+     */
+    public boolean isEnabled()
+    {
+        return ATTACHMENT_PERSISTENCE.equals(
+            this.configurationSource.getProperty("contrib.krokiMacro.persistence", "temporary"));
+    }
+
+    /**
+     * Gets the attachment holding the rendered diagram, if the diagram has been attached to the specified document
+     * when it was saved.
+     *
+     * @param outputType the output format
+     * @param contentHash the cache key of the diagram, see {@link DiagramResourceManager#getCacheKey}
+     * @param documentReference the document containing the diagram
+     * @return the attachment holding the rendered diagram, or {@code null} if the diagram is not attached to the
+     *     specified document
+     * @throws IOException if loading the document fails
+     */
+    public AttachmentReference getDiagramAttachment(String outputType, String contentHash,
+        DocumentReference documentReference) throws IOException
+    {
+        if (contentHash == null) {
+            return null;
+        }
+
+        String attachmentName = getAttachmentName(outputType, contentHash);
+        XWikiContext xcontext = this.xcontextProvider.get();
+        try {
+            XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext);
+            if (!document.isNew() && document.getAttachment(attachmentName) != null) {
+                return new AttachmentReference(attachmentName, documentReference);
+            }
+            return null;
+        } catch (XWikiException e) {
+            throw new IOException(String.format("Failed to load the document [%s].", documentReference), e);
+        }
+    }
+
+    /**
+     * Attaches the diagrams of the Kroki macros found in the content of the specified document, and removes the
+     * attachments of the diagrams that are no longer there. Meant to be called right before the document is saved, so
+     * that the attachments are part of the saved version. Nothing is done if the current user doesn't have edit right
+     * on the document.
+     *
+     * @param document the document that is being saved
+     * @param xcontext the XWiki context
+     */
+    public void updateDiagramAttachments(XWikiDocument document, XWikiContext xcontext)
+    {
+        DocumentReference documentReference = document.getDocumentReference();
+        if (!this.authorization.hasAccess(Right.EDIT, documentReference)) {
+            return;
+        }
+
+        XDOM xdom = document.getXDOM();
+        List<MacroBlock> macroBlocks = xdom == null ? new ArrayList<>()
+            : xdom.getBlocks(new MacroBlockMatcher(KrokiMacro.MACRO_ID), Block.Axes.DESCENDANT);
+        Set<String> attachmentNames = new HashSet<>();
+        for (MacroBlock macroBlock : macroBlocks) {
+            KrokiMacroParameters parameters = KrokiMacro.getParameters(macroBlock.getParameters());
+            // The inline diagrams are embedded in the rendered page.
+            if (parameters.isInline() && this.inlineDiagramManager.supports(parameters.getOutputType())) {
+                continue;
+            }
+            String contentHash = this.diagramResourceManager.getCacheKey(parameters.getDiagramType(),
+                parameters.getOutputType(), macroBlock.getContent());
+            if (contentHash == null) {
+                continue;
+            }
+            String attachmentName = getAttachmentName(parameters.getOutputType(), contentHash);
+            if (attachmentNames.add(attachmentName) && document.getAttachment(attachmentName) == null) {
+                attachDiagram(document, attachmentName, parameters, macroBlock.getContent(), contentHash, xcontext);
+            }
+        }
+
+        // Only the names made of a cache key are matched, so that the attachments uploaded by the users are kept.
+        Pattern diagramAttachmentName =
+            Pattern.compile(ATTACHMENT_PREFIX + "[0-9a-f]{" + this.cacheKeyGenerator.getKeyLength() + "}\\.\\w+");
+        for (XWikiAttachment attachment : new ArrayList<>(document.getAttachmentList())) {
+            String attachmentName = attachment.getFilename();
+            if (diagramAttachmentName.matcher(attachmentName).matches() && !attachmentNames.contains(attachmentName)) {
+                document.removeAttachment(attachment);
+            }
+        }
+    }
+
+    private void attachDiagram(XWikiDocument document, String attachmentName, KrokiMacroParameters parameters,
+        String content, String contentHash, XWikiContext xcontext)
+    {
+        try (InputStream diagram =
+            this.diagramResourceManager.openRenderedDiagram(parameters.getOutputType(), contentHash)) {
+            if (diagram != null) {
+                document.setAttachment(attachmentName, diagram, xcontext);
+            } else {
+                // Don't make the save wait for Kroki: the diagram is rendered in the background and attached the next
+                // time the document is saved. It's served as a temporary resource meanwhile.
+                this.diagramResourceManager.prefetch(parameters.getDiagramType(), parameters.getOutputType(), content,
+                    document.getDocumentReference());
+            }
+        } catch (Exception e) {
+            // The diagram is served as a temporary resource until the document is saved again.
+            this.logger.warn("Failed to attach the rendered diagram [{}] to [{}]. Root cause: [{}].", attachmentName,
+                document.getDocumentReference(), ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private String getAttachmentName(String outputType, String contentHash)
+    {
+        return ATTACHMENT_PREFIX + contentHash + '.' + outputType;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheKeyGenerator;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
+import org.xwiki.contrib.kroki.internal.caching.DiagramFileStore;
+import org.xwiki.contrib.kroki.internal.caching.DiagramFiles;
+import org.xwiki.contrib.kroki.internal.caching.DiagramSink;
+import org.xwiki.contrib.kroki.internal.caching.DiagramStore;
+import org.xwiki.contrib.kroki.internal.caching.TeeDiagramInputStream;
+import org.xwiki.contrib.kroki.renderer.DiagramRenderer;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+
+/**
+ * Provides the temporary resources holding the rendered diagrams, rendering the diagrams that are not cached. Diagrams
+ * can also be rendered in the background ahead of time, so that multiple diagrams can be rendered in parallel. A
+ * diagram is rendered only once at a time: the other requests for the same diagram wait for the pending render. A
+ * cached diagram is used only if its temporary file still exists, otherwise it is rendered again. The diagrams that
+ * are not cached are looked up in the local disk store and then in the shared store configured with
+ * {@code contrib.krokiMacro.cache.sharedStore} (e.g. {@code filesystem}), before being rendered. A rendered diagram is
+ * streamed once to the temporary resource and to the diagram stores, and is rejected if it's larger than
+ * {@code contrib.krokiMacro.maxDiagramSize} bytes (50MB by default). The diagrams embedded in the rendered pages are
+ * read in memory the same way, without creating temporary resources.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = DiagramResourceManager.class)
+@Singleton
+public class DiagramResourceManager implements Initializable
+{
+    private static final String MODULE_ID = "kroki";
+
+    private static final long DEFAULT_MAX_DIAGRAM_SIZE = 50L * 1024 * 1024;
+
+    /**
+     * Returned in place of the content of the diagrams that are larger than the requested maximum size.
+     */
+    private static final byte[] TOO_LARGE = new byte[0];
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private DiagramRenderer diagramRenderer;
+
+    @Inject
+    private DiagramCacheManager cacheManager;
+
+    @Inject
+    private DiagramFileStore diagramFileStore;
+
+    @Inject
+    private DiagramCacheKeyGenerator cacheKeyGenerator;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The stores checked, in order, for the diagrams that are not in the cache: the local disk and optionally a store
+     * shared by all the nodes of a cluster.
+     */
+    private final List<DiagramStore> diagramStores = new ArrayList<>();
+
+    private long maxDiagramSize;
+
+    /**
+     * The diagrams that are being rendered, by cache key.
+     */
+    private final Map<String, CompletableFuture<TemporaryResourceReference>> pendingDiagrams =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The diagrams that are being read in memory, by cache key.
+     */
+    private final Map<String, CompletableFuture<byte[]>> pendingContents = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.maxDiagramSize =
+            this.configurationSource.getProperty("contrib.krokiMacro.maxDiagramSize", DEFAULT_MAX_DIAGRAM_SIZE);
+
+        this.diagramStores.add(this.diagramFileStore);
+
+        String sharedStoreHint = this.configurationSource.getProperty("contrib.krokiMacro.cache.sharedStore");
+        if (StringUtils.isNotBlank(sharedStoreHint)) {
+            try {
+                this.diagramStores.add(this.componentManager.getInstance(DiagramStore.class, sharedStoreHint));
+            } catch (ComponentLookupException e) {
+                throw new InitializationException(
+                    String.format("Failed to get the shared diagram store [%s].", sharedStoreHint), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the temporary resource holding the rendered diagram, rendering the diagram if needed. Concurrent calls for
+     * the same diagram share a single render and a single temporary resource.
+     *
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @param contentHash the cache key of the diagram, see {@link #getCacheKey(String, String, String)}
+     * @param docReference the document owning the temporary resource
+     * @return the temporary resource holding the rendered diagram
+     * @throws IOException if storing the rendered diagram fails
+     */
+    public TemporaryResourceReference getDiagramResource(String diagramType, String outputType, String content,
+        String contentHash, EntityReference docReference) throws IOException
+    {
+        if (contentHash == null) {
+            return renderDiagram(diagramType, outputType, docReference, contentHash, content);
+        }
+
+        // Check the pending diagrams first because a diagram is cached before it stops being pending.
+        CompletableFuture<TemporaryResourceReference> pendingDiagram = this.pendingDiagrams.get(contentHash);
+        if (pendingDiagram != null) {
+            return join(pendingDiagram);
+        }
+
+        TemporaryResourceReference tempFileReference = getResourceFromCache(outputType, contentHash);
+        if (tempFileReference != null) {
+            return tempFileReference;
+        }
+
+        CompletableFuture<TemporaryResourceReference> renderedDiagram = new CompletableFuture<>();
+        pendingDiagram = this.pendingDiagrams.putIfAbsent(contentHash, renderedDiagram);
+        if (pendingDiagram != null) {
+            // Another thread started rendering the same diagram in the meantime so wait for its result.
+            return join(pendingDiagram);
+        }
+
+        try {
+            // The diagram may have been cached by a render that finished after our cache lookup.
+            tempFileReference = getResourceFromCache(outputType, contentHash);
+            if (tempFileReference == null) {
+                tempFileReference = loadStoredDiagram(diagramType, outputType, docReference, contentHash);
+            }
+            if (tempFileReference == null) {
+                tempFileReference = renderDiagram(diagramType, outputType, docReference, contentHash, content);
+            }
+            renderedDiagram.complete(tempFileReference);
+            return tempFileReference;
+        } catch (IOException | RuntimeException e) {
+            renderedDiagram.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.pendingDiagrams.remove(contentHash, renderedDiagram);
+        }
+    }
+
+    /**
+     * Gets the content of the specified diagram, for the diagrams that are embedded in the rendered pages, without
+     * creating a temporary resource. The diagram is read from the diagram stores, or rendered and kept in the stores.
+     * Concurrent calls for the same diagram share a single render.
+     *
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @param contentHash the cache key of the diagram, see {@link #getCacheKey(String, String, String)}
+     * @return the diagram content
+     * @throws IOException if the diagram can't be read or is larger than {@code contrib.krokiMacro.maxDiagramSize}
+     */
+    public byte[] getDiagram(String diagramType, String outputType, String content, String contentHash)
+        throws IOException
+    {
+        return getDiagram(diagramType, outputType, content, contentHash, this.maxDiagramSize);
+    }
+
+    /**
+     * Same as {@link #getDiagram(String, String, String, String)} but for the diagrams that are embedded only if
+     * they're small enough. The diagrams that are too large are still kept in the diagram stores, so that they don't
+     * have to be rendered again to be served as temporary resources.
+     *
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @param contentHash the cache key of the diagram, see {@link #getCacheKey(String, String, String)}
+     * @param maxSize the maximum size, in bytes, of the diagram to return
+     * @return the diagram content, or {@code null} if the diagram is larger than the given maximum size
+     * @throws IOException if the diagram can't be read or is larger than {@code contrib.krokiMacro.maxDiagramSize}
+     */
+    public byte[] getDiagram(String diagramType, String outputType, String content, String contentHash,
+        long maxSize) throws IOException
+    {
+        if (contentHash == null) {
+            return toResult(renderDiagram(diagramType, outputType, contentHash, content, maxSize));
+        }
+
+        CompletableFuture<TemporaryResourceReference> pendingDiagram = this.pendingDiagrams.get(contentHash);
+        if (pendingDiagram != null) {
+            // The diagram is being rendered in the background and will be kept in the diagram stores.
+            join(pendingDiagram);
+        }
+
+        CompletableFuture<byte[]> readDiagram = new CompletableFuture<>();
+        CompletableFuture<byte[]> pendingContent = this.pendingContents.putIfAbsent(contentHash, readDiagram);
+        if (pendingContent != null) {
+            // Another thread is reading the same diagram so wait for its result.
+            return toResult(join(pendingContent));
+        }
+
+        try {
+            byte[] diagram = loadStoredDiagram(contentHash, maxSize);
+            if (diagram == null) {
+                diagram = renderDiagram(diagramType, outputType, contentHash, content, maxSize);
+            }
+            readDiagram.complete(diagram);
+            return toResult(diagram);
+        } catch (IOException | RuntimeException e) {
+            readDiagram.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.pendingContents.remove(contentHash, readDiagram);
+        }
+    }
+
+    /**
+     * @param outputType the output format
+     * @param contentHash the cache key of the diagram, see {@link #getCacheKey(String, String, String)}
+     * @return {@code true} if the specified diagram is neither cached, stored on disk nor being rendered in the
+     *     background, {@code false} otherwise
+     */
+    public boolean needsRendering(String outputType, String contentHash)
+    {
+        return contentHash == null || (!this.pendingDiagrams.containsKey(contentHash)
+            && getResourceFromCache(outputType, contentHash) == null && !isStored(contentHash));
+    }
+
+    /**
+     * Opens the specified diagram if it has already been rendered, i.e. if it's cached or kept in a diagram store,
+     * without rendering it nor waiting for a pending render.
+     *
+     * @param outputType the output format
+     * @param contentHash the cache key of the diagram, see {@link #getCacheKey(String, String, String)}
+     * @return the rendered diagram, or {@code null} if the diagram has to be rendered
+     * @throws IOException if opening the rendered diagram fails
+     */
+    public InputStream openRenderedDiagram(String outputType, String contentHash) throws IOException
+    {
+        if (contentHash == null) {
+            return null;
+        }
+
+        TemporaryResourceReference tempFileReference = getResourceFromCache(outputType, contentHash);
+        if (tempFileReference != null) {
+            return new FileInputStream(this.temporaryResourceStore.getTemporaryFile(tempFileReference));
+        }
+
+        for (DiagramStore diagramStore : this.diagramStores) {
+            InputStream storedDiagram = diagramStore.getDiagram(contentHash);
+            if (storedDiagram != null) {
+                return storedDiagram;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Starts rendering the specified diagram in the background, unless it is already cached or being rendered.
+     *
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @param docReference the document owning the temporary resource
+     */
+    public void prefetch(String diagramType, String outputType, String content, EntityReference docReference)
+    {
+        String contentHash = getCacheKey(diagramType, outputType, content);
+        if (contentHash == null || getResourceFromCache(outputType, contentHash) != null || isStored(contentHash)) {
+            // The diagram doesn't have to be rendered.
+            return;
+        }
+
+        CompletableFuture<TemporaryResourceReference> pendingDiagram = new CompletableFuture<>();
+        if (this.pendingDiagrams.putIfAbsent(contentHash, pendingDiagram) != null) {
+            // The diagram is already being rendered.
+            return;
+        }
+
+        try {
+            this.diagramRenderer.renderAsync(diagramType, outputType, content)
+                .thenApply(diagram -> storeRenderedDiagram(diagramType, outputType, content, docReference,
+                    contentHash, diagram))
+                .whenComplete((tempFileReference, error) -> {
+                    if (error != null) {
+                        pendingDiagram.completeExceptionally(error);
+                    } else {
+                        pendingDiagram.complete(tempFileReference);
+                    }
+                    this.pendingDiagrams.remove(contentHash, pendingDiagram);
+                });
+        } catch (Exception e) {
+            // The error will be reported when the diagram is rendered synchronously.
+            this.logger.debug("Failed to prefetch the [{}] diagram. Root cause: [{}].", diagramType,
+                ExceptionUtils.getRootCauseMessage(e));
+            this.pendingDiagrams.remove(contentHash, pendingDiagram);
+        }
+    }
+
+    /**
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @return the key identifying the rendered diagram, which changes when the diagram is rendered by another
+     *     backend; it should be computed once and then passed to the other methods, since it hashes the diagram
+     *     content
+     */
+    public String getCacheKey(String diagramType, String outputType, String content)
+    {
+        // Diagrams rendered by another backend or another version of the backend can't be reused.
+        String namespace;
+        try {
+            namespace = this.diagramRenderer.getCacheNamespace(diagramType);
+        } catch (Exception e) {
+            // There's no configuration for this type of diagram. The error will be reported when rendering it.
+            namespace = "";
+        }
+        return this.cacheKeyGenerator.getCacheKey(namespace, diagramType, outputType, content);
+    }
+
+    private TemporaryResourceReference getResourceFromCache(String outputType, String contentHash)
+    {
+        TemporaryResourceReference tempFileReference = this.cacheManager.getResourceFromCache(outputType, contentHash);
+        if (tempFileReference != null && !exists(tempFileReference)) {
+            // The temporary files are cleaned up independently of the cache so the cached diagram can't be served
+            // anymore.
+            this.logger.debug("The temporary file of the cached diagram [{}] doesn't exist anymore.", contentHash);
+            this.cacheManager.removeResourceFromCache(outputType, contentHash);
+            return null;
+        }
+
+        return tempFileReference;
+    }
+
+    private boolean exists(TemporaryResourceReference tempFileReference)
+    {
+        try {
+            File tempFile = this.temporaryResourceStore.getTemporaryFile(tempFileReference);
+            return tempFile != null && tempFile.isFile();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean isStored(String contentHash)
+    {
+        return this.diagramStores.stream().anyMatch(diagramStore -> diagramStore.contains(contentHash));
+    }
+
+    private TemporaryResourceReference loadStoredDiagram(String diagramType, String outputType,
+        EntityReference docReference, String contentHash) throws IOException
+    {
+        for (DiagramStore diagramStore : this.diagramStores) {
+            InputStream storedDiagram = diagramStore.getDiagram(contentHash);
+            if (storedDiagram != null) {
+                try (InputStream diagram = storedDiagram) {
+                    return storeDiagram(diagramType, outputType, docReference, contentHash, diagram);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private byte[] loadStoredDiagram(String contentHash, long maxSize) throws IOException
+    {
+        for (DiagramStore diagramStore : this.diagramStores) {
+            InputStream storedDiagram = diagramStore.getDiagram(contentHash);
+            if (storedDiagram != null) {
+                try (InputStream diagram = storedDiagram) {
+                    return readDiagram(contentHash, diagram, maxSize);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private byte[] renderDiagram(String diagramType, String outputType, String contentHash, String content,
+        long maxSize) throws IOException
+    {
+        // Closing the diagram stream releases the connection to the Kroki API.
+        try (InputStream diagram = this.diagramRenderer.render(diagramType, outputType, content)) {
+            return readDiagram(getRenderedCacheKey(diagramType, outputType, content, contentHash, diagram), diagram,
+                maxSize);
+        }
+    }
+
+    private byte[] readDiagram(String contentHash, InputStream diagram, long maxSize) throws IOException
+    {
+        // Keep the diagram in the stores while it's read, even if it's too large to be returned.
+        try (TeeDiagramInputStream input =
+            new TeeDiagramInputStream(diagram, this.maxDiagramSize, openDiagramSinks(contentHash))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            // Read one more byte than the maximum size to detect the diagrams that are too large.
+            boolean tooLarge =
+                IOUtils.copyLarge(input, output, 0, Math.min(maxSize, this.maxDiagramSize) + 1) > maxSize;
+            if (tooLarge) {
+                IOUtils.consume(input);
+            }
+            input.commit();
+            return tooLarge ? TOO_LARGE : output.toByteArray();
+        }
+    }
+
+    private byte[] toResult(byte[] diagram)
+    {
+        return diagram == TOO_LARGE ? null : diagram;
+    }
+
+    private TemporaryResourceReference renderDiagram(String diagramType, String outputType,
+        EntityReference docReference, String contentHash, String content) throws IOException
+    {
+        // Closing the diagram stream releases the connection to the Kroki API.
+        try (InputStream diagram = this.diagramRenderer.render(diagramType, outputType, content)) {
+            return storeDiagram(diagramType, outputType, docReference,
+                getRenderedCacheKey(diagramType, outputType, content, contentHash, diagram), diagram);
+        }
+    }
+
+    private TemporaryResourceReference storeRenderedDiagram(String diagramType, String outputType, String content,
+        EntityReference docReference, String contentHash, InputStream diagram)
+    {
+        try (InputStream input = diagram) {
+            return storeDiagram(diagramType, outputType, docReference,
+                getRenderedCacheKey(diagramType, outputType, content, contentHash, input), input);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The cache key of a diagram is computed before it's rendered, but the cache namespace of its type can change when
+     * the engine is initialized to render it (e.g. when the version of the engine is discovered). The rendered diagram
+     * is kept under the key of the engine that actually rendered it, so that it's found by the next lookups.
+     */
+    private String getRenderedCacheKey(String diagramType, String outputType, String content, String contentHash,
+        InputStream diagram)
+    {
+        if (contentHash == null) {
+            return null;
+        }
+
+        try {
+            return this.cacheKeyGenerator.getCacheKey(this.diagramRenderer.getCacheNamespace(diagramType, diagram),
+                diagramType, outputType, content);
+        } catch (Exception e) {
+            return contentHash;
+        }
+    }
+
+    private TemporaryResourceReference storeDiagram(String diagramType, String outputType,
+        EntityReference docReference, String contentHash, InputStream diagram) throws IOException
+    {
+        // Name the file after the diagram content so that its URL changes only when the diagram changes, which allows
+        // browsers to cache it indefinitely.
+        String fileName = (contentHash != null ? contentHash : UUID.randomUUID().toString()) + '.' + outputType;
+        TemporaryResourceReference tempFileReference =
+            new TemporaryResourceReference(MODULE_ID, Arrays.asList(diagramType, fileName), docReference);
+        // Keep the diagram on disk so that it doesn't have to be rendered again after a restart or by another node of
+        // the cluster, while it's written to the temporary file.
+        try (TeeDiagramInputStream input =
+            new TeeDiagramInputStream(diagram, this.maxDiagramSize, openDiagramSinks(contentHash))) {
+            if (contentHash != null && exists(tempFileReference)) {
+                // The existing file holds the same diagram and may be being served, with a response that browsers
+                // cache indefinitely, so don't rewrite it. The diagram is still kept in the stores.
+                IOUtils.consume(input);
+            } else {
+                writeTemporaryFile(tempFileReference, input);
+            }
+            input.commit();
+        }
+        if (contentHash != null) {
+            this.cacheManager.addResourceToCache(outputType, contentHash, tempFileReference);
+        }
+        return tempFileReference;
+    }
+
+    private void writeTemporaryFile(TemporaryResourceReference tempFileReference, InputStream diagram)
+        throws IOException
+    {
+        // Write the diagram under a temporary name and then move it in place, so that a diagram that fails to be
+        // rendered or stored doesn't leave a partial file that would be served (and cached by the browsers) as the
+        // complete diagram.
+        Path target = this.temporaryResourceStore.getTemporaryFile(tempFileReference).toPath();
+        Path temporaryFile = DiagramFiles.createTemporaryFile(target);
+        try {
+            Files.copy(diagram, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            DiagramFiles.move(temporaryFile, target);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private List<DiagramSink> openDiagramSinks(String contentHash)
+    {
+        List<DiagramSink> diagramSinks = new ArrayList<>();
+        if (contentHash != null) {
+            for (DiagramStore diagramStore : this.diagramStores) {
+                DiagramSink diagramSink = diagramStore.openDiagram(contentHash);
+                if (diagramSink != null) {
+                    diagramSinks.add(diagramSink);
+                }
+            }
+        }
+        return diagramSinks;
+    }
+
+    private <T> T join(CompletableFuture<T> pendingDiagram) throws IOException
+    {
+        try {
+            return pendingDiagram.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+}
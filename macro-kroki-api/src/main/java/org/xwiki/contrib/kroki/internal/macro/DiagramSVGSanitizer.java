@@ -0,0 +1,608 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Singleton;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Sanitizes the SVG diagrams before they are inlined in the rendered pages. Only the SVG elements and attributes used
+ * to draw diagrams are kept, plus the basic HTML used by the labels embedded in {@code foreignObject} elements (e.g. by
+ * Mermaid). The links that could execute code are removed, the style sheets are restricted to the diagram and the
+ * styles can only reference resources from the diagram itself. The identifiers defined by the diagram are prefixed
+ * with an identifier of the diagram, since diagrams rendered by the same engine often use the same identifiers (e.g.
+ * Mermaid), which would make the style sheets and the references of a diagram apply to the other diagrams of the page.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = DiagramSVGSanitizer.class)
+@Singleton
+public class DiagramSVGSanitizer
+{
+    private static final String SVG_NAMESPACE = "http://www.w3.org/2000/svg";
+
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+    private static final String SVG = "svg";
+
+    private static final String STYLE = "style";
+
+    private static final String HREF = "href";
+
+    private static final String FOREIGN_OBJECT = "foreignobject";
+
+    private static final Set<String> SVG_ELEMENTS = new HashSet<>(Arrays.asList("a", "circle", "clippath", "defs",
+        "desc", "ellipse", "feblend", "fecolormatrix", "fecomponenttransfer", "fecomposite", "fedropshadow", "feflood",
+        "fefunca", "fefuncb", "fefuncg", "fefuncr", "fegaussianblur", "femerge", "femergenode", "femorphology",
+        "feoffset", "filter", FOREIGN_OBJECT, "g", "image", "line", "lineargradient", "marker", "mask", "path",
+        "pattern", "polygon", "polyline", "radialgradient", "rect", "stop", STYLE, SVG, "switch", "symbol", "text",
+        "textpath", "title", "tspan", "use", "view", "set", "animate", "animatecolor", "animatemotion",
+        "animatetransform"));
+
+    /**
+     * The HTML elements allowed in the {@code foreignObject} elements.
+     */
+    private static final Set<String> HTML_ELEMENTS = new HashSet<>(Arrays.asList("b", "br", "code", "div", "em", "hr",
+        "i", "li", "ol", "p", "pre", "s", "small", "span", "strong", "sub", "sup", "table", "tbody", "td", "th",
+        "thead", "tr", "u", "ul"));
+
+    /**
+     * The allowed HTML elements that can't have content, the only HTML elements that can be self-closed.
+     */
+    private static final Set<String> VOID_HTML_ELEMENTS = new HashSet<>(Arrays.asList("br", "hr"));
+
+    /**
+     * The elements that can change the value of another attribute, e.g. a link target.
+     */
+    private static final Set<String> ANIMATION_ELEMENTS =
+        new HashSet<>(Arrays.asList("set", "animate", "animatecolor", "animatemotion", "animatetransform"));
+
+    private static final Set<String> SVG_ATTRIBUTES = new HashSet<>(Arrays.asList("accumulate", "additive",
+        "alignment-baseline", "amplitude", "attributename", "attributetype", "baseline-shift", "begin", "by",
+        "calcmode", "class", "clip-path", "clip-rule", "clippathunits", "color", "color-interpolation-filters",
+        "cursor", "cx", "cy", "d", "direction", "display", "dominant-baseline", "dur", "dx", "dy", "end", "exponent",
+        "fill", "fill-opacity", "fill-rule", "filter", "filterunits", "flood-color", "flood-opacity", "font-family",
+        "font-size", "font-size-adjust", "font-stretch", "font-style", "font-variant", "font-weight", "fr", "from",
+        "fx", "fy", "gradienttransform", "gradientunits", "height", "href", "id", "in", "in2", "intercept", "k1", "k2",
+        "k3", "k4", "keypoints", "keysplines", "keytimes", "lang", "lengthadjust", "letter-spacing", "marker-end",
+        "marker-mid", "marker-start", "markerheight", "markerunits", "markerwidth", "mask", "maskcontentunits",
+        "maskunits", "max", "method", "min", "mode", "offset", "opacity", "operator", "orient", "overflow", "path",
+        "pathlength", "patterncontentunits", "patterntransform", "patternunits", "pointer-events", "points",
+        "preserveaspectratio", "primitiveunits", "r", "radius", "refx", "refy", "repeatcount", "repeatdur", "restart",
+        "result", "role", "rotate", "rx", "ry", "shape-rendering", "side", "slope", "spacing", "spreadmethod",
+        "startoffset", "stddeviation", "stop-color", "stop-opacity", "stroke", "stroke-dasharray", "stroke-dashoffset",
+        "stroke-linecap", "stroke-linejoin", "stroke-miterlimit", "stroke-opacity", "stroke-width", STYLE,
+        "systemlanguage", "tablevalues", "target", "text-anchor", "text-decoration", "text-rendering", "textlength",
+        "to", "transform", "transform-origin", "type", "values", "vector-effect", "version", "viewbox", "visibility",
+        "width", "word-spacing", "writing-mode", "x", "x1", "x2", "y", "y1", "y2", "z"));
+
+    private static final Set<String> HTML_ATTRIBUTES = new HashSet<>(Arrays.asList("align", "class", "colspan", "dir",
+        "id", "lang", "rowspan", STYLE, "title"));
+
+    /**
+     * The attributes in the XLink and XML namespaces that are allowed.
+     */
+    private static final Set<String> PREFIXED_ATTRIBUTES =
+        new HashSet<>(Arrays.asList(HREF, "title", "space", "lang"));
+
+    private static final Set<String> URI_ATTRIBUTES =
+        new HashSet<>(Arrays.asList(HREF, "src", "action", "formaction"));
+
+    /**
+     * The URIs allowed in links: relative URIs, fragments, web and mail links and embedded raster images.
+     */
+    private static final Pattern SAFE_URI =
+        Pattern.compile("^(?:[^:/?#]*(?:[/?#]|$)|https?:|mailto:|data:image/(?:png|jpe?g|gif|webp);)");
+
+    private static final Pattern IGNORED_URI_CHARACTERS = Pattern.compile("[\\s\\u0000-\\u001F]");
+
+    /**
+     * The styles can only reference the resources defined by the diagram, e.g. {@code url(#gradient)}.
+     */
+    private static final Pattern EXTERNAL_URL =
+        Pattern.compile("url\\(\\s*+['\"]?+\\s*+(?!#)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern UNSAFE_STYLE =
+        Pattern.compile("[\\\\<]|expression|javascript:|behavior|-moz-binding", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CSS_COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+
+    private static final Pattern KEYFRAMES = Pattern.compile("@(?:-\\w+-)?keyframes\\s+[\\w-]+");
+
+    /**
+     * The identifiers referenced from the style sheets, either in selectors or in {@code url()} functions.
+     */
+    private static final Pattern ID_REFERENCE = Pattern.compile("(#)([\\w-]+)");
+
+    /**
+     * The identifiers referenced from the attributes, e.g. {@code marker-end="url(#arrow)"}.
+     */
+    private static final Pattern URL_REFERENCE = Pattern.compile("(url\\(\\s*['\"]?#)([\\w-]+)",
+        Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The attributes holding a list of identifiers.
+     */
+    private static final Set<String> ID_LIST_ATTRIBUTES =
+        new HashSet<>(Arrays.asList("aria-labelledby", "aria-describedby"));
+
+    private static final String ID = "id";
+
+    private static final char BLOCK_START = '{';
+
+    private static final char BLOCK_END = '}';
+
+    private static final String DECLARATION_END = ";";
+
+    /**
+     * @param svg the SVG diagram returned by the Kroki API
+     * @param diagramId identifies the diagram in the rendered pages (e.g. its cache key), used to make the identifiers
+     *     defined by the diagram unique, or {@code null} to derive it from the diagram
+     * @return the sanitized SVG markup, without the XML declaration and the document type
+     * @throws IOException if the diagram is not a valid SVG document
+     */
+    public String sanitize(byte[] svg, String diagramId) throws IOException
+    {
+        Document document;
+        try {
+            DocumentBuilder builder = createDocumentBuilderFactory().newDocumentBuilder();
+            // Never resolve the external DTD referenced by the diagram.
+            builder.setEntityResolver((publicId, systemId) -> new InputSource(new ByteArrayInputStream(new byte[0])));
+            // Report the parsing errors only through the thrown exception.
+            builder.setErrorHandler(new DefaultHandler());
+            document = builder.parse(new ByteArrayInputStream(svg));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse the SVG diagram.", e);
+        }
+
+        Element root = document.getDocumentElement();
+        if (!SVG.equals(getName(root)) || !SVG_NAMESPACE.equals(root.getNamespaceURI())) {
+            throw new IOException(String.format("Unexpected SVG diagram root element [%s].", root.getTagName()));
+        }
+        scopeIdentifiers(root,
+            "kroki-" + (diagramId != null ? diagramId : String.format("%08x", Arrays.hashCode(svg))));
+        sanitize(root);
+
+        return serialize(root);
+    }
+
+    private DocumentBuilderFactory createDocumentBuilderFactory() throws ParserConfigurationException
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        return factory;
+    }
+
+    /**
+     * Prefixes the identifiers defined by the diagram and updates the references to them.
+     *
+     * @param root the root element of the diagram
+     * @param rootId the new identifier of the root element, used as prefix for the other identifiers
+     */
+    private void scopeIdentifiers(Element root, String rootId)
+    {
+        Map<String, String> identifiers = new HashMap<>();
+        if (!root.getAttribute(ID).isEmpty()) {
+            identifiers.put(root.getAttribute(ID), rootId);
+        }
+        root.setAttribute(ID, rootId);
+
+        NodeList elements = root.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String id = element.getAttribute(ID);
+            // Don't prefix the identifiers of a diagram that was already sanitized.
+            if (!id.isEmpty() && !id.startsWith(rootId)) {
+                identifiers.put(id, rootId + '-' + id);
+                element.setAttribute(ID, rootId + '-' + id);
+            }
+        }
+
+        updateReferences(root, identifiers);
+        for (int i = 0; i < elements.getLength(); i++) {
+            updateReferences((Element) elements.item(i), identifiers);
+        }
+    }
+
+    private void updateReferences(Element element, Map<String, String> identifiers)
+    {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = getName(attribute);
+            String value = attribute.getValue();
+            if (HREF.equals(name) && value.startsWith("#")) {
+                attribute.setValue('#' + identifiers.getOrDefault(value.substring(1), value.substring(1)));
+            } else if (ID_LIST_ATTRIBUTES.contains(name)) {
+                List<String> ids = new ArrayList<>();
+                for (String id : value.trim().split("\\s+")) {
+                    ids.add(identifiers.getOrDefault(id, id));
+                }
+                attribute.setValue(String.join(" ", ids));
+            } else {
+                attribute.setValue(replaceReferences(value, URL_REFERENCE, identifiers));
+            }
+        }
+
+        if (STYLE.equals(getName(element)) && SVG_NAMESPACE.equals(element.getNamespaceURI())) {
+            element.setTextContent(replaceReferences(element.getTextContent(), ID_REFERENCE, identifiers));
+        }
+    }
+
+    /**
+     * @param value the value where to replace the references
+     * @param referencePattern matches the references, the second group being the referenced identifier
+     * @param identifiers the new identifiers, by old identifier
+     * @return the value referencing the new identifiers
+     */
+    private String replaceReferences(String value, Pattern referencePattern, Map<String, String> identifiers)
+    {
+        Matcher matcher = referencePattern.matcher(value);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String id = identifiers.get(matcher.group(2));
+            if (id != null) {
+                matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(1) + id));
+            }
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private void sanitize(Element element)
+    {
+        boolean html = XHTML_NAMESPACE.equals(element.getNamespaceURI());
+        NamedNodeMap attributes = element.getAttributes();
+        List<Attr> forbiddenAttributes = new ArrayList<>();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (!isAllowed(attribute, html)) {
+                forbiddenAttributes.add(attribute);
+            } else if (STYLE.equals(getName(attribute)) && attribute.getNamespaceURI() == null) {
+                String style = sanitizeDeclarations(attribute.getValue());
+                if (style.isEmpty()) {
+                    forbiddenAttributes.add(attribute);
+                } else {
+                    attribute.setValue(style);
+                }
+            }
+        }
+        forbiddenAttributes.forEach(element::removeAttributeNode);
+
+        if (!html && STYLE.equals(getName(element))) {
+            sanitizeStyleSheet(element);
+            return;
+        }
+
+        // The foreign objects can only hold HTML.
+        boolean htmlChildren = html || FOREIGN_OBJECT.equals(getName(element));
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (isAllowed((Element) child, htmlChildren)) {
+                    sanitize((Element) child);
+                } else {
+                    element.removeChild(child);
+                }
+            } else if (child.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE
+                || child.getNodeType() == Node.ENTITY_REFERENCE_NODE)
+            {
+                element.removeChild(child);
+            }
+            child = next;
+        }
+    }
+
+    private boolean isAllowed(Element element, boolean html)
+    {
+        String name = getName(element);
+        if (html) {
+            return XHTML_NAMESPACE.equals(element.getNamespaceURI()) && HTML_ELEMENTS.contains(name);
+        } else if (!SVG_NAMESPACE.equals(element.getNamespaceURI()) || !SVG_ELEMENTS.contains(name)) {
+            return false;
+        } else if (ANIMATION_ELEMENTS.contains(name)) {
+            // Animations can't be used to change the links.
+            String attributeName = element.getAttribute("attributeName").toLowerCase(Locale.ROOT);
+            return !attributeName.endsWith(":href") && !URI_ATTRIBUTES.contains(attributeName);
+        }
+        return true;
+    }
+
+    private boolean isAllowed(Attr attribute, boolean html)
+    {
+        String name = getName(attribute);
+        String namespace = attribute.getNamespaceURI();
+        if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespace)) {
+            // Namespace declarations.
+            return true;
+        } else if (namespace == null) {
+            if (!(html ? HTML_ATTRIBUTES : SVG_ATTRIBUTES).contains(name) && !name.startsWith("aria-")
+                && !name.startsWith("data-"))
+            {
+                return false;
+            }
+        } else if (!(XMLConstants.XML_NS_URI.equals(namespace) || XLINK_NAMESPACE.equals(namespace))
+            || !PREFIXED_ATTRIBUTES.contains(name))
+        {
+            return false;
+        }
+
+        if (URI_ATTRIBUTES.contains(name)) {
+            String uri = IGNORED_URI_CHARACTERS.matcher(attribute.getValue()).replaceAll("").toLowerCase(Locale.ROOT);
+            return SAFE_URI.matcher(uri).find();
+        } else if (STYLE.equals(name)) {
+            // The style declarations are sanitized one by one.
+            return true;
+        }
+        // Presentation attributes such as fill or marker-end can reference resources.
+        return !EXTERNAL_URL.matcher(attribute.getValue()).find();
+    }
+
+    private String sanitizeDeclarations(String declarations)
+    {
+        List<String> safeDeclarations = new ArrayList<>();
+        boolean unsafe = false;
+        for (String declaration : declarations.split(DECLARATION_END)) {
+            if (declaration.indexOf(':') > 0 && !UNSAFE_STYLE.matcher(declaration).find()
+                && !EXTERNAL_URL.matcher(declaration).find())
+            {
+                safeDeclarations.add(declaration);
+            } else if (!declaration.trim().isEmpty()) {
+                unsafe = true;
+            }
+        }
+        return unsafe ? String.join(DECLARATION_END, safeDeclarations).trim() : declarations.trim();
+    }
+
+    private void sanitizeStyleSheet(Element style)
+    {
+        String styleSheet = CSS_COMMENT.matcher(style.getTextContent()).replaceAll("");
+        StringBuilder scopedStyleSheet = new StringBuilder();
+        if (!UNSAFE_STYLE.matcher(styleSheet).find() && !hasDelimitersInStrings(styleSheet)) {
+            sanitizeRules(styleSheet, getScope(style.getOwnerDocument().getDocumentElement()), scopedStyleSheet);
+        }
+
+        if (scopedStyleSheet.length() > 0) {
+            style.setTextContent(scopedStyleSheet.toString());
+        } else {
+            style.getParentNode().removeChild(style);
+        }
+    }
+
+    /**
+     * @param styleSheet a style sheet
+     * @return {@code true} if the style sheet has strings holding characters that would prevent us from parsing it
+     *     without a full CSS parser, {@code false} otherwise
+     */
+    private boolean hasDelimitersInStrings(String styleSheet)
+    {
+        char quote = 0;
+        for (char c : styleSheet.toCharArray()) {
+            if (quote == 0 && (c == '"' || c == '\'')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            } else if (quote != 0 && (c == BLOCK_START || c == BLOCK_END || c == ';')) {
+                return true;
+            }
+        }
+        return quote != 0;
+    }
+
+    /**
+     * Keeps only the style rules, restricted to the diagram, and the media and key frames rules. The other at-rules,
+     * such as {@code @import} and {@code @font-face}, are removed.
+     *
+     * @param styleSheet the style sheet to sanitize
+     * @param scope the selector of the diagram, or {@code null} when sanitizing key frames
+     * @param output where to write the sanitized rules
+     */
+    private void sanitizeRules(String styleSheet, String scope, StringBuilder output)
+    {
+        int start = 0;
+        while (start < styleSheet.length()) {
+            int blockStart = styleSheet.indexOf(BLOCK_START, start);
+            int blockEnd = getBlockEnd(styleSheet, blockStart);
+            if (blockEnd < 0) {
+                return;
+            }
+
+            String prelude = styleSheet.substring(start, blockStart);
+            // Skip the statement at-rules, such as @import or @charset.
+            prelude = prelude.substring(prelude.lastIndexOf(DECLARATION_END) + 1).trim();
+            String block = styleSheet.substring(blockStart + 1, blockEnd);
+            if (scope != null && prelude.startsWith("@media")) {
+                StringBuilder mediaRules = new StringBuilder();
+                sanitizeRules(block, scope, mediaRules);
+                appendRule(prelude, mediaRules.toString(), output);
+            } else if (scope != null && KEYFRAMES.matcher(prelude).matches()) {
+                StringBuilder keyframes = new StringBuilder();
+                sanitizeRules(block, null, keyframes);
+                appendRule(prelude, keyframes.toString(), output);
+            } else if (!prelude.isEmpty() && !prelude.startsWith("@") && block.indexOf(BLOCK_START) < 0) {
+                appendRule(scope != null ? scopeSelectors(prelude, scope) : prelude, sanitizeDeclarations(block),
+                    output);
+            }
+            start = blockEnd + 1;
+        }
+    }
+
+    /**
+     * @param root the root element of the diagram
+     * @return the selector used to restrict the style sheets to the diagram
+     */
+    private String getScope(Element root)
+    {
+        return '#' + root.getAttribute(ID);
+    }
+
+    private int getBlockEnd(String styleSheet, int blockStart)
+    {
+        if (blockStart < 0) {
+            return -1;
+        }
+        int depth = 0;
+        for (int i = blockStart; i < styleSheet.length(); i++) {
+            if (styleSheet.charAt(i) == BLOCK_START) {
+                depth++;
+            } else if (styleSheet.charAt(i) == BLOCK_END && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void appendRule(String prelude, String block, StringBuilder output)
+    {
+        if (!block.isEmpty()) {
+            output.append(prelude).append(BLOCK_START).append(block).append(BLOCK_END);
+        }
+    }
+
+    private String scopeSelectors(String selectors, String scope)
+    {
+        // The selectors of the root element are replaced with the selector of the diagram.
+        Pattern rootSelectorPattern =
+            Pattern.compile("^(?:" + Pattern.quote(scope) + "|svg|:root)(?![\\w-])", Pattern.CASE_INSENSITIVE);
+        List<String> scopedSelectors = new ArrayList<>();
+        for (String selector : selectors.split(",")) {
+            String trimmedSelector = selector.trim();
+            Matcher rootSelector = rootSelectorPattern.matcher(trimmedSelector);
+            if (rootSelector.find()) {
+                scopedSelectors.add(scope + trimmedSelector.substring(rootSelector.end()));
+            } else {
+                scopedSelectors.add(scope + ' ' + trimmedSelector);
+            }
+        }
+        return String.join(",", scopedSelectors);
+    }
+
+    private String getName(Node node)
+    {
+        String name = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Serializes the diagram as XML that is parsed the same way by the HTML parsers, since the diagram is inlined in
+     * HTML pages: the HTML parsers ignore the self-closing syntax outside of the SVG elements, so the empty HTML
+     * elements of the {@code foreignObject} elements are closed with an end tag.
+     *
+     * @param root the root element of the diagram
+     * @return the diagram markup
+     */
+    private String serialize(Element root)
+    {
+        StringBuilder output = new StringBuilder();
+        serialize(root, output);
+        return output.toString();
+    }
+
+    private void serialize(Node node, StringBuilder output)
+    {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            output.append(escape(node.getNodeValue(), false));
+        } else if (node.getNodeType() == Node.ELEMENT_NODE) {
+            Element element = (Element) node;
+            output.append('<').append(element.getTagName());
+            // Write the namespace declarations first.
+            serializeAttributes(element, true, output);
+            serializeAttributes(element, false, output);
+            if (!element.hasChildNodes() && (!XHTML_NAMESPACE.equals(element.getNamespaceURI())
+                || VOID_HTML_ELEMENTS.contains(getName(element))))
+            {
+                output.append("/>");
+            } else {
+                output.append('>');
+                for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    serialize(child, output);
+                }
+                output.append("</").append(element.getTagName()).append('>');
+            }
+        }
+    }
+
+    private void serializeAttributes(Element element, boolean namespaceDeclarations, StringBuilder output)
+    {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI()) == namespaceDeclarations) {
+                output.append(' ').append(attribute.getName()).append("=\"").append(escape(attribute.getValue(), true))
+                    .append('"');
+            }
+        }
+    }
+
+    private String escape(String value, boolean attribute)
+    {
+        StringBuilder output = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '&') {
+                output.append("&amp;");
+            } else if (c == '<') {
+                output.append("&lt;");
+            } else if (c == '>') {
+                output.append("&gt;");
+            } else if (c == '"' && attribute) {
+                output.append("&quot;");
+            } else {
+                output.append(c);
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.IOException;
+import java.util.Base64;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
+
+/**
+ * Provides the diagrams that are embedded directly in the rendered pages, which saves the browser an HTTP request per
+ * diagram. SVG diagrams are sanitized and embedded as markup. PNG and JPEG diagrams smaller than
+ * {@code contrib.krokiMacro.dataURIMaxSize} bytes (disabled by default) are embedded as data URIs, the larger ones
+ * being served as temporary resources. The embedded diagrams are cached as strings.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component(roles = InlineDiagramManager.class)
+@Singleton
+public class InlineDiagramManager
+{
+    /**
+     * The only output type that can be inlined.
+     */
+    public static final String SVG = "svg";
+
+    /**
+     * Cached in place of the data URI of the diagrams that are too large to be embedded.
+     */
+    private static final String TOO_LARGE = "";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @Inject
+    private DiagramResourceManager diagramResourceManager;
+
+    @Inject
+    private DiagramCacheManager cacheManager;
+
+    @Inject
+    private DiagramSVGSanitizer svgSanitizer;
+
+    /**
+     * @param outputType the output format
+     * @return {@code true} if diagrams of the given output format can be inlined, {@code false} otherwise
+     */
+    public boolean supports(String outputType)
+    {
+        return SVG.equals(outputType);
+    }
+
+    /**
+     * Gets the sanitized SVG markup of the specified diagram. The diagram is read in memory from the diagram stores,
+     * or rendered only once and kept in the stores, and then sanitized.
+     *
+     * @param diagramType the type of diagram
+     * @param content the diagram content
+     * @param contentHash the cache key of the diagram, see {@link DiagramResourceManager#getCacheKey}
+     * @return the sanitized SVG markup of the diagram
+     * @throws IOException if the rendered diagram can't be read or is not a valid SVG document
+     */
+    public String getInlineDiagram(String diagramType, String content, String contentHash) throws IOException
+    {
+        String svg = this.cacheManager.getInlineDiagramFromCache(contentHash);
+        if (svg == null) {
+            byte[] diagram = this.diagramResourceManager.getDiagram(diagramType, SVG, content, contentHash);
+            svg = this.svgSanitizer.sanitize(diagram, contentHash);
+            this.cacheManager.addInlineDiagramToCache(contentHash, svg);
+        }
+        return svg;
+    }
+
+    /**
+     * Gets the data URI of the specified raster diagram, if it's small enough to be embedded in the page. The diagram
+     * is read in memory from the diagram stores, or rendered only once and kept in the stores, so that the diagrams
+     * that are too large can be served as temporary resources without being rendered again.
+     *
+     * @param diagramType the type of diagram
+     * @param outputType the output format
+     * @param content the diagram content
+     * @param contentHash the cache key of the diagram, see {@link DiagramResourceManager#getCacheKey}
+     * @return the data URI of the diagram, or {@code null} if the diagram can't be embedded
+     * @throws IOException if the rendered diagram can't be read or stored
+     */
+    public String getDataURI(String diagramType, String outputType, String content, String contentHash)
+        throws IOException
+    {
+        String mediaType = getMediaType(outputType);
+        int maxSize = this.configurationSource.getProperty("contrib.krokiMacro.dataURIMaxSize", 0);
+        if (mediaType == null || maxSize <= 0) {
+            return null;
+        }
+
+        String dataURI = this.cacheManager.getInlineDiagramFromCache(contentHash);
+        if (dataURI == null) {
+            byte[] diagram =
+                this.diagramResourceManager.getDiagram(diagramType, outputType, content, contentHash, maxSize);
+            dataURI = diagram != null
+                ? String.format("data:%s;base64,%s", mediaType, Base64.getEncoder().encodeToString(diagram))
+                : TOO_LARGE;
+            this.cacheManager.addInlineDiagramToCache(contentHash, dataURI);
+        }
+        return TOO_LARGE.equals(dataURI) ? null : dataURI;
+    }
+
+    private String getMediaType(String outputType)
+    {
+        if ("png".equals(outputType)) {
+            return "image/png";
+        } else if ("jpeg".equals(outputType)) {
+            return "image/jpeg";
+        }
+        return null;
+    }
+}
@@ -22,10 +22,13 @@ package org.xwiki.contrib.kroki.internal.macro;
 import java.util.Collections;
 
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
 import org.xwiki.rendering.block.ImageBlock;
 import org.xwiki.rendering.block.LinkBlock;
 import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.RawBlock;
 import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.syntax.Syntax;
 
 /**
  * Used to generate the result block for the Kroki Macro.
@@ -55,4 +58,39 @@ public final class KrokiBlockGenerator
 
         return new ParagraphBlock(Collections.singletonList(linkBlock));
     }
+
+    /**
+     * Generate a block for a diagram that is embedded in the page, without the link to open it, since browsers don't
+     * open data URIs.
+     *
+     * @param fileReference reference to the generated diagram
+     * @param fileName the alternative text of the image
+     * @return block containing the image
+     * @since 1.2
+     */
+    public static Block createImageBlock(ResourceReference fileReference, String fileName)
+    {
+        ImageBlock img = new ImageBlock(fileReference, true);
+        img.setParameter("alt", fileName);
+
+        return new ParagraphBlock(Collections.singletonList(img));
+    }
+
+    /**
+     * Generate a block embedding the generated SVG diagram.
+     *
+     * @param svg the sanitized SVG markup of the diagram
+     * @param fileName the accessible name of the diagram
+     * @return block containing the SVG diagram
+     * @since 1.2
+     */
+    public static Block createInlineSVGBlock(String svg, String fileName)
+    {
+        GroupBlock groupBlock = new GroupBlock(Collections.singletonList(new RawBlock(svg, Syntax.HTML_5_0)));
+        groupBlock.setParameter("class", "kroki-diagram");
+        groupBlock.setParameter("role", "img");
+        groupBlock.setParameter("aria-label", fileName);
+
+        return groupBlock;
+    }
 }
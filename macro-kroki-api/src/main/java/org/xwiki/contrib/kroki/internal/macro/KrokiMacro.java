@@ -20,27 +20,29 @@
 package org.xwiki.contrib.kroki.internal.macro;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
-import org.xwiki.contrib.kroki.internal.caching.HashCreator;
 import org.xwiki.contrib.kroki.macro.KrokiMacroParameters;
-import org.xwiki.contrib.kroki.renderer.DiagramRenderer;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
 import org.xwiki.rendering.block.MetaDataBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
 import org.xwiki.rendering.block.match.MetadataBlockMatcher;
 import org.xwiki.rendering.listener.MetaData;
+import org.xwiki.rendering.listener.reference.AttachmentResourceReference;
 import org.xwiki.rendering.listener.reference.ResourceReference;
 import org.xwiki.rendering.listener.reference.ResourceType;
 import org.xwiki.rendering.macro.AbstractMacro;
@@ -51,7 +53,6 @@ import org.xwiki.resource.ResourceReferenceSerializer;
 import org.xwiki.resource.SerializeResourceReferenceException;
 import org.xwiki.resource.UnsupportedResourceReferenceException;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
-import org.xwiki.resource.temporary.TemporaryResourceStore;
 import org.xwiki.url.ExtendedURL;
 
 /**
@@ -66,8 +67,10 @@ public class KrokiMacro extends AbstractMacro<KrokiMacroParameters>
 {
     private static final String DESCRIPTION = "Macro inserting a diagram in a chosen format generated by kroki";
 
-    @Inject
-    private TemporaryResourceStore temporaryResourceStore;
+    /**
+     * The identifier of the macro.
+     */
+    static final String MACRO_ID = "kroki";
 
     // TODO: Once this extension starts depending on XWiki 14.7+, change this to:
     //   @Inject
@@ -83,10 +86,16 @@ public class KrokiMacro extends AbstractMacro<KrokiMacroParameters>
     private DocumentReferenceResolver<String> documentReferenceResolver;
 
     @Inject
-    private DiagramRenderer diagramRenderer;
+    private DiagramResourceManager diagramResourceManager;
+
+    @Inject
+    private DiagramAttachmentManager diagramAttachmentManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> entityReferenceSerializer;
 
     @Inject
-    private DiagramCacheManager cacheManager;
+    private InlineDiagramManager inlineDiagramManager;
 
     /**
      * Create and initialize the descriptor of the macro.
@@ -108,19 +117,37 @@ public class KrokiMacro extends AbstractMacro<KrokiMacroParameters>
     public List<Block> execute(KrokiMacroParameters parameters, String content, MacroTransformationContext context)
         throws MacroExecutionException
     {
+        String fileName = parameters.getDiagramType() + " diagram";
+        // The cache key hashes the diagram content so compute it only once.
+        String cacheKey =
+            this.diagramResourceManager.getCacheKey(parameters.getDiagramType(), parameters.getOutputType(), content);
+        DocumentReference sourceDocumentReference = extractSourceDocumentReference(context.getCurrentMacroBlock());
         try {
-            EntityReference sourceDocumentReference = extractSourceDocumentReference(context.getCurrentMacroBlock());
-
-            TemporaryResourceReference diagramFileReference =
-                getTemporaryResourceReference(parameters.getDiagramType(), parameters.getOutputType(), content,
-                    sourceDocumentReference);
-
-            ExtendedURL temporaryResourceExtendedURL =
-                this.urlTemporaryResourceReferenceSerializer.serialize(diagramFileReference);
-            String temporaryResourceURL = temporaryResourceExtendedURL.serialize();
-
-            ResourceReference fileReference = new ResourceReference(temporaryResourceURL, ResourceType.URL);
-            String fileName = parameters.getDiagramType() + " diagram";
+            if (parameters.isInline() && this.inlineDiagramManager.supports(parameters.getOutputType())) {
+                String svg = this.inlineDiagramManager.getInlineDiagram(parameters.getDiagramType(), content, cacheKey);
+                return Collections.singletonList(KrokiBlockGenerator.createInlineSVGBlock(svg, fileName));
+            }
+
+            String dataURI = this.inlineDiagramManager.getDataURI(parameters.getDiagramType(),
+                parameters.getOutputType(), content, cacheKey);
+            if (dataURI != null) {
+                return Collections.singletonList(
+                    KrokiBlockGenerator.createImageBlock(new ResourceReference(dataURI, ResourceType.URL), fileName));
+            }
+
+            ResourceReference fileReference = null;
+            if (this.diagramAttachmentManager.isEnabled() && sourceDocumentReference != null) {
+                AttachmentReference attachmentReference = this.diagramAttachmentManager
+                    .getDiagramAttachment(parameters.getOutputType(), cacheKey, sourceDocumentReference);
+                if (attachmentReference != null) {
+                    fileReference =
+                        new AttachmentResourceReference(this.entityReferenceSerializer.serialize(attachmentReference));
+                }
+            }
+            if (fileReference == null) {
+                fileReference =
+                    getTemporaryResourceReference(parameters, content, cacheKey, sourceDocumentReference, context);
+            }
 
             Block resultBlock = KrokiBlockGenerator.createImageRefBlock(fileReference, fileName);
 
@@ -130,6 +157,27 @@ public class KrokiMacro extends AbstractMacro<KrokiMacroParameters>
         }
     }
 
+    private ResourceReference getTemporaryResourceReference(KrokiMacroParameters parameters, String content,
+        String cacheKey, EntityReference sourceDocumentReference, MacroTransformationContext context)
+        throws IOException, SerializeResourceReferenceException, UnsupportedResourceReferenceException
+    {
+        if (this.diagramResourceManager.needsRendering(parameters.getOutputType(), cacheKey)) {
+            // We have to wait for this diagram to be rendered so start rendering the other diagrams from the same
+            // document in the background, in order to have them ready when their macro is executed.
+            prefetchDiagrams(context);
+        }
+
+        TemporaryResourceReference diagramFileReference =
+            this.diagramResourceManager.getDiagramResource(parameters.getDiagramType(), parameters.getOutputType(),
+                content, cacheKey, sourceDocumentReference);
+
+        ExtendedURL temporaryResourceExtendedURL =
+            this.urlTemporaryResourceReferenceSerializer.serialize(diagramFileReference);
+        String temporaryResourceURL = temporaryResourceExtendedURL.serialize();
+
+        return new ResourceReference(temporaryResourceURL, ResourceType.URL);
+    }
+
     private DocumentReference extractSourceDocumentReference(Block source)
     {
         String contentSource = null;
@@ -141,26 +189,44 @@ public class KrokiMacro extends AbstractMacro<KrokiMacroParameters>
         return this.documentReferenceResolver.resolve(contentSource);
     }
 
-    private TemporaryResourceReference getTemporaryResourceReference(String diagramType, String outputType,
-        String content, EntityReference docReference) throws IOException
+    private void prefetchDiagrams(MacroTransformationContext context)
     {
-        String contentHash = null;
-        TemporaryResourceReference tempFileReference = null;
-        HashCreator hashCreator = new HashCreator();
-        try {
-            contentHash = hashCreator.createMD5Hash(diagramType + outputType + content);
-            tempFileReference = cacheManager.getResourceFromCache(contentHash);
-        } catch (Exception ignored) {
+        XDOM xdom = context.getXDOM();
+        if (xdom == null) {
+            return;
         }
 
-        if (tempFileReference == null) {
-            tempFileReference = new TemporaryResourceReference("kroki",
-                Arrays.asList(diagramType, UUID.randomUUID() + "." + outputType), docReference);
-            this.temporaryResourceStore.createTemporaryFile(tempFileReference,
-                diagramRenderer.render(diagramType, outputType, content));
-            cacheManager.addResourceToCache(contentHash, tempFileReference);
+        List<MacroBlock> macroBlocks = xdom.getBlocks(new MacroBlockMatcher(MACRO_ID), Block.Axes.DESCENDANT);
+        for (MacroBlock macroBlock : macroBlocks) {
+            KrokiMacroParameters macroParameters = getParameters(macroBlock.getParameters());
+            // The inline diagrams don't use temporary resources.
+            boolean inline =
+                macroParameters.isInline() && this.inlineDiagramManager.supports(macroParameters.getOutputType());
+            if (macroBlock != context.getCurrentMacroBlock() && !inline) {
+                this.diagramResourceManager.prefetch(macroParameters.getDiagramType(),
+                    macroParameters.getOutputType(), macroBlock.getContent(),
+                    extractSourceDocumentReference(macroBlock));
+            }
         }
+    }
 
-        return tempFileReference;
+    /**
+     * @param macroBlockParameters the parameters of a Kroki macro block
+     * @return the parameters needed to identify the diagram of the macro
+     */
+    static KrokiMacroParameters getParameters(Map<String, String> macroBlockParameters)
+    {
+        // Macro parameter names are case insensitive.
+        KrokiMacroParameters macroParameters = new KrokiMacroParameters();
+        for (Map.Entry<String, String> parameter : macroBlockParameters.entrySet()) {
+            if ("diagramType".equalsIgnoreCase(parameter.getKey())) {
+                macroParameters.setDiagramType(parameter.getValue());
+            } else if ("outputType".equalsIgnoreCase(parameter.getKey())) {
+                macroParameters.setOutputType(parameter.getValue());
+            } else if ("inline".equalsIgnoreCase(parameter.getKey())) {
+                macroParameters.setInline(Boolean.parseBoolean(parameter.getValue()));
+            }
+        }
+        return macroParameters;
     }
 }
@@ -0,0 +1,365 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.support.classic.SharedInputBuffer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+
+/**
+ * HTTP/2 transport that multiplexes all the concurrent requests sent to a (TLS) Kroki API over a single connection, so
+ * that the TLS handshake and the TCP connection setup are paid only once. The protocol is negotiated with the server
+ * during the TLS handshake (ALPN): the transport falls back to a pool of persistent HTTP/1.1 connections if the server
+ * or the JVM doesn't support HTTP/2. The response bodies are streamed to the caller as they're received.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public class Http2KrokiTransport implements KrokiTransport
+{
+    private static final ContentType TEXT_PLAIN = ContentType.create("text/plain", StandardCharsets.UTF_8);
+
+    private final CloseableHttpAsyncClient httpClient;
+
+    private final long requestTimeout;
+
+    private final int compressionThreshold;
+
+    /**
+     * Creates and starts the HTTP/2 client based on the given configuration.
+     *
+     * @param config the configuration of the backend
+     */
+    public Http2KrokiTransport(KrokiMacroConfiguration config)
+    {
+        this(config, HttpVersionPolicy.NEGOTIATE);
+    }
+
+    /**
+     * Creates and starts the HTTP client based on the given configuration, with the specified HTTP version policy.
+     *
+     * @param config the configuration of the backend
+     * @param versionPolicy how the HTTP version is chosen, e.g. {@link HttpVersionPolicy#FORCE_HTTP_2} to use HTTP/2
+     *            without TLS
+     */
+    public Http2KrokiTransport(KrokiMacroConfiguration config, HttpVersionPolicy versionPolicy)
+    {
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(Timeout.ofMilliseconds(config.getKrokiConnectTimeout()))
+            .setResponseTimeout(Timeout.ofMilliseconds(config.getKrokiReadTimeout()))
+            .build();
+
+        this.httpClient = HttpAsyncClients.custom()
+            .setVersionPolicy(versionPolicy)
+            // Used only when falling back to HTTP/1.1, since an HTTP/2 connection carries all the requests.
+            .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(config.getKrokiMaxConnections())
+                .setMaxConnPerRoute(config.getKrokiMaxConnections())
+                .build())
+            .setDefaultRequestConfig(requestConfig)
+            .setIOReactorConfig(
+                IOReactorConfig.custom().setSoTimeout(Timeout.ofMilliseconds(config.getKrokiReadTimeout())).build())
+            .setUserAgent(USER_AGENT)
+            .evictIdleConnections(TimeValue.ofMilliseconds(config.getKrokiConnectionIdleTimeout()))
+            .build();
+        this.httpClient.start();
+
+        // Make sure we don't wait forever for a response, even if the client timeouts don't apply. The response body
+        // is then covered by the read timeout.
+        this.requestTimeout = (long) config.getKrokiConnectTimeout() + config.getKrokiReadTimeout();
+
+        this.compressionThreshold = config.getKrokiRequestCompressionThreshold();
+    }
+
+    @Override
+    public InputStream execute(String httpVerb, String url, String body) throws IOException
+    {
+        ResponseInputStream response = send(httpVerb, url, body);
+        if (response.getCode() >= 300) {
+            response.close();
+            throw new IOException(
+                String.format("Server returned HTTP response code: %d for URL: %s", response.getCode(), url));
+        }
+
+        // The request is cancelled if the response is closed before being fully read.
+        return response;
+    }
+
+    @Override
+    public int getStatusCode(String httpVerb, String url, String body) throws IOException
+    {
+        try (ResponseInputStream response = send(httpVerb, url, body)) {
+            return response.getCode();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.httpClient.close();
+    }
+
+    private ResponseInputStream send(String httpVerb, String url, String body) throws IOException
+    {
+        SimpleHttpRequest request = new SimpleHttpRequest(httpVerb, URI.create(url));
+        request.setHeader("Accept", "*/*");
+        if (body != null && ("POST".equals(httpVerb) || "PUT".equals(httpVerb))) {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            if (this.compressionThreshold > 0 && bodyBytes.length >= this.compressionThreshold) {
+                request.setHeader("Content-Encoding", "gzip");
+                request.setBody(KrokiEncoding.gzip(bodyBytes), TEXT_PLAIN);
+            } else {
+                request.setBody(bodyBytes, TEXT_PLAIN);
+            }
+        }
+
+        StreamingResponseConsumer consumer = new StreamingResponseConsumer(url);
+        Future<Void> exchange =
+            this.httpClient.execute(SimpleRequestProducer.create(request), consumer, new FutureCallback<Void>()
+            {
+                @Override
+                public void completed(Void result)
+                {
+                    // The response body has been fully received.
+                }
+
+                @Override
+                public void failed(Exception cause)
+                {
+                    consumer.failed(cause);
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    consumer.failed(new IOException(String.format("The request to [%s] was cancelled.", url)));
+                }
+            });
+        try {
+            HttpResponse response = consumer.getResponse().get(this.requestTimeout, TimeUnit.MILLISECONDS);
+            return new ResponseInputStream(response.getCode(), consumer, exchange);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            exchange.cancel(true);
+            throw new IOException(String.format("Timeout waiting for the response from [%s].", url), e);
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            // Restore the interrupted state.
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while waiting for the response from [%s].", url), e);
+        }
+    }
+
+    /**
+     * Hands the response body over to the thread reading it as it's received. The connection stops reading the
+     * response (HTTP/2 flow control) while the buffer is full.
+     */
+    private static final class StreamingResponseConsumer implements AsyncResponseConsumer<Void>
+    {
+        private static final int BUFFER_SIZE = 65536;
+
+        private final String url;
+
+        private final SharedInputBuffer buffer = new SharedInputBuffer(BUFFER_SIZE);
+
+        private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+
+        private volatile FutureCallback<Void> resultCallback;
+
+        private volatile Exception failure;
+
+        StreamingResponseConsumer(String url)
+        {
+            this.url = url;
+        }
+
+        CompletableFuture<HttpResponse> getResponse()
+        {
+            return this.response;
+        }
+
+        int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            int read;
+            try {
+                read = this.buffer.read(bytes, offset, length);
+            } catch (IOException e) {
+                throw getFailure(e);
+            }
+            // The buffer is aborted when the request fails, which must not be mistaken for the end of the response.
+            if (read < 0 && this.failure != null) {
+                throw getFailure(null);
+            }
+            return read;
+        }
+
+        @Override
+        public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext context,
+            FutureCallback<Void> resultCallback)
+        {
+            this.resultCallback = resultCallback;
+            if (entityDetails == null) {
+                this.buffer.markEndStream();
+                resultCallback.completed(null);
+            }
+            this.response.complete(response);
+        }
+
+        @Override
+        public void informationResponse(HttpResponse response, HttpContext context)
+        {
+            // Only the final response is used.
+        }
+
+        @Override
+        public void updateCapacity(CapacityChannel capacityChannel) throws IOException
+        {
+            this.buffer.updateCapacity(capacityChannel);
+        }
+
+        @Override
+        public void consume(ByteBuffer src) throws IOException
+        {
+            this.buffer.fill(src);
+        }
+
+        @Override
+        public void streamEnd(List<? extends Header> trailers)
+        {
+            this.buffer.markEndStream();
+            this.resultCallback.completed(null);
+        }
+
+        @Override
+        public void failed(Exception cause)
+        {
+            if (this.failure == null) {
+                this.failure = cause;
+            }
+            this.response.completeExceptionally(cause);
+            // Wake up the thread reading the response.
+            this.buffer.abort();
+        }
+
+        @Override
+        public void releaseResources()
+        {
+            // The buffer is released with the response stream.
+        }
+
+        private IOException getFailure(IOException readError)
+        {
+            Exception cause = this.failure != null ? this.failure : readError;
+            return cause instanceof IOException ? (IOException) cause
+                : new IOException(String.format("Failed to read the response from [%s].", this.url), cause);
+        }
+    }
+
+    /**
+     * The body of a response, read as it's received.
+     */
+    private static final class ResponseInputStream extends InputStream
+    {
+        private final int code;
+
+        private final StreamingResponseConsumer consumer;
+
+        private final Future<Void> exchange;
+
+        private boolean closed;
+
+        ResponseInputStream(int code, StreamingResponseConsumer consumer, Future<Void> exchange)
+        {
+            this.code = code;
+            this.consumer = consumer;
+            this.exchange = exchange;
+        }
+
+        int getCode()
+        {
+            return this.code;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] singleByte = new byte[1];
+            int read = read(singleByte, 0, 1);
+            return read < 0 ? -1 : singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (this.closed) {
+                throw new IOException("The response stream is closed.");
+            } else if (length == 0) {
+                return 0;
+            }
+            return this.consumer.read(bytes, offset, length);
+        }
+
+        @Override
+        public void close()
+        {
+            if (!this.closed) {
+                this.closed = true;
+                // Stop receiving the rest of the response, which resets the HTTP/2 stream or closes the HTTP/1.1
+                // connection.
+                if (!this.exchange.isDone()) {
+                    this.exchange.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+
+/**
+ * The Kroki API endpoint (either a Docker container managed by XWiki or a remote server) resolved from a
+ * {@link KrokiMacroConfiguration}. The configurations that have the same backend settings (endpoint, connection pool,
+ * timeouts and render limits) share the same backend. A backend is initialized once and then kept ready until a render
+ * fails.
+ *
+ * @version $Id$
+ */
+public class KrokiBackend
+{
+    private final String id;
+
+    private volatile KrokiMacroConfiguration configuration;
+
+    private volatile KrokiClient client;
+
+    private volatile String containerId;
+
+    private volatile String version;
+
+    private volatile String cacheNamespace;
+
+    private volatile String lastKnownCacheNamespace;
+
+    private volatile boolean ready;
+
+    private volatile KrokiBulkhead bulkhead;
+
+    /**
+     * Creates a backend that is not yet initialized.
+     *
+     * @param id the identifier of the backend
+     */
+    public KrokiBackend(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * @return the identifier of the backend
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the configuration the backend was last initialized from, or one with the same backend settings
+     */
+    public KrokiMacroConfiguration getConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * @return the client used to send render requests to this backend
+     */
+    public KrokiClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * @return the id of the Docker container running the Kroki API, or {@code null} if the backend is remote
+     */
+    public String getContainerId()
+    {
+        return containerId;
+    }
+
+    /**
+     * @return the version of the Kroki API (e.g. the Docker image id or the versions reported by the Kroki server),
+     *     or {@code null} if it couldn't be determined
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the identifier of the backend and of its version, computed when the backend was initialized or, before
+     *     that, the last known one; {@code null} if not known yet
+     * @since 1.2
+     */
+    public String getCacheNamespace()
+    {
+        String namespace = cacheNamespace;
+        return namespace != null ? namespace : lastKnownCacheNamespace;
+    }
+
+    /**
+     * @param lastKnownCacheNamespace the identifier of the backend and of its version the last time it was
+     *     initialized, used until the backend is initialized
+     */
+    void setLastKnownCacheNamespace(String lastKnownCacheNamespace)
+    {
+        this.lastKnownCacheNamespace = lastKnownCacheNamespace;
+    }
+
+    /**
+     * @return the bulkhead limiting the number of diagrams rendered at the same time by this backend
+     * @since 1.2
+     */
+    public KrokiBulkhead getBulkhead()
+    {
+        return bulkhead;
+    }
+
+    /**
+     * @return {@code true} if the backend was initialized and can be used as is, {@code false} if it needs to be
+     *     (re)initialized
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * Marks the backend as ready to render diagrams.
+     *
+     * @param config the configuration the backend was initialized from
+     * @param client the client used to send render requests to this backend
+     * @param containerId the id of the Docker container running the Kroki API, {@code null} for a remote backend
+     * @param version the version of the Kroki API, {@code null} if unknown
+     * @param cacheNamespace the identifier of the backend and of its version
+     */
+    void setReady(KrokiMacroConfiguration config, KrokiClient client, String containerId, String version,
+        String cacheNamespace)
+    {
+        this.configuration = config;
+        this.client = client;
+        this.containerId = containerId;
+        this.version = version;
+        this.cacheNamespace = cacheNamespace;
+        int maxConcurrentRenders = config.getKrokiMaxConcurrentRenders();
+        int queueSize = config.getKrokiRenderQueueSize();
+        int queueTimeout = config.getKrokiRenderQueueTimeout();
+        if (this.bulkhead == null || !this.bulkhead.hasLimits(maxConcurrentRenders, queueSize, queueTimeout)) {
+            // The renders in progress release their permits to the previous bulkhead.
+            this.bulkhead = new KrokiBulkhead(maxConcurrentRenders, queueSize, queueTimeout);
+        }
+        this.ready = true;
+    }
+
+    /**
+     * Forces the backend to be validated again before the next render.
+     */
+    void invalidate()
+    {
+        this.ready = false;
+    }
+}
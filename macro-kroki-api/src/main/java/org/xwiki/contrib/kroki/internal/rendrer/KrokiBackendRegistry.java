@@ -0,0 +1,558 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.docker.ContainerManager;
+import org.xwiki.contrib.kroki.utils.HealthCheckRequestParameters;
+import org.xwiki.environment.Environment;
+
+import com.github.dockerjava.api.model.HostConfig;
+
+/**
+ * Keeps track of the Kroki backends used to render diagrams. Each backend is initialized once (the Docker container is
+ * started if needed and the Kroki API health is checked) and then reused as is, so that rendering a diagram only
+ * requires an HTTP call. A backend is validated again only after a render failure. The configurations that have the
+ * same backend settings share the same backend, while a configuration with different settings (e.g. after a
+ * configuration change) gets its own backend, so that the configurations in use never re-initialize each other. The
+ * cache namespace of each backend is kept in the permanent directory so that the diagrams stored before a restart are
+ * found even if the backend can't be initialized. The backends of the configurations that are no longer in use are
+ * closed once their renders are done (see {@link #retain(Collection)}).
+ *
+ * @version $Id$
+ */
+@Component(roles = KrokiBackendRegistry.class)
+@Singleton
+public class KrokiBackendRegistry implements Disposable
+{
+    private static final String TLS = "https";
+
+    private static final String NO_TLS = "http";
+
+    private static final String PROTOCOL_SEPARATOR = "://";
+
+    private static final char NAMESPACE_SEPARATOR = '|';
+
+    private static final String NAMESPACES_FILE = "kroki/cacheNamespaces.properties";
+
+    /**
+     * The backends indexed by their settings (see {@link #getBackendKey(KrokiMacroConfiguration)}).
+     */
+    private final Map<List<Object>, KrokiBackend> backends = new ConcurrentHashMap<>();
+
+    /**
+     * The backend used by each configuration, so that the backend identifier is not computed again on each render.
+     */
+    private final Map<KrokiMacroConfiguration, KrokiBackend> configurationBackends = new ConcurrentHashMap<>();
+
+    /**
+     * The backends that are no longer used by any configuration, closed once the renders in progress are done.
+     */
+    private final List<KrokiBackend> retiredBackends = new ArrayList<>();
+
+    /**
+     * The containers of the closed backends that are still needed by a configuration in use, indexed by container
+     * name, so that they are reused instead of being started again.
+     */
+    private final Map<String, String> retiredContainers = new HashMap<>();
+
+    @Inject
+    private KrokiService krokiService;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The last cache namespace of each backend, indexed by the namespace of the backend without its version, loaded
+     * from the permanent directory the first time it's needed.
+     */
+    private Properties knownNamespaces;
+
+    /**
+     * We use a provider (i.e. lazy initialization) because we don't always need this component (e.g. when the diagram
+     * rendering is done through a hosted kroki api that is not managed by XWiki).
+     */
+    @Inject
+    private Provider<ContainerManager> containerManagerProvider;
+
+    /**
+     * Returns the backend matching the given configuration, initializing it if this wasn't done already or if the last
+     * render using it failed.
+     *
+     * @param config the configuration of the backend
+     * @return a backend that is ready to render diagrams
+     * @throws InitializationException if the backend could not be initialized
+     */
+    public KrokiBackend getBackend(KrokiMacroConfiguration config) throws InitializationException
+    {
+        if (config == null) {
+            throw new RuntimeException("There is no configuration defined for this type of diagram");
+        }
+
+        KrokiBackend backend = resolveBackend(config);
+        if (!backend.isReady()) {
+            synchronized (backend) {
+                if (!backend.isReady()) {
+                    initializeBackend(backend, config);
+                }
+            }
+        }
+
+        return backend;
+    }
+
+    /**
+     * Identifies the Kroki API used for the given configuration and its version, so that the diagrams rendered by a
+     * different backend or by another version of the same backend are not mixed. The backend is never initialized
+     * here, in order to serve the cached diagrams without waiting for the backend, even while it's down: until the
+     * backend is initialized, the namespace it had the last time it was initialized (possibly before a restart) is
+     * used.
+     *
+     * @param config the configuration of the backend
+     * @return the identifier of the backend and of its version
+     */
+    public String getCacheNamespace(KrokiMacroConfiguration config)
+    {
+        if (config == null) {
+            return "";
+        }
+
+        KrokiBackend backend = resolveBackend(config);
+        String namespace = backend.getCacheNamespace();
+        if (namespace == null) {
+            String unversionedNamespace = getCacheNamespace(backend.getId(), config, null);
+            namespace = getKnownNamespaces().getProperty(unversionedNamespace, unversionedNamespace);
+            backend.setLastKnownCacheNamespace(namespace);
+        }
+        return namespace;
+    }
+
+    /**
+     * @return the metrics of the render queues of the initialized backends, indexed by backend identifier (suffixed
+     *     with a counter when several backends with different settings use the same endpoint)
+     * @since 1.2
+     */
+    public Map<String, Map<String, Number>> getRenderQueueMetrics()
+    {
+        Map<String, Map<String, Number>> metrics = new TreeMap<>();
+        for (KrokiBackend backend : this.backends.values()) {
+            KrokiBulkhead bulkhead = backend.getBulkhead();
+            if (bulkhead != null) {
+                Map<String, Number> backendMetrics = new LinkedHashMap<>();
+                backendMetrics.put("inFlight", bulkhead.getInFlight());
+                backendMetrics.put("queueDepth", bulkhead.getQueueDepth());
+                backendMetrics.put("rejected", bulkhead.getRejectedCount());
+                backendMetrics.put("maxConcurrentRenders", bulkhead.getMaxConcurrentRenders());
+                backendMetrics.put("queueSize", bulkhead.getQueueSize());
+                String id = backend.getId();
+                for (int i = 2; metrics.containsKey(id); i++) {
+                    id = backend.getId() + '#' + i;
+                }
+                metrics.put(id, backendMetrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Forces the given backend to be validated again before it's used for the next render.
+     *
+     * @param backend the backend that failed to render a diagram
+     */
+    public void invalidate(KrokiBackend backend)
+    {
+        this.logger.debug("Invalidating the Kroki backend [{}].", backend.getId());
+        backend.invalidate();
+    }
+
+    /**
+     * Releases the backends that are not used by the given configurations, e.g. after a configuration change. The
+     * released backends are closed once their renders are done, and their Docker containers are stopped unless a
+     * configuration in use needs them.
+     *
+     * @param configurations all the configurations in use
+     * @since 1.2
+     */
+    public void retain(Collection<KrokiMacroConfiguration> configurations)
+    {
+        Set<String> containerNames = configurations.stream()
+            .filter(config -> config != null && StringUtils.isBlank(config.getKrokiHost()))
+            .map(KrokiMacroConfiguration::getKrokiDockerContainerName).collect(Collectors.toSet());
+        List<KrokiBackend> idleBackends;
+        List<String> unusedContainers;
+        synchronized (this) {
+            idleBackends = retireBackends(configurations);
+            unusedContainers = retireContainers(containerNames);
+        }
+
+        for (KrokiBackend backend : idleBackends) {
+            this.logger.debug("Closing the unused Kroki backend [{}].", backend.getId());
+            if (backend.getClient() != null) {
+                this.krokiService.closeQuietly(backend.getClient());
+            }
+        }
+        for (String containerId : unusedContainers) {
+            try {
+                this.containerManagerProvider.get().stopContainer(containerId);
+            } catch (Exception e) {
+                this.logger.warn("Failed to stop the unused Docker container [{}]. Root cause: [{}].", containerId,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
+    {
+        Exception toThrow = null;
+        String containerResponsible = "";
+        // Backends with different settings can share the same container.
+        Set<String> stoppedContainers = new HashSet<>();
+        List<KrokiBackend> allBackends = new ArrayList<>(this.backends.values());
+        allBackends.addAll(this.retiredBackends);
+        for (KrokiBackend backend : allBackends) {
+            if (backend.getClient() != null) {
+                this.krokiService.closeQuietly(backend.getClient());
+            }
+        }
+        List<String> containerIds = allBackends.stream().map(KrokiBackend::getContainerId).collect(Collectors.toList());
+        containerIds.addAll(this.retiredContainers.values());
+        for (String containerId : containerIds) {
+            if (containerId != null && stoppedContainers.add(containerId)) {
+                try {
+                    this.containerManagerProvider.get().stopContainer(containerId);
+                } catch (Exception e) {
+                    toThrow = e;
+                    containerResponsible = containerId;
+                }
+            }
+        }
+
+        if (toThrow != null) {
+            throw new ComponentLifecycleException(
+                String.format("Failed to stop the Docker container [%s] used for Kroki API.", containerResponsible),
+                toThrow);
+        }
+    }
+
+    /**
+     * @return the released backends that can be closed because they have no render in progress
+     */
+    private List<KrokiBackend> retireBackends(Collection<KrokiMacroConfiguration> configurations)
+    {
+        this.configurationBackends.keySet().retainAll(new HashSet<>(configurations));
+        Set<KrokiBackend> usedBackends = new HashSet<>(this.configurationBackends.values());
+        Iterator<KrokiBackend> backendIterator = this.backends.values().iterator();
+        while (backendIterator.hasNext()) {
+            KrokiBackend backend = backendIterator.next();
+            if (!usedBackends.contains(backend)) {
+                backendIterator.remove();
+                this.retiredBackends.add(backend);
+            }
+        }
+
+        List<KrokiBackend> idleBackends = new ArrayList<>();
+        Iterator<KrokiBackend> retiredIterator = this.retiredBackends.iterator();
+        while (retiredIterator.hasNext()) {
+            KrokiBackend backend = retiredIterator.next();
+            if (isIdle(backend)) {
+                retiredIterator.remove();
+                idleBackends.add(backend);
+                if (backend.getContainerId() != null) {
+                    this.retiredContainers.put(backend.getConfiguration().getKrokiDockerContainerName(),
+                        backend.getContainerId());
+                }
+            }
+        }
+        return idleBackends;
+    }
+
+    /**
+     * @return the ids of the containers that are not needed anymore
+     */
+    private List<String> retireContainers(Set<String> containerNames)
+    {
+        List<String> unusedContainers = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> containerIterator = this.retiredContainers.entrySet().iterator();
+        while (containerIterator.hasNext()) {
+            Map.Entry<String, String> container = containerIterator.next();
+            if (isContainerUsed(container.getValue())) {
+                // Stopped along with the backend that reused it.
+                containerIterator.remove();
+            } else if (!containerNames.contains(container.getKey())) {
+                containerIterator.remove();
+                unusedContainers.add(container.getValue());
+            }
+        }
+        return unusedContainers;
+    }
+
+    private KrokiBackend resolveBackend(KrokiMacroConfiguration config)
+    {
+        KrokiBackend backend = this.configurationBackends.get(config);
+        if (backend == null) {
+            // Synchronized so that the resolved backend is not released at the same time.
+            synchronized (this) {
+                backend = this.configurationBackends.computeIfAbsent(config,
+                    key -> this.backends.computeIfAbsent(getBackendKey(key),
+                        backendKey -> new KrokiBackend((String) backendKey.get(0))));
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * The settings that the backend is initialized from. The configuration name and the diagram types are not part
+     * of it, so that the configurations using the same Kroki API with the same settings share the same backend.
+     */
+    private List<Object> getBackendKey(KrokiMacroConfiguration config)
+    {
+        boolean docker = StringUtils.isBlank(config.getKrokiHost());
+        HealthCheckRequestParameters healthCheck = config.getHealthCheckRequest();
+        List<Object> healthCheckKey = null;
+        if (healthCheck != null) {
+            healthCheckKey = Arrays.asList(healthCheck.getPath(), healthCheck.getBody(), healthCheck.getHttpVerb(),
+                healthCheck.getAcceptedStatusCodes() == null ? null
+                    : new ArrayList<>(healthCheck.getAcceptedStatusCodes()));
+        }
+        return Arrays.asList(getBackendId(config), config.getKrokiPort(), docker ? config.getKrokiDockerImage() : null,
+            docker && config.isKrokiDockerContainerReusable(), config.getKrokiUseHTTP2(),
+            config.getKrokiMaxConnections(), config.getKrokiConnectTimeout(), config.getKrokiReadTimeout(),
+            config.getKrokiConnectionIdleTimeout(), config.getKrokiGetRequestMaxLength(),
+            config.getKrokiRequestCompressionThreshold(), config.getKrokiMaxConcurrentRenders(),
+            config.getKrokiRenderQueueSize(), config.getKrokiRenderQueueTimeout(), healthCheckKey);
+    }
+
+    private String getCacheNamespace(String backendId, KrokiMacroConfiguration config, String version)
+    {
+        StringBuilder namespace = new StringBuilder(backendId);
+        if (StringUtils.isBlank(config.getKrokiHost())) {
+            namespace.append(NAMESPACE_SEPARATOR).append(config.getKrokiDockerImage());
+        }
+        if (version != null) {
+            namespace.append(NAMESPACE_SEPARATOR).append(version);
+        }
+        return namespace.toString();
+    }
+
+    private String getBackendId(KrokiMacroConfiguration config)
+    {
+        String krokiHost = config.getKrokiHost();
+        if (StringUtils.isBlank(krokiHost)) {
+            return "docker:" + config.getKrokiDockerContainerName();
+        } else {
+            return krokiService.createRequestPath((config.getKrokiUseTLS() ? TLS : NO_TLS) + PROTOCOL_SEPARATOR,
+                krokiHost, config.getKrokiPort(), "");
+        }
+    }
+
+    private void initializeBackend(KrokiBackend backend, KrokiMacroConfiguration config)
+        throws InitializationException
+    {
+        this.logger.debug("Initializing the Kroki backend [{}].", backend.getId());
+
+        String httpProtocol = config.getKrokiUseTLS() ? TLS : NO_TLS;
+        String krokiHost = config.getKrokiHost();
+        String containerId = null;
+        if (StringUtils.isBlank(krokiHost)) {
+            httpProtocol = NO_TLS;
+            // A container we started ourselves can be reused even if the configuration doesn't allow reusing
+            // containers across restarts.
+            boolean reuse = config.isKrokiDockerContainerReusable()
+                || isContainerStarted(config.getKrokiDockerContainerName());
+            containerId = initializeKrokiDockerContainer(config, reuse);
+        }
+
+        KrokiClient client;
+        try {
+            if (containerId != null) {
+                krokiHost = this.containerManagerProvider.get().getIpAddress(containerId);
+            }
+            client = this.krokiService.connect(krokiHost, config, httpProtocol);
+        } catch (Exception e) {
+            throw new InitializationException("Failed to initialize the kroki remote debugging service.", e);
+        }
+
+        String version = getVersion(backend, client, containerId);
+
+        KrokiClient previousClient = backend.getClient();
+        String namespace = getCacheNamespace(backend.getId(), config, version);
+        backend.setReady(config, client, containerId, version, namespace);
+        if (previousClient != null) {
+            this.krokiService.closeQuietly(previousClient);
+        }
+        if (version != null) {
+            saveKnownNamespace(getCacheNamespace(backend.getId(), config, null), namespace);
+        }
+    }
+
+    private synchronized Properties getKnownNamespaces()
+    {
+        if (this.knownNamespaces == null) {
+            this.knownNamespaces = new Properties();
+            File file = getKnownNamespacesFile();
+            if (file != null && file.isFile()) {
+                try (InputStream input = Files.newInputStream(file.toPath())) {
+                    this.knownNamespaces.load(input);
+                } catch (IOException e) {
+                    this.logger.warn("Failed to load the Kroki cache namespaces from [{}]. Root cause: [{}].", file,
+                        ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+        }
+        return this.knownNamespaces;
+    }
+
+    private synchronized void saveKnownNamespace(String unversionedNamespace, String namespace)
+    {
+        Properties namespaces = getKnownNamespaces();
+        File file = getKnownNamespacesFile();
+        if (namespace.equals(namespaces.put(unversionedNamespace, namespace)) || file == null) {
+            return;
+        }
+
+        // Write the whole file next to the target and then move it, so that it's never seen partially written.
+        Path target = file.toPath();
+        try {
+            Files.createDirectories(target.getParent());
+            Path temporaryFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+                    namespaces.store(output, "The last known cache namespace of each Kroki backend.");
+                }
+                Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the Kroki cache namespaces to [{}]. Root cause: [{}].", target,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private File getKnownNamespacesFile()
+    {
+        File permanentDirectory = this.environment.getPermanentDirectory();
+        return permanentDirectory != null ? new File(permanentDirectory, NAMESPACES_FILE) : null;
+    }
+
+    private synchronized boolean isContainerStarted(String containerName)
+    {
+        return this.retiredContainers.containsKey(containerName)
+            || Stream.concat(this.backends.values().stream(), this.retiredBackends.stream())
+                .anyMatch(backend -> backend.getContainerId() != null
+                    && containerName.equals(backend.getConfiguration().getKrokiDockerContainerName()));
+    }
+
+    private boolean isContainerUsed(String containerId)
+    {
+        return Stream.concat(this.backends.values().stream(), this.retiredBackends.stream())
+            .anyMatch(backend -> containerId.equals(backend.getContainerId()));
+    }
+
+    private static boolean isIdle(KrokiBackend backend)
+    {
+        KrokiBulkhead bulkhead = backend.getBulkhead();
+        return bulkhead == null || bulkhead.getInFlight() == 0 && bulkhead.getQueueDepth() == 0;
+    }
+
+    private String getVersion(KrokiBackend backend, KrokiClient client, String containerId)
+    {
+        try {
+            if (containerId != null) {
+                // The image id changes whenever the image is updated, even if its tag stays the same.
+                return this.containerManagerProvider.get().getImageId(containerId);
+            } else {
+                return client.getVersion();
+            }
+        } catch (Exception e) {
+            this.logger.debug("Failed to get the version of the Kroki backend [{}]. Root cause: [{}].",
+                backend.getId(), ExceptionUtils.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    private String initializeKrokiDockerContainer(KrokiMacroConfiguration config, boolean reuse)
+        throws InitializationException
+    {
+        this.logger.debug("Initializing the Docker container running the Kroki API.");
+
+        ContainerManager containerManager = this.containerManagerProvider.get();
+        String imageName = config.getKrokiDockerImage();
+        String containerName = config.getKrokiDockerContainerName();
+        int port = config.getKrokiPort();
+
+        try {
+            String containerId = containerManager.maybeReuseContainerByName(containerName, reuse);
+            if (containerId == null) {
+                // The container doesn't exist, so we have to create it.
+                // But first we need to pull the image used to create the container, if we don't have it already.
+                if (!containerManager.isLocalImagePresent(imageName)) {
+                    containerManager.pullImage(imageName);
+                }
+
+                HostConfig hostConfig = containerManager.getHostConfig(port);
+
+                containerId = containerManager.createContainer(imageName, containerName, new ArrayList<>(), hostConfig);
+                containerManager.startContainer(containerId);
+            }
+            return containerId;
+        } catch (Exception e) {
+            throw new InitializationException("Failed to initialize the Docker container for diagram rendering.", e);
+        }
+    }
+}
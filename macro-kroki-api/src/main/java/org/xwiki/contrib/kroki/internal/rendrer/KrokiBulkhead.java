@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of diagrams rendered at the same time by a Kroki backend. The renders that exceed the limit wait
+ * in a bounded queue for a limited time and are rejected when the queue is full or when the wait times out, so that a
+ * burst of renders doesn't overload the backend and make all of them fail.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public class KrokiBulkhead
+{
+    private final int maxConcurrentRenders;
+
+    private final int queueSize;
+
+    private final long queueTimeout;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a new bulkhead.
+     *
+     * @param maxConcurrentRenders the maximum number of diagrams rendered at the same time
+     * @param queueSize the maximum number of renders waiting for a permit
+     * @param queueTimeout the maximum time, in milliseconds, a render waits for a permit
+     */
+    public KrokiBulkhead(int maxConcurrentRenders, int queueSize, long queueTimeout)
+    {
+        this.maxConcurrentRenders = Math.max(1, maxConcurrentRenders);
+        this.queueSize = Math.max(0, queueSize);
+        this.queueTimeout = Math.max(0, queueTimeout);
+        this.permits = new Semaphore(this.maxConcurrentRenders, true);
+    }
+
+    /**
+     * Waits for a render permit. Each successful call must be followed by a call to {@link #release()}.
+     *
+     * @throws RejectedExecutionException if the queue is full or if no permit became available in time
+     */
+    public void acquire()
+    {
+        if (this.permits.tryAcquire()) {
+            return;
+        }
+
+        if (this.queued.incrementAndGet() > this.queueSize) {
+            this.queued.decrementAndGet();
+            throw reject("The render queue is full.");
+        }
+
+        try {
+            if (!this.permits.tryAcquire(this.queueTimeout, TimeUnit.MILLISECONDS)) {
+                throw reject(String.format("No render slot became available after [%d] ms.", this.queueTimeout));
+            }
+        } catch (InterruptedException e) {
+            // Restore the interrupted state.
+            Thread.currentThread().interrupt();
+            throw reject("Interrupted while waiting for a render slot.");
+        } finally {
+            this.queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Releases a render permit obtained with {@link #acquire()}.
+     */
+    public void release()
+    {
+        this.permits.release();
+    }
+
+    /**
+     * @param maxConcurrentRenders the maximum number of diagrams rendered at the same time
+     * @param queueSize the maximum number of renders waiting for a permit
+     * @param queueTimeout the maximum time, in milliseconds, a render waits for a permit
+     * @return {@code true} if this bulkhead enforces the given limits, {@code false} otherwise
+     */
+    public boolean hasLimits(int maxConcurrentRenders, int queueSize, long queueTimeout)
+    {
+        return this.maxConcurrentRenders == Math.max(1, maxConcurrentRenders)
+            && this.queueSize == Math.max(0, queueSize) && this.queueTimeout == Math.max(0, queueTimeout);
+    }
+
+    /**
+     * @return the maximum number of diagrams rendered at the same time
+     */
+    public int getMaxConcurrentRenders()
+    {
+        return this.maxConcurrentRenders;
+    }
+
+    /**
+     * @return the maximum number of renders waiting for a permit
+     */
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+
+    /**
+     * @return the number of diagrams being rendered
+     */
+    public int getInFlight()
+    {
+        return this.maxConcurrentRenders - this.permits.availablePermits();
+    }
+
+    /**
+     * @return the number of renders waiting for a permit
+     */
+    public int getQueueDepth()
+    {
+        return this.queued.get();
+    }
+
+    /**
+     * @return the number of renders rejected since the bulkhead was created
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected.get();
+    }
+
+    private RejectedExecutionException reject(String reason)
+    {
+        this.rejected.incrementAndGet();
+        return new RejectedExecutionException("The Kroki backend is overloaded. " + reason);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.contrib.kroki.utils.HealthCheckRequestParameters;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Client for the Kroki API exposed by a single backend. Instances are immutable and thus can be shared by concurrent
+ * renders, while renders targeting different backends don't share any state.
+ *
+ * @version $Id$
+ */
+public class KrokiClient implements Closeable
+{
+    private static final String REQUEST_METHOD = "POST";
+
+    private static final String HTTP_GET = "GET";
+
+    private static final String URL_PATH_SEPARATOR = "/";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Upper bound of the deflate compression ratio of the diagram sources, used to skip the encoding of the sources
+     * that can't fit in a {@code GET} request. Deflate rarely goes beyond 10:1 on text, so this is conservative.
+     */
+    private static final int MAX_COMPRESSION_RATIO = 32;
+
+    private final String baseURL;
+
+    private final KrokiTransport transport;
+
+    private final int getRequestMaxLength;
+
+    /**
+     * Creates a client for the Kroki API available at the given URL.
+     *
+     * @param baseURL the URL of the Kroki API, without trailing slash (e.g. {@code http://localhost:8000})
+     * @param transport the transport used to send the requests
+     */
+    public KrokiClient(String baseURL, KrokiTransport transport)
+    {
+        this(baseURL, transport, 0);
+    }
+
+    /**
+     * Creates a client for the Kroki API available at the given URL.
+     *
+     * @param baseURL the URL of the Kroki API, without trailing slash (e.g. {@code http://localhost:8000})
+     * @param transport the transport used to send the requests
+     * @param getRequestMaxLength the maximum length of the encoded diagram sources that are sent with a {@code GET}
+     *     request, {@code 0} to always send {@code POST} requests
+     * @since 1.2
+     */
+    public KrokiClient(String baseURL, KrokiTransport transport, int getRequestMaxLength)
+    {
+        this.baseURL = baseURL;
+        this.transport = transport;
+        this.getRequestMaxLength = getRequestMaxLength;
+    }
+
+    /**
+     * @return the URL of the Kroki API
+     */
+    public String getBaseURL()
+    {
+        return baseURL;
+    }
+
+    /**
+     * Calls the Kroki API to generate a diagram from its text representation according to the used library.
+     *
+     * @param diagramType the diagram library to be used
+     * @param outputType the format of the generated image
+     * @param graphContent the content to be transformed
+     * @return the image's input stream
+     */
+    public InputStream renderDiagram(String diagramType, String outputType, String graphContent)
+    {
+        String url = baseURL + URL_PATH_SEPARATOR + diagramType + URL_PATH_SEPARATOR + outputType;
+        try {
+            if (mayFitInURL(graphContent)) {
+                // Small diagrams are requested with GET so that the responses can be cached by HTTP caches.
+                String encodedContent = KrokiEncoding.encodeForURL(graphContent);
+                if (encodedContent.length() <= this.getRequestMaxLength) {
+                    return this.transport.execute(HTTP_GET, url + URL_PATH_SEPARATOR + encodedContent, null);
+                }
+            }
+            return this.transport.execute(REQUEST_METHOD, url, graphContent);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean mayFitInURL(String graphContent)
+    {
+        // Base64 encodes 3 bytes with 4 characters. The source has at least as many UTF-8 bytes as characters.
+        return this.getRequestMaxLength > 0
+            && graphContent.length() <= (long) this.getRequestMaxLength * MAX_COMPRESSION_RATIO * 3 / 4;
+    }
+
+    /**
+     * Sends the health check request to the Kroki API.
+     *
+     * @param healthParams the health check request
+     * @return {@code true} if the Kroki API answered with one of the accepted status codes, {@code false} otherwise
+     * @throws IOException if the Kroki API can't be reached
+     */
+    public boolean isHealthy(HealthCheckRequestParameters healthParams) throws IOException
+    {
+        int statusCode = this.transport.getStatusCode(healthParams.getHttpVerb(), baseURL + healthParams.getPath(),
+            healthParams.getBody());
+        return healthParams.getAcceptedStatusCodes().contains(statusCode);
+    }
+
+    /**
+     * Asks the Kroki API for its version, using its health endpoint which also reports the versions of the companion
+     * services (e.g. Mermaid).
+     *
+     * @return the versions reported by the Kroki API, separated by commas, or {@code null} if no version was reported
+     * @throws IOException if the Kroki API can't be reached or doesn't answer with JSON
+     */
+    public String getVersion() throws IOException
+    {
+        JsonNode health;
+        try (InputStream response = this.transport.execute(HTTP_GET, baseURL + "/health", null)) {
+            health = OBJECT_MAPPER.readTree(response);
+        }
+
+        List<String> versions = new ArrayList<>();
+        for (JsonNode version : health.findValues("version")) {
+            String number = version.path("number").asText(null);
+            if (number != null) {
+                versions.add(number);
+            }
+        }
+        return versions.isEmpty() ? null : String.join(",", versions);
+    }
+
+    /**
+     * Releases the connections to the Kroki API.
+     *
+     * @throws IOException if closing the transport fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.transport.close();
+    }
+}
@@ -19,29 +19,36 @@
  */
 package org.xwiki.contrib.kroki.internal.rendrer;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
-import org.slf4j.Logger;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
 import org.xwiki.contrib.kroki.internal.configuration.KrokiConfiguration;
-import org.xwiki.contrib.kroki.internal.docker.ContainerManager;
 import org.xwiki.contrib.kroki.renderer.DiagramRenderer;
 
-import com.github.dockerjava.api.model.HostConfig;
-
 /**
  * Generates a diagram from text using the Kroki API running in Docker or provided as a service.
  *
@@ -51,59 +58,83 @@ import com.github.dockerjava.api.model.HostConfig;
 @Singleton
 public class KrokiDiagramRenderer implements DiagramRenderer, Initializable, Disposable
 {
-    private static final String TLS = "https";
-    private static final String NO_TLS = "http";
-    
-    private final Map<String, String> containerIds = new HashMap<>();
+    private static final String PREFIX = "contrib.krokiMacro.";
 
     @Inject
-    private KrokiService krokiService;
+    private KrokiConfiguration krokiConfiguration;
 
     @Inject
-    private Logger logger;
+    private KrokiBackendRegistry backendRegistry;
 
     @Inject
-    private KrokiConfiguration krokiConfiguration;
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
 
     /**
-     * We use a provider (i.e. lazy initialization) because we don't always need this component (e.g. when the diagram
-     * rendering is done through a hosted kroki api that is not managed by XWiki).
+     * Used to render diagrams asynchronously. The number of threads and the number of waiting renders are bounded, and
+     * when the queue is full the diagram is rendered by the calling thread.
      */
-    @Inject
-    private Provider<ContainerManager> containerManagerProvider;
+    private ExecutorService executor;
 
     @Override
     public void initialize() throws InitializationException
     {
+        int threads = this.configurationSource.getProperty(PREFIX + "renderThreads", 8);
+        int queueSize = this.configurationSource.getProperty(PREFIX + "renderQueueSize", 100);
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(queueSize),
+            new BasicThreadFactory.Builder().namingPattern("Kroki Diagram Renderer-%d").daemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        threadPool.allowCoreThreadTimeOut(true);
+        this.executor = threadPool;
+
         //plantuml is one of the diagram types supported by the default container
-        initializeKrokiComponent(krokiConfiguration.getConfiguration("plantuml"));
+        this.backendRegistry.getBackend(krokiConfiguration.getConfiguration("plantuml"));
     }
 
     @Override
     public void dispose() throws ComponentLifecycleException
     {
-        Exception toThrow = null;
-        String containerResponsible = "";
-        for (String containerId : containerIds.values()) {
-            if (containerId != null) {
-                try {
-                    this.containerManagerProvider.get().stopContainer(containerId);
-                } catch (Exception e) {
-                    toThrow = e;
-                    containerResponsible = containerId;
-                }
-            }
-        }
-
-        if (toThrow != null) {
-            throw new ComponentLifecycleException(
-                String.format("Failed to stop the Docker container [%s] used for Kroki API.", containerResponsible),
-                toThrow);
-        }
+        this.executor.shutdownNow();
     }
 
     @Override
     public InputStream render(String diagramType, String outputType, String diagramContent)
+    {
+        validate(diagramType, outputType, diagramContent);
+
+        return render(krokiConfiguration.getConfiguration(diagramType), diagramType, outputType, diagramContent);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> renderAsync(String diagramType, String outputType, String diagramContent)
+    {
+        validate(diagramType, outputType, diagramContent);
+
+        // The configuration is resolved on the calling thread because it may need the XWiki context.
+        KrokiMacroConfiguration diagramConfig = krokiConfiguration.getConfiguration(diagramType);
+        return CompletableFuture.supplyAsync(() -> render(diagramConfig, diagramType, outputType, diagramContent),
+            this.executor);
+    }
+
+    @Override
+    public String getCacheNamespace(String diagramType)
+    {
+        return this.backendRegistry.getCacheNamespace(krokiConfiguration.getConfiguration(diagramType));
+    }
+
+    @Override
+    public String getCacheNamespace(String diagramType, InputStream diagram)
+    {
+        if (diagram instanceof PermitInputStream) {
+            // The backend was initialized to render the diagram, so its version is known. This doesn't need the
+            // configuration, which can't be resolved without the XWiki context (e.g. after an asynchronous render).
+            return ((PermitInputStream) diagram).getCacheNamespace();
+        }
+        return getCacheNamespace(diagramType);
+    }
+
+    private void validate(String diagramType, String outputType, String diagramContent)
     {
         if (StringUtils.isBlank(diagramType)) {
             throw new IllegalArgumentException("The diagram library to use is missing");
@@ -112,70 +143,75 @@ public class KrokiDiagramRenderer implements DiagramRenderer, Initializable, Dis
         } else if (StringUtils.isBlank(diagramContent)) {
             throw new IllegalArgumentException("The content of the graph is missing");
         }
+    }
 
-        KrokiMacroConfiguration diagramConfig = krokiConfiguration.getConfiguration(diagramType);
+    private InputStream render(KrokiMacroConfiguration diagramConfig, String diagramType, String outputType,
+        String diagramContent)
+    {
+        KrokiBackend backend;
         try {
-            initializeKrokiComponent(diagramConfig);
+            backend = this.backendRegistry.getBackend(diagramConfig);
         } catch (InitializationException e) {
             throw new RuntimeException(e);
         }
 
-        return krokiService.renderDiagram(diagramType, outputType, diagramContent);
+        // The permit is held until the diagram is read, since the response body may still be streamed from Kroki.
+        KrokiBulkhead bulkhead = backend.getBulkhead();
+        bulkhead.acquire();
+        try {
+            return new PermitInputStream(backend.getClient().renderDiagram(diagramType, outputType, diagramContent),
+                bulkhead, backend.getCacheNamespace());
+        } catch (RuntimeException e) {
+            bulkhead.release();
+            if (isConnectionFailure(e)) {
+                // The backend is down (e.g. the Docker container was stopped) so check it again on the next render.
+                this.backendRegistry.invalidate(backend);
+            }
+            throw e;
+        }
     }
 
-    private String initializeKrokiDockerContainer(KrokiMacroConfiguration config) throws InitializationException
+    private boolean isConnectionFailure(Throwable e)
     {
-        this.logger.debug("Initializing the Docker container running the Kroki API.");
+        return ExceptionUtils.indexOfType(e, SocketException.class) >= 0
+            || ExceptionUtils.indexOfType(e, SocketTimeoutException.class) >= 0
+            || ExceptionUtils.indexOfType(e, UnknownHostException.class) >= 0;
+    }
 
-        ContainerManager containerManager = this.containerManagerProvider.get();
-        String imageName = config.getKrokiDockerImage();
-        String containerName = config.getKrokiDockerContainerName();
-        int port = config.getKrokiPort();
-        String configName = config.getClass().getName();
+    /**
+     * Releases the render permit when the diagram stream is closed, and remembers the backend that rendered the
+     * diagram.
+     */
+    private static final class PermitInputStream extends FilterInputStream
+    {
+        private final KrokiBulkhead bulkhead;
 
-        try {
-            this.containerIds.put(configName,
-                containerManager.maybeReuseContainerByName(containerName, config.isKrokiDockerContainerReusable()));
-            if (this.containerIds.get(configName) == null) {
-                // The container doesn't exist, so we have to create it.
-                // But first we need to pull the image used to create the container, if we don't have it already.
-                if (!containerManager.isLocalImagePresent(imageName)) {
-                    containerManager.pullImage(imageName);
-                }
+        private final String cacheNamespace;
 
-                HostConfig hostConfig = containerManager.getHostConfig(port);
+        private final AtomicBoolean released = new AtomicBoolean();
 
-                this.containerIds.put(configName,
-                    containerManager.createContainer(imageName, containerName, new ArrayList<>(), hostConfig));
-                containerManager.startContainer(this.containerIds.get(configName));
-            }
-            return containerManager.getIpAddress(this.containerIds.get(configName));
-        } catch (Exception e) {
-            throw new InitializationException("Failed to initialize the Docker container for diagram rendering.", e);
+        PermitInputStream(InputStream diagram, KrokiBulkhead bulkhead, String cacheNamespace)
+        {
+            super(diagram);
+            this.bulkhead = bulkhead;
+            this.cacheNamespace = cacheNamespace;
         }
-    }
 
-    private void initializeKrokiService(String host, KrokiMacroConfiguration config, String httpProtocol)
-        throws InitializationException
-    {
-        try {
-            this.krokiService.connect(host, config, httpProtocol);
-        } catch (Exception e) {
-            throw new InitializationException("Failed to initialize the kroki remote debugging service.", e);
+        String getCacheNamespace()
+        {
+            return this.cacheNamespace;
         }
-    }
 
-    private void initializeKrokiComponent(KrokiMacroConfiguration config) throws InitializationException
-    {
-        if (config == null) {
-            throw new RuntimeException("There is no configuration defined for this type of diagram");
-        }
-        String httpProtocol = config.getKrokiUseTLS() ? TLS : NO_TLS;
-        String krokiHost = config.getKrokiHost();
-        if (StringUtils.isBlank(krokiHost)) {
-            httpProtocol = NO_TLS;
-            krokiHost = initializeKrokiDockerContainer(config);
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                super.close();
+            } finally {
+                if (this.released.compareAndSet(false, true)) {
+                    this.bulkhead.release();
+                }
+            }
         }
-        initializeKrokiService(krokiHost, config, httpProtocol);
     }
 }
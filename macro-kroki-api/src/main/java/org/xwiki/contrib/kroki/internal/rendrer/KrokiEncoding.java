@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes the diagram sources sent to the Kroki API.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+final class KrokiEncoding
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private KrokiEncoding()
+    {
+    }
+
+    /**
+     * Encodes a diagram source the way the Kroki API expects it in the URL of a {@code GET} request.
+     *
+     * @param diagramContent the diagram source
+     * @return the diagram source compressed with deflate (zlib format) and encoded with base64url
+     */
+    static String encodeForURL(String diagramContent)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(diagramContent.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+            }
+            return Base64.getUrlEncoder().encodeToString(output.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param body the request body
+     * @return the request body compressed with gzip
+     */
+    static byte[] gzip(byte[] body)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 2);
+        try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+            gzipOutput.write(body);
+        } catch (IOException e) {
+            // Not thrown when writing to memory.
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+}
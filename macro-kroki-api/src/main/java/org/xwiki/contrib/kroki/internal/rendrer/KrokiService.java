@@ -20,11 +20,6 @@
 package org.xwiki.contrib.kroki.internal.rendrer;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
@@ -47,55 +42,51 @@ public class KrokiService
 {
     private static final int CONNECTION_TIMEOUT = 10;
 
-    private static final String REQUEST_METHOD = "POST";
+    private static final String PROTOCOL_SEPARATOR = "://";
 
-    private static final String URL_PATH_SEPARATOR = "/";
+    private static final String HTTPS = "https";
 
     @Inject
     private Logger logger;
 
-    private String host;
-
-    private Integer port;
-
-    private String httpProtocol;
-
     /**
-     * Sets up the paramaters to access a service.
+     * Creates a client for the Kroki API running on the specified host, once the API is available.
      *
      * @param host the host address
      * @param config the configuration of the docker container
      * @param httpProtocol http or https
+     * @return the client to use for rendering diagrams with the specified Kroki API
      * @throws TimeoutException if the service specified by the container does not respond in a period of time
      */
-    public void connect(String host, KrokiMacroConfiguration config, String httpProtocol) throws TimeoutException
+    public KrokiClient connect(String host, KrokiMacroConfiguration config, String httpProtocol)
+        throws TimeoutException
     {
-        this.host = host;
-        this.port = config.getKrokiPort();
-        this.httpProtocol = httpProtocol + "://";
-
-        this.logger.debug("Connecting to the Kroki server on [{}:{}].", host, port);
+        this.logger.debug("Connecting to the Kroki server on [{}:{}].", host, config.getKrokiPort());
 
-        waitForKrokiService(CONNECTION_TIMEOUT, config.getHealthCheckRequest());
+        KrokiClient client = new KrokiClient(
+            createRequestPath(httpProtocol + PROTOCOL_SEPARATOR, host, config.getKrokiPort(), ""),
+            createTransport(config, httpProtocol), config.getKrokiGetRequestMaxLength());
+        try {
+            waitForKrokiService(client, CONNECTION_TIMEOUT, config.getHealthCheckRequest());
+        } catch (TimeoutException e) {
+            closeQuietly(client);
+            throw e;
+        }
+        return client;
     }
 
     /**
-     * Calls the Kroki API to generate a diagram from its text representation according to the used library.
+     * Releases the connections held by the given client, logging any failure.
      *
-     * @param diagramType the diagram library to be used
-     * @param outputType the format of the generated image
-     * @param graphContent the content to be transformed
-     * @return the image's input stream
+     * @param client the client to close
      */
-    public InputStream renderDiagram(String diagramType, String outputType, String graphContent)
+    public void closeQuietly(KrokiClient client)
     {
         try {
-            String path = createRequestPath(httpProtocol, host, port,
-                URL_PATH_SEPARATOR + diagramType + URL_PATH_SEPARATOR +  outputType);
-            HttpURLConnection conn = createRequest(path, REQUEST_METHOD, graphContent);
-            return conn.getInputStream();
+            client.close();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            this.logger.warn("Failed to close the connections to the Kroki API [{}]. Root cause: [{}].",
+                client.getBaseURL(), ExceptionUtils.getRootCauseMessage(e));
         }
     }
 
@@ -113,12 +104,30 @@ public class KrokiService
         if (port != null) {
             return String.format("%s%s:%d%s", protocol, host, port, path);
         } else {
-            return String.format("%s%s%s", protocol, host, port, path);
+            return String.format("%s%s%s", protocol, host, path);
         }
     }
 
-    private void waitForKrokiService(int timeoutSeconds, HealthCheckRequestParameters healthParams)
-        throws TimeoutException
+    /**
+     * Creates the transport used to send requests to the Kroki API: HTTP/2 when it's enabled and the API is served
+     * over TLS, a pool of HTTP/1.1 connections otherwise.
+     *
+     * @param config the configuration of the backend
+     * @param httpProtocol http or https
+     * @return the transport to use for the Kroki API
+     * @since 1.2
+     */
+    public KrokiTransport createTransport(KrokiMacroConfiguration config, String httpProtocol)
+    {
+        if (HTTPS.equals(httpProtocol) && config.getKrokiUseHTTP2()) {
+            this.logger.debug("Using HTTP/2 to communicate with the Kroki server on [{}].", config.getKrokiHost());
+            return new Http2KrokiTransport(config);
+        }
+        return new PooledKrokiTransport(config);
+    }
+
+    private void waitForKrokiService(KrokiClient client, int timeoutSeconds,
+        HealthCheckRequestParameters healthParams) throws TimeoutException
     {
         this.logger.debug("Waiting [{}] seconds to get our first response from kroki.", timeoutSeconds);
 
@@ -127,11 +136,7 @@ public class KrokiService
 
         while (System.currentTimeMillis() - start < timeoutMillis) {
             try {
-                String url = createRequestPath(httpProtocol, host, port, "");
-                HttpURLConnection con =
-                    createRequest(url + healthParams.getPath(), healthParams.getHttpVerb(), healthParams.getBody());
-                int statusCode = con.getResponseCode();
-                if (healthParams.getAcceptedStatusCodes().contains(statusCode)) {
+                if (client.isHealthy(healthParams)) {
                     return;
                 }
             } catch (Exception ignored) {
@@ -151,29 +156,4 @@ public class KrokiService
         throw new TimeoutException(
             String.format("Timeout waiting for Kroki seervice to become available. Waited [%s] seconds.", waitTime));
     }
-
-    private HttpURLConnection createRequest(String path, String httpVerb, String body) throws IOException
-    {
-        URL connectionURL = new URL(path);
-        HttpURLConnection con = (HttpURLConnection) connectionURL.openConnection();
-        con.setRequestMethod(httpVerb);
-        con.setRequestProperty("Accept", "*/*");
-        con.setRequestProperty("User-Agent",
-            "Mozilla/5.0 (Windows NT 6.1; WOW64) "
-                + "AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
-        if (httpVerb.equals(REQUEST_METHOD) || httpVerb.equals("PUT")) {
-            byte[] out = body.getBytes(StandardCharsets.UTF_8);
-            con.setFixedLengthStreamingMode(out.length);
-            con.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
-            con.setDoOutput(true);
-            con.connect();
-            try (OutputStream os = con.getOutputStream()) {
-                os.write(out);
-            }
-        } else {
-            con.connect();
-        }
-
-        return con;
-    }
 }
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The HTTP transport used by a {@link KrokiClient} to send requests to the Kroki API. Implementations must be
+ * thread-safe because a transport is shared by all the renders targeting the same backend.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public interface KrokiTransport extends Closeable
+{
+    /**
+     * The user agent sent with each request.
+     */
+    String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) "
+        + "AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11";
+
+    /**
+     * Sends a request and returns the response body.
+     *
+     * @param httpVerb the HTTP method
+     * @param url the request URL
+     * @param body the request body, sent as UTF-8 text for {@code POST} and {@code PUT} requests
+     * @return the response body; the caller is responsible for closing it, and should read it fully so that the
+     *     underlying connection can be reused
+     * @throws IOException if the request fails or if the response status code is not a success code
+     */
+    InputStream execute(String httpVerb, String url, String body) throws IOException;
+
+    /**
+     * Sends a request and discards the response body.
+     *
+     * @param httpVerb the HTTP method
+     * @param url the request URL
+     * @param body the request body, sent as UTF-8 text for {@code POST} and {@code PUT} requests
+     * @return the response status code
+     * @throws IOException if the request fails
+     */
+    int getStatusCode(String httpVerb, String url, String body) throws IOException;
+}
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.rendrer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.io.HttpClientConnectionManager;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+
+/**
+ * HTTP/1.1 transport that keeps a pool of persistent (keep-alive) connections to the Kroki API, so that render
+ * requests don't pay the connection setup cost.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+public class PooledKrokiTransport implements KrokiTransport
+{
+    private static final ContentType TEXT_PLAIN = ContentType.create("text/plain", StandardCharsets.UTF_8);
+
+    private static final String GZIP = "gzip";
+
+    private final CloseableHttpClient httpClient;
+
+    private final int compressionThreshold;
+
+    /**
+     * Creates the connection pool based on the given configuration.
+     *
+     * @param config the configuration of the backend
+     */
+    public PooledKrokiTransport(KrokiMacroConfiguration config)
+    {
+        HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+            .setMaxConnTotal(config.getKrokiMaxConnections())
+            // All the connections of the pool target the same Kroki API.
+            .setMaxConnPerRoute(config.getKrokiMaxConnections())
+            .setDefaultSocketConfig(
+                SocketConfig.custom().setSoTimeout(Timeout.ofMilliseconds(config.getKrokiReadTimeout())).build())
+            .build();
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(Timeout.ofMilliseconds(config.getKrokiConnectTimeout()))
+            .setResponseTimeout(Timeout.ofMilliseconds(config.getKrokiReadTimeout()))
+            .build();
+
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setUserAgent(USER_AGENT)
+            .evictIdleConnections(TimeValue.ofMilliseconds(config.getKrokiConnectionIdleTimeout()))
+            .build();
+
+        this.compressionThreshold = config.getKrokiRequestCompressionThreshold();
+    }
+
+    @Override
+    public InputStream execute(String httpVerb, String url, String body) throws IOException
+    {
+        CloseableHttpResponse response = this.httpClient.execute(createRequest(httpVerb, url, body));
+        HttpEntity entity = response.getEntity();
+        if (response.getCode() >= 300) {
+            try {
+                EntityUtils.consume(entity);
+            } finally {
+                response.close();
+            }
+            throw new IOException(
+                String.format("Server returned HTTP response code: %d for URL: %s", response.getCode(), url));
+        } else if (entity == null) {
+            response.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        // The connection is released back to the pool when the content is fully read and closed.
+        return entity.getContent();
+    }
+
+    @Override
+    public int getStatusCode(String httpVerb, String url, String body) throws IOException
+    {
+        try (CloseableHttpResponse response = this.httpClient.execute(createRequest(httpVerb, url, body))) {
+            EntityUtils.consume(response.getEntity());
+            return response.getCode();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.httpClient.close();
+    }
+
+    private HttpUriRequestBase createRequest(String httpVerb, String url, String body)
+    {
+        HttpUriRequestBase request = new HttpUriRequestBase(httpVerb, URI.create(url));
+        request.setHeader("Accept", "*/*");
+        if (body != null && ("POST".equals(httpVerb) || "PUT".equals(httpVerb))) {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            if (this.compressionThreshold > 0 && bodyBytes.length >= this.compressionThreshold) {
+                request.setEntity(new ByteArrayEntity(KrokiEncoding.gzip(bodyBytes), TEXT_PLAIN, GZIP));
+            } else {
+                request.setEntity(new ByteArrayEntity(bodyBytes, TEXT_PLAIN));
+            }
+        }
+        return request;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.container.Container;
+import org.xwiki.container.Request;
+import org.xwiki.container.Response;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.resource.AbstractResourceReferenceHandler;
+import org.xwiki.resource.ResourceReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+import org.xwiki.resource.ResourceType;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+/**
+ * Adds HTTP caching headers to the rendered diagrams served as temporary resources, before letting the default
+ * temporary resource handler serve them. The diagram files are named after the diagram cache key so their content
+ * never changes and browsers and proxies can cache them indefinitely. The headers are added only for the diagrams
+ * that can be served, so that the missing or forbidden diagrams are not cached.
+ *
+ * @version $Id$
+ * @since 1.2
+ */
+@Component
+@Named("kroki/tmp")
+@Singleton
+public class KrokiTemporaryResourceReferenceHandler extends AbstractResourceReferenceHandler<ResourceType>
+{
+    private static final String MODULE_ID = "kroki";
+
+    /**
+     * One year, the maximum recommended value.
+     */
+    private static final int MAX_AGE = 31536000;
+
+    @Inject
+    private Container container;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Override
+    public int getPriority()
+    {
+        // Handle the request before the default temporary resource handler.
+        return 50;
+    }
+
+    @Override
+    public List<ResourceType> getSupportedResourceReferences()
+    {
+        return Collections.singletonList(TemporaryResourceReference.TYPE);
+    }
+
+    @Override
+    public void handle(ResourceReference reference, ResourceReferenceHandlerChain chain)
+        throws ResourceReferenceHandlerException
+    {
+        if (reference instanceof TemporaryResourceReference
+            && MODULE_ID.equals(((TemporaryResourceReference) reference).getModuleId()))
+        {
+            TemporaryResourceReference diagramReference = (TemporaryResourceReference) reference;
+            String etag = getETag(diagramReference);
+            HttpServletResponse response = getHttpServletResponse();
+            // The default handler responds with an error if the diagram can't be served, which must not be cached.
+            if (etag != null && response != null && canServe(diagramReference)) {
+                // Let shared caches (e.g. a reverse proxy) store the diagram only if it is public.
+                boolean isPublic = this.authorizationManager.hasAccess(Right.VIEW, null,
+                    diagramReference.getOwningEntityReference());
+                response.setHeader("Cache-Control",
+                    String.format("%s, max-age=%d, immutable", isPublic ? "public" : "private", MAX_AGE));
+                response.setHeader("ETag", etag);
+
+                HttpServletRequest request = getHttpServletRequest();
+                if (request != null && etag.equals(request.getHeader("If-None-Match"))) {
+                    // The browser already has this diagram.
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+        }
+
+        // Let the default temporary resource handler serve the diagram.
+        chain.handleNext(reference);
+    }
+
+    private boolean canServe(TemporaryResourceReference diagramReference)
+    {
+        if (!this.authorizationManager.hasAccess(Right.VIEW, diagramReference.getOwningEntityReference())) {
+            return false;
+        }
+
+        try {
+            File diagramFile = this.temporaryResourceStore.getTemporaryFile(diagramReference);
+            return diagramFile != null && diagramFile.isFile();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String getETag(TemporaryResourceReference diagramReference)
+    {
+        List<String> resourcePath = diagramReference.getResourcePath();
+        if (resourcePath.isEmpty()) {
+            return null;
+        }
+
+        // The diagram file is named after its cache key.
+        String contentHash = StringUtils.substringBeforeLast(resourcePath.get(resourcePath.size() - 1), ".");
+        return StringUtils.isEmpty(contentHash) ? null : '"' + contentHash + '"';
+    }
+
+    private HttpServletResponse getHttpServletResponse()
+    {
+        Response response = this.container.getResponse();
+        return response instanceof ServletResponse ? ((ServletResponse) response).getHttpServletResponse() : null;
+    }
+
+    private HttpServletRequest getHttpServletRequest()
+    {
+        Request request = this.container.getRequest();
+        return request instanceof ServletRequest ? ((ServletRequest) request).getHttpServletRequest() : null;
+    }
+}
@@ -20,6 +20,7 @@
 package org.xwiki.contrib.kroki.internal.services;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,7 +28,10 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.kroki.internal.configuration.KrokiConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackendRegistry;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
 /**
  * Service for obtaining the type of diagrams supported through velocity.
@@ -42,6 +46,12 @@ public class DiagramTypesService implements ScriptService
     @Inject
     private KrokiConfiguration krokiConfiguration;
 
+    @Inject
+    private KrokiBackendRegistry backendRegistry;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
     /**
      * @return list of diagram types supported that can be generated
      */
@@ -49,4 +59,38 @@ public class DiagramTypesService implements ScriptService
     {
         return krokiConfiguration.getDiagramTypes();
     }
+
+    /**
+     * Requires administration rights, since the metrics expose the Kroki backends.
+     *
+     * @return the number of renders in progress, waiting and rejected for each Kroki backend, along with the limits of
+     *     its render queue, or {@code null} if the current user is not allowed to see them
+     * @since 1.2
+     */
+    public Map<String, Map<String, Number>> renderQueues()
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return null;
+        }
+
+        return backendRegistry.getRenderQueueMetrics();
+    }
+
+    /**
+     * Reloads the configurations defined in wiki pages, reading again only the configuration pages that changed since
+     * they were last read. Requires administration rights.
+     *
+     * @return {@code true} if the configurations were reloaded, {@code false} if the current user is not allowed to
+     *     reload them
+     * @since 1.2
+     */
+    public boolean reloadConfigurations()
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return false;
+        }
+
+        krokiConfiguration.reload();
+        return true;
+    }
 }
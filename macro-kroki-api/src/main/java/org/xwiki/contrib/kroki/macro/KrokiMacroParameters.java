@@ -44,6 +44,8 @@ public class KrokiMacroParameters
 
     private String outputType = "svg";
 
+    private boolean inline;
+
     /**
      * @return the type of diagram
      */
@@ -82,4 +84,25 @@ public class KrokiMacroParameters
     {
         this.outputType = outputType;
     }
+
+    /**
+     * @return {@code true} if the SVG diagram is embedded in the page, {@code false} if it's linked as an image
+     * @since 1.2
+     */
+    public boolean isInline()
+    {
+        return inline;
+    }
+
+    /**
+     * @param inline whether to embed the SVG diagram in the page instead of linking it as an image; only the svg
+     *     output type can be embedded
+     * @since 1.2
+     */
+    @PropertyName("Inline")
+    @PropertyDescription("Embed the SVG diagram in the page instead of linking it as an image (svg output type only)")
+    public void setInline(boolean inline)
+    {
+        this.inline = inline;
+    }
 }
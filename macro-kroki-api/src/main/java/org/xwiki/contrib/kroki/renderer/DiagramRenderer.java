@@ -20,6 +20,7 @@
 package org.xwiki.contrib.kroki.renderer;
 
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
@@ -43,4 +44,57 @@ public interface DiagramRenderer
      * @return the file's input stream
      */
     InputStream render(String diagramType, String outputType, String diagramContent);
+
+    /**
+     * Renders a visual representation of a diagram from its textual description, without blocking the caller. This
+     * allows rendering multiple diagrams in parallel. The default implementation renders the diagram synchronously.
+     *
+     * @param diagramType type of diagram to be rendered
+     * @param outputType the file type of the resp
+     * @param diagramContent the text content to be transformed
+     * @return the future file's input stream
+     * @since 1.2
+     */
+    default CompletableFuture<InputStream> renderAsync(String diagramType, String outputType, String diagramContent)
+    {
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        try {
+            result.complete(render(diagramType, outputType, diagramContent));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Identifies the engine used to render the given type of diagram, including its version. Rendered diagrams can be
+     * reused only as long as the cache namespace of their type doesn't change. This is called for each diagram, even
+     * the cached ones, so it shouldn't wait for the engine (e.g. for it to start). The default implementation returns
+     * an empty string, meaning that the rendered diagrams never become stale.
+     *
+     * @param diagramType type of diagram to be rendered
+     * @return the cache namespace of the given type of diagram
+     * @since 1.2
+     */
+    default String getCacheNamespace(String diagramType)
+    {
+        return "";
+    }
+
+    /**
+     * Identifies the engine that rendered the given diagram, see {@link #getCacheNamespace(String)}. This can differ
+     * from the cache namespace returned before the diagram was rendered, e.g. when the engine was started to render the
+     * diagram and its version wasn't known before. The default implementation returns the current cache namespace of
+     * the given type of diagram.
+     *
+     * @param diagramType the type of the rendered diagram
+     * @param diagram the rendered diagram, as returned by {@link #render(String, String, String)} or
+     *     {@link #renderAsync(String, String, String)}
+     * @return the cache namespace of the rendered diagram
+     * @since 1.2
+     */
+    default String getCacheNamespace(String diagramType, InputStream diagram)
+    {
+        return getCacheNamespace(diagramType);
+    }
 }
@@ -21,6 +21,9 @@ package org.xwiki.contrib.kroki.utils;
 
 import java.util.List;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
 /**
  * Class used to store paramaters for testing the availability of a service.
  *
@@ -131,4 +134,26 @@ public class HealthCheckRequestParameters
     {
         this.acceptedStatusCodes = acceptedStatusCodes;
     }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (object == this) {
+            return true;
+        } else if (object == null || object.getClass() != getClass()) {
+            return false;
+        }
+
+        HealthCheckRequestParameters other = (HealthCheckRequestParameters) object;
+        return new EqualsBuilder().append(this.path, other.path).append(this.body, other.body)
+            .append(this.httpVerb, other.httpVerb).append(this.acceptedStatusCodes, other.acceptedStatusCodes)
+            .isEquals();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return new HashCodeBuilder().append(this.path).append(this.body).append(this.httpVerb)
+            .append(this.acceptedStatusCodes).toHashCode();
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.caching;
+
+import javax.inject.Named;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheKeyGenerator;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class DiagramCacheKeyGeneratorTest
+{
+    @InjectMockComponents
+    private DiagramCacheKeyGenerator cacheKeyGenerator;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.keyAlgorithm", "SHA-256"))
+            .thenReturn("SHA-256");
+    }
+
+    @Test
+    void getCacheKey()
+    {
+        assertEquals("18f0a024f11263eb95a9644ce3ecb76438a421803753b74e0a7458c6f1aaf6d5",
+            this.cacheKeyGenerator.getCacheKey("", "graphviz", "svg", "digraph G {Hello->World}"));
+        // The key doesn't depend on the previous computations.
+        assertEquals("18f0a024f11263eb95a9644ce3ecb76438a421803753b74e0a7458c6f1aaf6d5",
+            this.cacheKeyGenerator.getCacheKey("", "graphviz", "svg", "digraph G {Hello->World}"));
+    }
+
+    @Test
+    void getKeyLength()
+    {
+        assertEquals(64, this.cacheKeyGenerator.getKeyLength());
+    }
+
+    @Test
+    void getCacheKeyWithNonASCIIContent()
+    {
+        assertEquals("ce278c1d67549889e642df473b68eb59d3fe022a54c3953b9d44caae982e6fd2",
+            this.cacheKeyGenerator.getCacheKey("", "plantuml", "svg", "A -> B: \u00e9 \u00fc \u6f22\u5b57"));
+    }
+
+    @Test
+    void getCacheKeyWithLargeContent()
+    {
+        String content = StringUtils.repeat("A -> B: \u00e9\n", 100000);
+
+        assertEquals(this.cacheKeyGenerator.getKeyLength(),
+            this.cacheKeyGenerator.getCacheKey("", "plantuml", "svg", content).length());
+        assertNotEquals(this.cacheKeyGenerator.getCacheKey("", "plantuml", "svg", content),
+            this.cacheKeyGenerator.getCacheKey("", "plantuml", "svg", content + "A"));
+    }
+
+    @Test
+    void getCacheKeyWithShiftedFields()
+    {
+        assertNotEquals(this.cacheKeyGenerator.getCacheKey("", "ab", "c", "content"),
+            this.cacheKeyGenerator.getCacheKey("", "a", "bc", "content"));
+        assertNotEquals(this.cacheKeyGenerator.getCacheKey("", "graphviz", "svg", ""),
+            this.cacheKeyGenerator.getCacheKey("", "graphviz", "svg", null));
+    }
+
+    @Test
+    void getCacheKeyWithNamespace()
+    {
+        assertNotEquals(this.cacheKeyGenerator.getCacheKey("docker:kroki|sha256:1234", "graphviz", "svg", "content"),
+            this.cacheKeyGenerator.getCacheKey("docker:kroki|sha256:5678", "graphviz", "svg", "content"));
+    }
+}
@@ -19,11 +19,16 @@
  */
 package org.xwiki.contrib.kroki.caching;
 
+import javax.inject.Named;
+
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 import org.xwiki.test.annotation.BeforeComponent;
@@ -32,11 +37,14 @@ import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -49,6 +57,10 @@ class DiagramCacheManagerTest
     @MockComponent
     private CacheManager cacheManager;
 
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
     private Cache<TemporaryResourceReference> cache;
 
     private TemporaryResourceReference temp1;
@@ -61,6 +73,11 @@ class DiagramCacheManagerTest
     {
         temp1 = mock(TemporaryResourceReference.class);
 
+        when(this.configurationSource.getProperty(any(String.class), any(Object.class)))
+            .then(invocation -> invocation.getArgument(1));
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.capacity", 1000)).thenReturn(5000);
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.png.capacity", 5000)).thenReturn(200);
+
         cache = (Cache<TemporaryResourceReference>) mock(Cache.class);
 
         when(cache.get("temp1")).thenReturn(temp1);
@@ -72,15 +89,71 @@ class DiagramCacheManagerTest
     }
 
     @Test
-    void initializationTest() throws CacheException
+    void noCacheIsCreatedAtInitialization() throws CacheException
+    {
+        verify(this.cacheManager, never()).createNewLocalCache(any(CacheConfiguration.class));
+    }
+
+    @Test
+    void unsupportedOutputType() throws CacheException
     {
-        verify(this.cacheManager).createNewLocalCache(any(CacheConfiguration.class));
+        // The diagrams of the unsupported output types are not cached.
+        diagramCacheManager.addResourceToCache("../png", "temp1", temp1);
+        assertNull(diagramCacheManager.getResourceFromCache("../png", "temp1"));
+        diagramCacheManager.addResourceToCache(null, "temp1", temp1);
+        diagramCacheManager.removeResourceFromCache(null, "temp1");
+
+        verify(this.cacheManager, never()).createNewLocalCache(any(CacheConfiguration.class));
+    }
+
+    @Test
+    void outputTypeCaches() throws CacheException
+    {
+        when(this.cache.get("temp3")).thenReturn(temp1);
+
+        assertEquals(temp1, diagramCacheManager.getResourceFromCache("png", "temp3"));
+        diagramCacheManager.getResourceFromCache("png", "temp4");
+        diagramCacheManager.getResourceFromCache("svg", "temp5");
+
+        // One cache for each output type.
+        ArgumentCaptor<CacheConfiguration> configurationCaptor = ArgumentCaptor.forClass(CacheConfiguration.class);
+        verify(this.cacheManager, times(2)).createNewLocalCache(configurationCaptor.capture());
+
+        LRUEvictionConfiguration pngLRU = (LRUEvictionConfiguration) configurationCaptor.getAllValues().get(0)
+            .get(LRUEvictionConfiguration.CONFIGURATIONID);
+        assertEquals(200, pngLRU.getMaxEntries());
+        assertEquals(604800, pngLRU.getMaxIdle());
+        assertEquals(604800, pngLRU.getLifespan());
+        LRUEvictionConfiguration svgLRU = (LRUEvictionConfiguration) configurationCaptor.getAllValues().get(1)
+            .get(LRUEvictionConfiguration.CONFIGURATIONID);
+        assertEquals(5000, svgLRU.getMaxEntries());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void inlineDiagramCache() throws CacheException
+    {
+        Cache<String> inlineCache = (Cache<String>) mock(Cache.class);
+        when(inlineCache.get("temp1")).thenReturn("<svg/>");
+        doReturn(inlineCache).when(this.cacheManager).createNewLocalCache(any(CacheConfiguration.class));
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.inline.capacity", 5000)).thenReturn(300);
+
+        assertEquals("<svg/>", diagramCacheManager.getInlineDiagramFromCache("temp1"));
+        diagramCacheManager.addInlineDiagramToCache("temp2", "<svg></svg>");
+        verify(inlineCache).set("temp2", "<svg></svg>");
+
+        // The inline cache is created only once, the first time it's used.
+        ArgumentCaptor<CacheConfiguration> configurationCaptor = ArgumentCaptor.forClass(CacheConfiguration.class);
+        verify(this.cacheManager).createNewLocalCache(configurationCaptor.capture());
+        LRUEvictionConfiguration inlineLRU = (LRUEvictionConfiguration) configurationCaptor.getValue()
+            .get(LRUEvictionConfiguration.CONFIGURATIONID);
+        assertEquals(300, inlineLRU.getMaxEntries());
     }
 
     @Test
     void getResourceFromCache()
     {
-        assertEquals(temp1, diagramCacheManager.getResourceFromCache("temp1"));
+        assertEquals(temp1, diagramCacheManager.getResourceFromCache("svg", "temp1"));
         verify(this.cache).get("temp1");
     }
 
@@ -88,9 +161,17 @@ class DiagramCacheManagerTest
     void addResourceToCache()
     {
         TemporaryResourceReference temp = mock(TemporaryResourceReference.class);
-        diagramCacheManager.addResourceToCache("temp", temp);
+        diagramCacheManager.addResourceToCache("png", "temp", temp);
 
         verify(this.cache).set(eq("temp"), any(TemporaryResourceReference.class));
         assertEquals(temp, temp2);
     }
-}
\ No newline at end of file
+
+    @Test
+    void removeResourceFromCache()
+    {
+        diagramCacheManager.removeResourceFromCache("jpeg", "temp1");
+
+        verify(this.cache).remove("temp1");
+    }
+}
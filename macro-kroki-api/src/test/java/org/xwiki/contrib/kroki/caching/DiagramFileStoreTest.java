@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramFileStore;
+import org.xwiki.contrib.kroki.internal.caching.DiagramSink;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class DiagramFileStoreTest
+{
+    @InjectMockComponents
+    private DiagramFileStore diagramFileStore;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private File permanentDirectory;
+
+    private Path storeDirectory;
+
+    @BeforeComponent
+    void configure() throws IOException
+    {
+        this.permanentDirectory = Files.createTempDirectory("kroki").toFile();
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.configurationSource.getProperty(eq("contrib.krokiMacro.cache.persistentCapacity"), any(Long.class)))
+            .thenReturn(10L);
+
+        // Diagrams stored before the restart.
+        this.storeDirectory = this.permanentDirectory.toPath().resolve("kroki/diagrams");
+        Files.createDirectories(this.storeDirectory.resolve("ab"));
+        Files.write(this.storeDirectory.resolve("ab/abcd"), "abcd".getBytes(StandardCharsets.UTF_8));
+        Files.write(this.storeDirectory.resolve("ab/abcd123.tmp"), "ab".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException
+    {
+        FileUtils.deleteDirectory(this.permanentDirectory);
+    }
+
+    @Test
+    void loadStoredDiagrams() throws IOException
+    {
+        assertTrue(this.diagramFileStore.contains("abcd"));
+        assertEquals("abcd", read("abcd"));
+        // Incomplete writes are cleaned up.
+        assertFalse(Files.exists(this.storeDirectory.resolve("ab/abcd123.tmp")));
+    }
+
+    @Test
+    void storeDiagram() throws IOException
+    {
+        assertFalse(this.diagramFileStore.contains("cdef"));
+        assertNull(this.diagramFileStore.getDiagram("cdef"));
+
+        store("cdef");
+
+        assertTrue(this.diagramFileStore.contains("cdef"));
+        assertEquals("cdef", read("cdef"));
+        assertTrue(Files.exists(this.storeDirectory.resolve("cd/cdef")));
+    }
+
+    @Test
+    void openDiagram() throws IOException
+    {
+        // The diagram is already stored.
+        assertNull(this.diagramFileStore.openDiagram("abcd"));
+
+        try (DiagramSink diagramSink = this.diagramFileStore.openDiagram("cdef")) {
+            diagramSink.write("xcdx".getBytes(StandardCharsets.UTF_8), 1, 2);
+            diagramSink.write("ef".getBytes(StandardCharsets.UTF_8), 0, 2);
+            // The diagram is visible only once committed.
+            assertFalse(this.diagramFileStore.contains("cdef"));
+            assertFalse(Files.exists(this.storeDirectory.resolve("cd/cdef")));
+            diagramSink.commit();
+        }
+
+        assertTrue(this.diagramFileStore.contains("cdef"));
+        assertEquals("cdef", read("cdef"));
+    }
+
+    @Test
+    void openDiagramWithoutCommit() throws IOException
+    {
+        try (DiagramSink diagramSink = this.diagramFileStore.openDiagram("cdef")) {
+            diagramSink.write("cd".getBytes(StandardCharsets.UTF_8), 0, 2);
+        }
+
+        assertFalse(this.diagramFileStore.contains("cdef"));
+        try (Stream<Path> files = Files.list(this.storeDirectory.resolve("cd"))) {
+            // The partially written diagram is deleted.
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void evictLeastRecentlyUsedDiagrams() throws IOException
+    {
+        store("cdef");
+        // Use the oldest diagram so that it is not evicted.
+        read("abcd");
+        store("efgh");
+
+        assertTrue(this.diagramFileStore.contains("abcd"));
+        assertFalse(this.diagramFileStore.contains("cdef"));
+        assertFalse(Files.exists(this.storeDirectory.resolve("cd/cdef")));
+        assertTrue(this.diagramFileStore.contains("efgh"));
+    }
+
+    private void store(String contentHash) throws IOException
+    {
+        try (DiagramSink diagramSink = this.diagramFileStore.openDiagram(contentHash)) {
+            diagramSink.write(contentHash.getBytes(StandardCharsets.UTF_8), 0, contentHash.length());
+            diagramSink.commit();
+        }
+    }
+
+    private String read(String contentHash) throws IOException
+    {
+        try (InputStream diagram = this.diagramFileStore.getDiagram(contentHash)) {
+            return IOUtils.toString(diagram, StandardCharsets.UTF_8);
+        }
+    }
+}
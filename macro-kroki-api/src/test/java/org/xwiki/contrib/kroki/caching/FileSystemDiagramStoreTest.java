@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramSink;
+import org.xwiki.contrib.kroki.internal.caching.FileSystemDiagramStore;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class FileSystemDiagramStoreTest
+{
+    @InjectMockComponents
+    private FileSystemDiagramStore diagramStore;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private File sharedDirectory;
+
+    @BeforeComponent
+    void configure() throws IOException
+    {
+        this.sharedDirectory = Files.createTempDirectory("kroki-shared").toFile();
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.sharedStore.path"))
+            .thenReturn(this.sharedDirectory.getAbsolutePath());
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException
+    {
+        FileUtils.deleteDirectory(this.sharedDirectory);
+    }
+
+    @Test
+    void openDiagram() throws IOException
+    {
+        assertFalse(this.diagramStore.contains("abcd"));
+        assertNull(this.diagramStore.getDiagram("abcd"));
+
+        try (DiagramSink diagramSink = this.diagramStore.openDiagram("abcd")) {
+            diagramSink.write("<svg/>".getBytes(StandardCharsets.UTF_8), 0, 6);
+            assertFalse(this.diagramStore.contains("abcd"));
+            diagramSink.commit();
+        }
+
+        assertTrue(this.diagramStore.contains("abcd"));
+        assertTrue(new File(this.sharedDirectory, "ab/abcd").isFile());
+        try (InputStream storedDiagram = this.diagramStore.getDiagram("abcd")) {
+            assertEquals("<svg/>", IOUtils.toString(storedDiagram, StandardCharsets.UTF_8));
+        }
+        // The diagram is already stored.
+        assertNull(this.diagramStore.openDiagram("abcd"));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.caching;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.internal.caching.DiagramSink;
+import org.xwiki.contrib.kroki.internal.caching.TeeDiagramInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class TeeDiagramInputStreamTest
+{
+    private static final byte[] DIAGRAM = "<svg/>".getBytes(StandardCharsets.UTF_8);
+
+    private final DiagramSink firstSink = mock(DiagramSink.class);
+
+    private final DiagramSink secondSink = mock(DiagramSink.class);
+
+    @Test
+    void readCopiesToAllSinks() throws IOException
+    {
+        try (TeeDiagramInputStream diagram = new TeeDiagramInputStream(new ByteArrayInputStream(DIAGRAM), 0,
+            Arrays.asList(this.firstSink, this.secondSink))) {
+            assertEquals("<svg/>", IOUtils.toString(diagram, StandardCharsets.UTF_8));
+            assertEquals(6, diagram.getSize());
+            diagram.commit();
+        }
+
+        verify(this.firstSink).write(any(byte[].class), eq(0), eq(6));
+        verify(this.secondSink).write(any(byte[].class), eq(0), eq(6));
+        verify(this.firstSink).commit();
+        verify(this.secondSink).commit();
+        verify(this.firstSink).close();
+        verify(this.secondSink).close();
+    }
+
+    @Test
+    void commitPartiallyReadDiagram() throws IOException
+    {
+        try (TeeDiagramInputStream diagram = new TeeDiagramInputStream(new ByteArrayInputStream(DIAGRAM), 0,
+            Collections.singletonList(this.firstSink))) {
+            assertEquals('<', diagram.read());
+            diagram.commit();
+        }
+
+        verify(this.firstSink).write(any(byte[].class), eq(0), eq(1));
+        verify(this.firstSink, never()).commit();
+        verify(this.firstSink).close();
+    }
+
+    @Test
+    void skipCopiesToAllSinks() throws IOException
+    {
+        try (TeeDiagramInputStream diagram = new TeeDiagramInputStream(new ByteArrayInputStream(DIAGRAM), 0,
+            Collections.singletonList(this.firstSink))) {
+            assertEquals(6, diagram.skip(10));
+            assertEquals(-1, diagram.read());
+            diagram.commit();
+        }
+
+        verify(this.firstSink).write(any(byte[].class), eq(0), eq(6));
+        verify(this.firstSink).commit();
+    }
+
+    @Test
+    void readTooLargeDiagram() throws IOException
+    {
+        try (InputStream diagram = new TeeDiagramInputStream(new ByteArrayInputStream(DIAGRAM), 4,
+            Collections.singletonList(this.firstSink))) {
+            IOException exception = assertThrows(IOException.class, () -> IOUtils.toByteArray(diagram));
+            assertEquals("The rendered diagram exceeds the maximum size of [4] bytes.", exception.getMessage());
+        }
+
+        // The truncated diagram is not stored.
+        verify(this.firstSink, never()).write(any(byte[].class), anyInt(), anyInt());
+        verify(this.firstSink, never()).commit();
+        verify(this.firstSink).close();
+    }
+}
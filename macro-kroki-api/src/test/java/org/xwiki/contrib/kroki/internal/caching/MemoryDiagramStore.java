@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.caching;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+@Component
+@Named("memory")
+@Singleton
+public class MemoryDiagramStore implements DiagramStore
+{
+    private final Map<String, byte[]> diagrams = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean contains(String contentHash)
+    {
+        return this.diagrams.containsKey(contentHash);
+    }
+
+    @Override
+    public InputStream getDiagram(String contentHash)
+    {
+        byte[] diagram = this.diagrams.get(contentHash);
+        return diagram != null ? new ByteArrayInputStream(diagram) : null;
+    }
+
+    @Override
+    public DiagramSink openDiagram(String contentHash)
+    {
+        if (contains(contentHash)) {
+            return null;
+        }
+
+        ByteArrayOutputStream diagram = new ByteArrayOutputStream();
+        return new DiagramSink()
+        {
+            @Override
+            public void write(byte[] buffer, int offset, int length)
+            {
+                diagram.write(buffer, offset, length);
+            }
+
+            @Override
+            public void commit()
+            {
+                MemoryDiagramStore.this.diagrams.putIfAbsent(contentHash, diagram.toByteArray());
+            }
+
+            @Override
+            public void close()
+            {
+                // Nothing to release.
+            }
+        };
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.event.Event;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+@ComponentTest
+class KrokiConfigurationListenerTest
+{
+    @InjectMockComponents
+    private KrokiConfigurationListener listener;
+
+    @MockComponent
+    private KrokiConfiguration krokiConfiguration;
+
+    @Test
+    void getEvents()
+    {
+        assertEquals("KrokiConfigurationListener", this.listener.getName());
+        assertEquals(3, this.listener.getEvents().size());
+        assertTrue(this.listener.getEvents().get(0) instanceof XObjectAddedEvent);
+        assertTrue(this.listener.getEvents().get(1) instanceof XObjectUpdatedEvent);
+        assertTrue(this.listener.getEvents().get(2) instanceof XObjectDeletedEvent);
+    }
+
+    @Test
+    void onEvent()
+    {
+        XWikiDocument document = new XWikiDocument(new DocumentReference("wiki", "Kroki", "Mermaid"));
+
+        this.listener.onEvent(mock(Event.class), document, null);
+
+        verify(this.krokiConfiguration).onConfigurationDocumentChanged(document);
+    }
+}
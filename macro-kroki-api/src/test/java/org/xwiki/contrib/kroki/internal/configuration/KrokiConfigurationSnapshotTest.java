@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+class KrokiConfigurationSnapshotTest
+{
+    private final KrokiMacroConfiguration defaultConfiguration = mock(KrokiMacroConfiguration.class);
+
+    private final KrokiMacroConfiguration mermaidConfiguration = mock(KrokiMacroConfiguration.class);
+
+    private final KrokiMacroConfiguration wikiConfiguration = mock(KrokiMacroConfiguration.class);
+
+    @Test
+    void wikiConfigurationsOverrideFileConfigurations()
+    {
+        Map<String, KrokiMacroConfiguration> fileConfigurations = new HashMap<>();
+        fileConfigurations.put("graphviz", this.defaultConfiguration);
+        fileConfigurations.put("mermaid", this.mermaidConfiguration);
+
+        KrokiConfigurationSnapshot snapshot = new KrokiConfigurationSnapshot(fileConfigurations,
+            Collections.singletonList(Collections.singletonMap("mermaid", this.wikiConfiguration)));
+
+        assertSame(this.defaultConfiguration, snapshot.getConfiguration("graphviz"));
+        assertSame(this.wikiConfiguration, snapshot.getConfiguration("mermaid"));
+        assertNull(snapshot.getConfiguration("bpmn"));
+        assertEquals(Arrays.asList("graphviz", "mermaid"), snapshot.getDiagramTypes());
+    }
+
+    @Test
+    void subwikiConfigurationsOverrideMainWikiConfigurations()
+    {
+        KrokiMacroConfiguration subwikiConfiguration = mock(KrokiMacroConfiguration.class);
+        Map<String, KrokiMacroConfiguration> mainWikiConfigurations = new HashMap<>();
+        mainWikiConfigurations.put("mermaid", this.wikiConfiguration);
+        mainWikiConfigurations.put("bpmn", this.wikiConfiguration);
+
+        KrokiConfigurationSnapshot snapshot = new KrokiConfigurationSnapshot(Collections.emptyMap(),
+            Arrays.asList(mainWikiConfigurations, Collections.singletonMap("mermaid", subwikiConfiguration)));
+
+        assertSame(subwikiConfiguration, snapshot.getConfiguration("mermaid"));
+        assertSame(this.wikiConfiguration, snapshot.getConfiguration("bpmn"));
+        assertEquals(Arrays.asList("bpmn", "mermaid"), snapshot.getDiagramTypes());
+    }
+
+    @Test
+    void snapshotIsImmutable()
+    {
+        Map<String, KrokiMacroConfiguration> fileConfigurations = new HashMap<>();
+        fileConfigurations.put("graphviz", this.defaultConfiguration);
+
+        KrokiConfigurationSnapshot snapshot =
+            new KrokiConfigurationSnapshot(fileConfigurations, Collections.emptyList());
+        fileConfigurations.clear();
+
+        assertSame(this.defaultConfiguration, snapshot.getConfiguration("graphviz"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.getDiagramTypes().add("bpmn"));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackendRegistry;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class KrokiConfigurationTest
+{
+    private static final String MAIN_WIKI = "xwiki";
+
+    private static final String SUBWIKI = "subwiki";
+
+    @InjectMockComponents
+    private KrokiConfiguration krokiConfiguration;
+
+    @MockComponent
+    private Provider<XWikiContext> xcontextProvider;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @MockComponent
+    private KrokiBackendRegistry backendRegistry;
+
+    private XWikiContext xcontext;
+
+    private XWiki xwiki;
+
+    private String currentWiki = MAIN_WIKI;
+
+    private String queryWiki;
+
+    /**
+     * The configuration documents stored in the database, by wiki.
+     */
+    private final Map<String, List<XWikiDocument>> documents = new HashMap<>();
+
+    @BeforeComponent
+    void configure()
+    {
+        // Use the default values.
+        doAnswer(invocation -> invocation.getArgument(1)).when(this.configurationSource)
+            .getProperty(anyString(), any(Object.class));
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.xcontext = mock(XWikiContext.class);
+        this.xwiki = mock(XWiki.class);
+        when(this.xcontextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+        when(this.xcontext.getMainXWiki()).thenReturn(MAIN_WIKI);
+        when(this.xcontext.getWikiId()).thenAnswer(invocation -> this.currentWiki);
+
+        Query query = mock(Query.class);
+        when(this.queryManager.createQuery(anyString(), eq(Query.XWQL))).thenReturn(query);
+        when(query.setWiki(anyString())).thenAnswer(invocation -> {
+            this.queryWiki = invocation.getArgument(0);
+            return query;
+        });
+        when(query.execute()).thenAnswer(invocation -> {
+            List<Object[]> rows = new ArrayList<>();
+            for (XWikiDocument document : this.documents.getOrDefault(this.queryWiki, new ArrayList<>())) {
+                rows.add(new Object[] {"Kroki." + document.getDocumentReference().getName(), document.getDate()});
+            }
+            return rows;
+        });
+    }
+
+    @Test
+    void getFileConfiguration()
+    {
+        KrokiMacroConfiguration configuration = this.krokiConfiguration.getConfiguration("mermaid");
+        assertEquals("kroki-mermaid-container", configuration.getKrokiDockerContainerName());
+        assertEquals(8002, configuration.getKrokiPort());
+
+        assertSame(this.krokiConfiguration.getConfiguration("graphviz"),
+            this.krokiConfiguration.getConfiguration("plantuml"));
+        assertTrue(this.krokiConfiguration.getDiagramTypes().contains("bpmn"));
+    }
+
+    @Test
+    void wikiConfigurationTakesPrecedenceOverFileConfiguration() throws Exception
+    {
+        save(createDocument(MAIN_WIKI, "Mermaid", 1000, createConfigurationObject("mermaid, custom", "mermaid.com")));
+
+        assertEquals("mermaid.com", this.krokiConfiguration.getConfiguration("mermaid").getKrokiHost());
+        assertEquals("mermaid.com", this.krokiConfiguration.getConfiguration("custom").getKrokiHost());
+        assertTrue(this.krokiConfiguration.getDiagramTypes().contains("custom"));
+        // The diagram types that are not configured in the wiki use the bundled configuration.
+        assertEquals("kroki-diagram-generator",
+            this.krokiConfiguration.getConfiguration("graphviz").getKrokiDockerContainerName());
+    }
+
+    @Test
+    void addConfiguration() throws Exception
+    {
+        KrokiMacroConfiguration fileConfiguration = this.krokiConfiguration.getConfiguration("mermaid");
+
+        XWikiDocument document =
+            createDocument(MAIN_WIKI, "Mermaid", 1000, createConfigurationObject("mermaid", "mermaid.com"));
+        this.krokiConfiguration.onConfigurationDocumentChanged(document);
+
+        KrokiMacroConfiguration configuration = this.krokiConfiguration.getConfiguration("mermaid");
+        assertNotSame(fileConfiguration, configuration);
+        assertEquals("mermaid.com", configuration.getKrokiHost());
+    }
+
+    @Test
+    void updateConfiguration() throws Exception
+    {
+        save(createDocument(MAIN_WIKI, "Kroki", 1000, createConfigurationObject("mermaid", "mermaid.com"),
+            createConfigurationObject("bpmn", "bpmn.com")));
+        KrokiMacroConfiguration mermaidConfiguration = this.krokiConfiguration.getConfiguration("mermaid");
+        KrokiMacroConfiguration bpmnConfiguration = this.krokiConfiguration.getConfiguration("bpmn");
+
+        this.krokiConfiguration.onConfigurationDocumentChanged(createDocument(MAIN_WIKI, "Kroki", 2000,
+            createConfigurationObject("mermaid", "mermaid.org"), createConfigurationObject("bpmn", "bpmn.com")));
+
+        assertEquals("mermaid.org", this.krokiConfiguration.getConfiguration("mermaid").getKrokiHost());
+        // The configurations that didn't change are kept so that their backends are not initialized again.
+        assertSame(bpmnConfiguration, this.krokiConfiguration.getConfiguration("bpmn"));
+        // The backend of the previous configuration is released.
+        verify(this.backendRegistry).retain(argThat(configurations -> !configurations.contains(mermaidConfiguration)
+            && configurations.contains(bpmnConfiguration)
+            && configurations.contains(this.krokiConfiguration.getConfiguration("graphviz"))));
+    }
+
+    @Test
+    void deleteConfiguration() throws Exception
+    {
+        save(createDocument(MAIN_WIKI, "Mermaid", 1000, createConfigurationObject("mermaid, custom", "mermaid.com")));
+        assertEquals("mermaid.com", this.krokiConfiguration.getConfiguration("mermaid").getKrokiHost());
+
+        // Deleted objects leave null entries in the list.
+        this.krokiConfiguration
+            .onConfigurationDocumentChanged(createDocument(MAIN_WIKI, "Mermaid", 2000, (BaseObject) null));
+
+        assertEquals("kroki-mermaid-container",
+            this.krokiConfiguration.getConfiguration("mermaid").getKrokiDockerContainerName());
+        assertFalse(this.krokiConfiguration.getDiagramTypes().contains("custom"));
+    }
+
+    @Test
+    void duplicateEvent() throws Exception
+    {
+        // Load the configurations.
+        this.krokiConfiguration.getConfiguration("mermaid");
+
+        // A save modifying several configuration objects triggers an event for each of them.
+        XWikiDocument document = createDocument(MAIN_WIKI, "Kroki", 1000,
+            createConfigurationObject("mermaid", "mermaid.com"), createConfigurationObject("bpmn", "bpmn.com"));
+        this.krokiConfiguration.onConfigurationDocumentChanged(document);
+        KrokiMacroConfiguration configuration = this.krokiConfiguration.getConfiguration("mermaid");
+        this.krokiConfiguration.onConfigurationDocumentChanged(document);
+
+        // The document is read only once.
+        verify(document, times(1)).getXObjects(any(EntityReference.class));
+        assertSame(configuration, this.krokiConfiguration.getConfiguration("mermaid"));
+        assertEquals("bpmn.com", this.krokiConfiguration.getConfiguration("bpmn").getKrokiHost());
+    }
+
+    @Test
+    void mainWikiConfigurationReachesSubwikis() throws Exception
+    {
+        save(createDocument(SUBWIKI, "Bpmn", 1000, createConfigurationObject("bpmn", "bpmn.subwiki.com")));
+
+        this.currentWiki = SUBWIKI;
+        assertEquals("bpmn.subwiki.com", this.krokiConfiguration.getConfiguration("bpmn").getKrokiHost());
+        assertEquals("", this.krokiConfiguration.getConfiguration("mermaid").getKrokiHost());
+
+        // Configure the whole farm from the main wiki.
+        this.krokiConfiguration.onConfigurationDocumentChanged(createDocument(MAIN_WIKI, "Kroki", 2000,
+            createConfigurationObject("mermaid, bpmn", "farm.com")));
+
+        assertEquals("farm.com", this.krokiConfiguration.getConfiguration("mermaid").getKrokiHost());
+        // The subwiki configurations take precedence over the main wiki ones.
+        assertEquals("bpmn.subwiki.com", this.krokiConfiguration.getConfiguration("bpmn").getKrokiHost());
+
+        this.currentWiki = MAIN_WIKI;
+        assertEquals("farm.com", this.krokiConfiguration.getConfiguration("bpmn").getKrokiHost());
+    }
+
+    private void save(XWikiDocument document) throws Exception
+    {
+        DocumentReference documentReference = document.getDocumentReference();
+        String wiki = documentReference.getWikiReference().getName();
+        this.documents.computeIfAbsent(wiki, key -> new ArrayList<>()).add(document);
+        when(this.xwiki.getDocument(documentReference, this.xcontext)).thenReturn(document);
+    }
+
+    private XWikiDocument createDocument(String wiki, String name, long date, BaseObject... objects)
+    {
+        DocumentReference documentReference = new DocumentReference(wiki, "Kroki", name);
+        when(this.documentReferenceResolver.resolve("Kroki." + name, new WikiReference(wiki)))
+            .thenReturn(documentReference);
+
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(documentReference);
+        when(document.getDate()).thenReturn(new Date(date));
+        when(document.getXObjects(any(EntityReference.class))).thenReturn(new ArrayList<>(Arrays.asList(objects)));
+        return document;
+    }
+
+    private BaseObject createConfigurationObject(String diagramTypes, String host)
+    {
+        BaseObject object = mock(BaseObject.class);
+        when(object.getLargeStringValue("diagramTypes")).thenReturn(diagramTypes);
+        when(object.getStringValue("dockerImage")).thenReturn("yuzutech/kroki");
+        when(object.getStringValue("containerName")).thenReturn("kroki-" + host);
+        when(object.getStringValue("host")).thenReturn(host);
+        when(object.getLongValue("port")).thenReturn(443L);
+        when(object.getIntValue("useTLS")).thenReturn(1);
+        when(object.getStringValue("healthCheckPath")).thenReturn("/health");
+        when(object.getStringValue("healthCheckHTTPVerb")).thenReturn("GET");
+        when(object.getLargeStringValue("healthCheckBody")).thenReturn("");
+        when(object.getListValue("healthCheckAcceptedStatusCodes")).thenReturn(Arrays.asList("200"));
+        return object;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.utils.HealthCheckRequestParameters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+
+class KrokiContainerConfigurationTest
+{
+    private final ConfigurationSource configurationSource = mock(ConfigurationSource.class);
+
+    @BeforeEach
+    void configure()
+    {
+        // Use the default values.
+        doAnswer(invocation -> invocation.getArgument(1)).when(this.configurationSource)
+            .getProperty(anyString(), any(Object.class));
+    }
+
+    @Test
+    void equalsAndHashCode()
+    {
+        KrokiContainerConfiguration configuration = createConfiguration("kroki", null, 8000);
+        KrokiContainerConfiguration sameConfiguration = createConfiguration("kroki", null, 8000);
+
+        assertEquals(configuration, sameConfiguration);
+        assertEquals(configuration.hashCode(), sameConfiguration.hashCode());
+        assertNotEquals(configuration, createConfiguration("kroki", null, 8001));
+        assertNotEquals(configuration, createConfiguration("kroki-mermaid", null, 8000));
+        assertNotEquals(configuration, createConfiguration("kroki", "mermaid", 8000));
+    }
+
+    @Test
+    void propertiesAreResolvedOnce()
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacromermaidPort", 8000)).thenReturn(9000);
+        when(this.configurationSource.getProperty("contrib.krokiMacromermaidMaxConnections", 20)).thenReturn(4);
+
+        KrokiContainerConfiguration configuration = createConfiguration("kroki", "mermaid", 8000);
+        reset(this.configurationSource);
+
+        assertEquals("mermaid", configuration.getConfigName());
+        assertEquals(9000, configuration.getKrokiPort());
+        assertEquals("yuzutech/kroki", configuration.getKrokiDockerImage());
+        assertEquals(4, configuration.getKrokiMaxConnections());
+        // Defaults to the maximum number of connections.
+        assertEquals(4, configuration.getKrokiMaxConcurrentRenders());
+        assertEquals(100, configuration.getKrokiRenderQueueSize());
+    }
+
+    @Test
+    void healthCheckRequestParametersAreCopied()
+    {
+        HealthCheckRequestParameters healthCheck =
+            new HealthCheckRequestParameters("/health", "", "GET", new ArrayList<>(Arrays.asList(200, 204)));
+        KrokiContainerConfiguration configuration = new KrokiContainerConfiguration.Builder()
+            .setContainerName("kroki")
+            .setHealthCheckRequestParameters(healthCheck)
+            .setConfigurationSource(this.configurationSource)
+            .build();
+        int hashCode = configuration.hashCode();
+
+        healthCheck.setPath("/other");
+        healthCheck.getAcceptedStatusCodes().add(500);
+        configuration.getHealthCheckRequest().setHttpVerb("POST");
+        configuration.getHealthCheckRequest().getAcceptedStatusCodes().clear();
+
+        assertEquals(hashCode, configuration.hashCode());
+        assertEquals("/health", configuration.getHealthCheckRequest().getPath());
+        assertEquals("GET", configuration.getHealthCheckRequest().getHttpVerb());
+        assertEquals(Arrays.asList(200, 204), configuration.getHealthCheckRequest().getAcceptedStatusCodes());
+        assertSame(configuration, configuration.refresh());
+    }
+
+    @Test
+    void refresh()
+    {
+        KrokiContainerConfiguration configuration = createConfiguration("kroki", "mermaid", 8000);
+        assertSame(configuration, configuration.refresh());
+
+        when(this.configurationSource.getProperty("contrib.krokiMacromermaidHost", "")).thenReturn("kroki.example.com");
+        KrokiContainerConfiguration refreshed = configuration.refresh();
+
+        assertNotSame(configuration, refreshed);
+        assertEquals("kroki.example.com", refreshed.getKrokiHost());
+        assertEquals("", configuration.getKrokiHost());
+    }
+
+    private KrokiContainerConfiguration createConfiguration(String containerName, String configName, int port)
+    {
+        return new KrokiContainerConfiguration.Builder()
+            .setImage("yuzutech/kroki")
+            .setContainerName(containerName)
+            .setContainerReusable(true)
+            .setTLS(false)
+            .setHost("")
+            .setPort(port)
+            .setHealthCheckRequestParameters(
+                new HealthCheckRequestParameters("/health", "", "GET", Arrays.asList(200, 204)))
+            .setConfigurationSource(this.configurationSource)
+            .setConfigName(configName)
+            .build();
+    }
+}
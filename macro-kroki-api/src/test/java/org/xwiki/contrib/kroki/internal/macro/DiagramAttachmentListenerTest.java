@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class DiagramAttachmentListenerTest
+{
+    @InjectMockComponents
+    private DiagramAttachmentListener listener;
+
+    @MockComponent
+    private DiagramAttachmentManager diagramAttachmentManager;
+
+    @Test
+    void getEvents()
+    {
+        assertEquals("KrokiDiagramAttachmentListener", this.listener.getName());
+        assertEquals(2, this.listener.getEvents().size());
+        assertTrue(this.listener.getEvents().get(0) instanceof DocumentCreatingEvent);
+        assertTrue(this.listener.getEvents().get(1) instanceof DocumentUpdatingEvent);
+    }
+
+    @Test
+    void onEvent()
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        XWikiContext xcontext = mock(XWikiContext.class);
+        when(this.diagramAttachmentManager.isEnabled()).thenReturn(true);
+
+        this.listener.onEvent(mock(Event.class), document, xcontext);
+
+        verify(this.diagramAttachmentManager).updateDiagramAttachments(document, xcontext);
+    }
+
+    @Test
+    void onEventWhenDisabled()
+    {
+        this.listener.onEvent(mock(Event.class), mock(XWikiDocument.class), mock(XWikiContext.class));
+
+        verify(this.diagramAttachmentManager, never()).updateDiagramAttachments(any(XWikiDocument.class),
+            any(XWikiContext.class));
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheKeyGenerator;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class DiagramAttachmentManagerTest
+{
+    @InjectMockComponents
+    private DiagramAttachmentManager diagramAttachmentManager;
+
+    @MockComponent
+    private DiagramResourceManager diagramResourceManager;
+
+    @MockComponent
+    private InlineDiagramManager inlineDiagramManager;
+
+    @MockComponent
+    private DiagramCacheKeyGenerator cacheKeyGenerator;
+
+    @MockComponent
+    private Provider<XWikiContext> xcontextProvider;
+
+    @MockComponent
+    private ContextualAuthorizationManager authorization;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    private final DocumentReference documentReference = new DocumentReference("wiki", "Space", "Page");
+
+    private XWikiContext xcontext;
+
+    private XWiki xwiki;
+
+    private XWikiDocument document;
+
+    @BeforeEach
+    void configure() throws Exception
+    {
+        this.xcontext = mock(XWikiContext.class);
+        this.xwiki = mock(XWiki.class);
+        this.document = mock(XWikiDocument.class);
+        when(this.xcontextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+        when(this.xwiki.getDocument(this.documentReference, this.xcontext)).thenReturn(this.document);
+        when(this.document.getDocumentReference()).thenReturn(this.documentReference);
+        when(this.authorization.hasAccess(Right.EDIT, this.documentReference)).thenReturn(true);
+        when(this.inlineDiagramManager.supports("svg")).thenReturn(true);
+        when(this.cacheKeyGenerator.getKeyLength()).thenReturn(4);
+    }
+
+    @Test
+    void isEnabled()
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacro.persistence", "temporary"))
+            .thenReturn("temporary");
+        assertFalse(this.diagramAttachmentManager.isEnabled());
+
+        when(this.configurationSource.getProperty("contrib.krokiMacro.persistence", "temporary"))
+            .thenReturn("attachment");
+        assertTrue(this.diagramAttachmentManager.isEnabled());
+    }
+
+    @Test
+    void getExistingDiagramAttachment() throws Exception
+    {
+        when(this.document.getAttachment("kroki-1234.svg")).thenReturn(mock(XWikiAttachment.class));
+
+        AttachmentReference attachmentReference =
+            this.diagramAttachmentManager.getDiagramAttachment("svg", "1234", this.documentReference);
+
+        assertEquals(new AttachmentReference("kroki-1234.svg", this.documentReference), attachmentReference);
+        verify(this.diagramResourceManager, never()).getDiagramResource(anyString(), anyString(), anyString(),
+            anyString(), any(DocumentReference.class));
+    }
+
+    @Test
+    void getMissingDiagramAttachment() throws Exception
+    {
+        assertNull(this.diagramAttachmentManager.getDiagramAttachment("svg", "1234", this.documentReference));
+
+        // Viewing the document never modifies it.
+        verify(this.document, never()).setAttachment(anyString(), any(InputStream.class), any(XWikiContext.class));
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+    }
+
+    @Test
+    void getDiagramAttachmentForNewDocument() throws IOException
+    {
+        when(this.document.isNew()).thenReturn(true);
+        when(this.document.getAttachment("kroki-1234.svg")).thenReturn(mock(XWikiAttachment.class));
+
+        assertNull(this.diagramAttachmentManager.getDiagramAttachment("svg", "1234", this.documentReference));
+    }
+
+    @Test
+    void updateDiagramAttachments() throws Exception
+    {
+        MacroBlock newDiagram = createMacroBlock("graphviz", "png", false, "digraph {a -> b}");
+        MacroBlock attachedDiagram = createMacroBlock("mermaid", "svg", false, "graph TD; A-->B;");
+        MacroBlock inlineDiagram = createMacroBlock("mermaid", "svg", true, "graph TD; B-->C;");
+        when(this.document.getXDOM()).thenReturn(new XDOM(Arrays.asList(newDiagram, attachedDiagram, inlineDiagram)));
+        when(this.diagramResourceManager.getCacheKey("graphviz", "png", "digraph {a -> b}")).thenReturn("12ab");
+        when(this.diagramResourceManager.getCacheKey("mermaid", "svg", "graph TD; A-->B;")).thenReturn("34cd");
+
+        XWikiAttachment attachedDiagramAttachment = createAttachment("kroki-34cd.svg");
+        XWikiAttachment staleDiagramAttachment = createAttachment("kroki-56ef.svg");
+        XWikiAttachment otherAttachment = createAttachment("kroki-logo.png");
+        when(this.document.getAttachment("kroki-34cd.svg")).thenReturn(attachedDiagramAttachment);
+        when(this.document.getAttachmentList())
+            .thenReturn(Arrays.asList(attachedDiagramAttachment, staleDiagramAttachment, otherAttachment));
+
+        InputStream renderedDiagram = new ByteArrayInputStream(new byte[] {1, 2, 3});
+        when(this.diagramResourceManager.openRenderedDiagram("png", "12ab")).thenReturn(renderedDiagram);
+
+        this.diagramAttachmentManager.updateDiagramAttachments(this.document, this.xcontext);
+
+        verify(this.document).setAttachment("kroki-12ab.png", renderedDiagram, this.xcontext);
+        verify(this.document, never()).setAttachment(eq("kroki-34cd.svg"), any(InputStream.class),
+            any(XWikiContext.class));
+        verify(this.diagramResourceManager, never()).getCacheKey("mermaid", "svg", "graph TD; B-->C;");
+        verify(this.document).removeAttachment(staleDiagramAttachment);
+        verify(this.document, never()).removeAttachment(attachedDiagramAttachment);
+        verify(this.document, never()).removeAttachment(otherAttachment);
+    }
+
+    @Test
+    void updateDiagramAttachmentsKeepsUserAttachments() throws Exception
+    {
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.emptyList()));
+
+        XWikiAttachment staleDiagramAttachment = createAttachment("kroki-56ef.svg");
+        XWikiAttachment shortNameAttachment = createAttachment("kroki-1.png");
+        XWikiAttachment yearAttachment = createAttachment("kroki-2024.pdf");
+        XWikiAttachment longNameAttachment = createAttachment("kroki-56ef0.svg");
+        when(this.document.getAttachmentList()).thenReturn(
+            Arrays.asList(staleDiagramAttachment, shortNameAttachment, yearAttachment, longNameAttachment));
+
+        this.diagramAttachmentManager.updateDiagramAttachments(this.document, this.xcontext);
+
+        // Only the attachments named after a cache key hold rendered diagrams.
+        verify(this.document).removeAttachment(staleDiagramAttachment);
+        verify(this.document, never()).removeAttachment(shortNameAttachment);
+        verify(this.document, never()).removeAttachment(yearAttachment);
+        verify(this.document, never()).removeAttachment(longNameAttachment);
+    }
+
+    @Test
+    void updateDiagramAttachmentsWithoutEditRight() throws Exception
+    {
+        when(this.authorization.hasAccess(Right.EDIT, this.documentReference)).thenReturn(false);
+
+        this.diagramAttachmentManager.updateDiagramAttachments(this.document, this.xcontext);
+
+        verify(this.document, never()).getXDOM();
+        verify(this.document, never()).setAttachment(anyString(), any(InputStream.class), any(XWikiContext.class));
+        verify(this.document, never()).removeAttachment(any(XWikiAttachment.class));
+    }
+
+    @Test
+    void updateDiagramAttachmentsWithDiagramNotRendered() throws Exception
+    {
+        MacroBlock diagram = createMacroBlock("graphviz", "png", false, "digraph {a -> b}");
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.singletonList(diagram)));
+        when(this.diagramResourceManager.getCacheKey("graphviz", "png", "digraph {a -> b}")).thenReturn("12ab");
+
+        // The document is saved without waiting for the diagram to be rendered, and without the diagram, which is
+        // served as a temporary resource until the document is saved again.
+        this.diagramAttachmentManager.updateDiagramAttachments(this.document, this.xcontext);
+
+        verify(this.diagramResourceManager).prefetch("graphviz", "png", "digraph {a -> b}", this.documentReference);
+        verify(this.diagramResourceManager, never()).getDiagramResource(anyString(), anyString(), anyString(),
+            anyString(), any(DocumentReference.class));
+        verify(this.document, never()).setAttachment(anyString(), any(InputStream.class), any(XWikiContext.class));
+    }
+
+    @Test
+    void updateDiagramAttachmentsWhenReadingDiagramFails() throws Exception
+    {
+        MacroBlock diagram = createMacroBlock("graphviz", "png", false, "digraph {a -> b}");
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.singletonList(diagram)));
+        when(this.diagramResourceManager.getCacheKey("graphviz", "png", "digraph {a -> b}")).thenReturn("12ab");
+        when(this.diagramResourceManager.openRenderedDiagram("png", "12ab"))
+            .thenThrow(new IOException("Disk failure"));
+
+        // The document is saved without the diagram, which is served as a temporary resource.
+        this.diagramAttachmentManager.updateDiagramAttachments(this.document, this.xcontext);
+
+        verify(this.document, never()).setAttachment(anyString(), any(InputStream.class), any(XWikiContext.class));
+    }
+
+    private MacroBlock createMacroBlock(String diagramType, String outputType, boolean inline, String content)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("diagramType", diagramType);
+        parameters.put("outputType", outputType);
+        parameters.put("inline", String.valueOf(inline));
+        return new MacroBlock("kroki", parameters, content, false);
+    }
+
+    private XWikiAttachment createAttachment(String name)
+    {
+        XWikiAttachment attachment = mock(XWikiAttachment.class);
+        when(attachment.getFilename()).thenReturn(name);
+        return attachment;
+    }
+}
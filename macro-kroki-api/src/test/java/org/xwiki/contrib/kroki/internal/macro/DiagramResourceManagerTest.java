@@ -0,0 +1,480 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheKeyGenerator;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramFileStore;
+import org.xwiki.contrib.kroki.internal.caching.DiagramSink;
+import org.xwiki.contrib.kroki.internal.caching.DiagramStore;
+import org.xwiki.contrib.kroki.internal.caching.MemoryDiagramStore;
+import org.xwiki.contrib.kroki.renderer.DiagramRenderer;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+@ComponentList(MemoryDiagramStore.class)
+class DiagramResourceManagerTest
+{
+    @InjectMockComponents
+    private DiagramResourceManager diagramResourceManager;
+
+    @MockComponent
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @MockComponent
+    private DiagramRenderer diagramRenderer;
+
+    @MockComponent
+    private DiagramCacheManager cacheManager;
+
+    @MockComponent
+    private DiagramFileStore diagramFileStore;
+
+    @MockComponent
+    private DiagramCacheKeyGenerator cacheKeyGenerator;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    private final String content = "content";
+
+    private final String hash = "53f3f0e5430f905f2a6d7f8ca51870d0";
+
+    private DocumentReference docReference;
+
+    private InputStream contentStream;
+
+    private File tempDirectory;
+
+    private File tempFile;
+
+    @BeforeComponent
+    void configureSharedStore()
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacro.cache.sharedStore")).thenReturn("memory");
+        when(this.configurationSource.getProperty("contrib.krokiMacro.maxDiagramSize", 52428800L))
+            .thenReturn(52428800L);
+    }
+
+    @BeforeEach
+    void configure() throws IOException
+    {
+        this.docReference = mock(DocumentReference.class);
+        this.contentStream = spy(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+        when(this.diagramRenderer.getCacheNamespace("graphviz")).thenReturn("docker:kroki");
+        when(this.diagramRenderer.getCacheNamespace(eq("graphviz"), any(InputStream.class))).thenReturn("docker:kroki");
+        when(this.cacheKeyGenerator.getCacheKey("docker:kroki", "graphviz", "svg", this.content))
+            .thenReturn(this.hash);
+        when(this.diagramRenderer.render("graphviz", "svg", this.content)).thenReturn(this.contentStream);
+
+        this.tempDirectory = Files.createTempDirectory("kroki").toFile();
+        this.tempFile = new File(this.tempDirectory, "diagram.svg");
+        when(this.temporaryResourceStore.getTemporaryFile(any(TemporaryResourceReference.class)))
+            .thenReturn(this.tempFile);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException
+    {
+        FileUtils.deleteDirectory(this.tempDirectory);
+    }
+
+    @Test
+    void getDiagramResourceFromCache() throws IOException
+    {
+        Files.write(this.tempFile.toPath(), "<svg/>".getBytes(StandardCharsets.UTF_8));
+        TemporaryResourceReference resourceReference = mock(TemporaryResourceReference.class);
+        when(this.cacheManager.getResourceFromCache("svg", this.hash)).thenReturn(resourceReference);
+
+        assertFalse(this.diagramResourceManager.needsRendering("svg", this.hash));
+        assertSame(resourceReference, getDiagramResource());
+
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        verify(this.cacheManager, never()).addResourceToCache(any(String.class), any(String.class),
+            any(TemporaryResourceReference.class));
+    }
+
+    @Test
+    void getDiagramResourceWithDeletedTemporaryFile() throws IOException
+    {
+        TemporaryResourceReference resourceReference = mock(TemporaryResourceReference.class);
+        when(this.cacheManager.getResourceFromCache("svg", this.hash)).thenReturn(resourceReference);
+        when(this.temporaryResourceStore.getTemporaryFile(resourceReference))
+            .thenReturn(new File(this.tempFile.getParentFile(), "missing.svg"));
+
+        assertTrue(this.diagramResourceManager.needsRendering("svg", this.hash));
+        TemporaryResourceReference newResourceReference = getDiagramResource();
+
+        assertNotSame(resourceReference, newResourceReference);
+        verify(this.cacheManager, atLeastOnce()).removeResourceFromCache("svg", this.hash);
+        verify(this.diagramRenderer).render("graphviz", "svg", this.content);
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, newResourceReference);
+    }
+
+    @Test
+    void getDiagramResourceNotCached() throws IOException
+    {
+        assertTrue(this.diagramResourceManager.needsRendering("svg", this.hash));
+
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        assertEquals("kroki", resourceReference.getModuleId());
+        assertEquals("graphviz", resourceReference.getResourcePath().get(0));
+        // The file is named after the diagram content.
+        assertEquals(this.hash + ".svg", resourceReference.getResourcePath().get(1));
+        verify(this.diagramRenderer).render("graphviz", "svg", this.content);
+        assertEquals("<svg/>", readTemporaryFile());
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, resourceReference);
+        verify(this.contentStream, atLeastOnce()).close();
+    }
+
+    @Test
+    void failedRenderDoesNotLeaveTemporaryFile() throws IOException
+    {
+        InputStream failingStream = new FilterInputStream(new ByteArrayInputStream("<svg>".getBytes(
+            StandardCharsets.UTF_8)))
+        {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                int count = super.read(buffer, offset, length);
+                if (count < 0) {
+                    throw new IOException("Connection reset");
+                }
+                return count;
+            }
+        };
+        when(this.diagramRenderer.render("graphviz", "svg", this.content)).thenReturn(failingStream);
+
+        assertThrows(IOException.class, this::getDiagramResource);
+
+        // The partial diagram must not be served as the complete diagram.
+        assertFalse(this.tempFile.exists());
+        assertArrayEquals(new String[0], this.tempDirectory.list());
+        verify(this.cacheManager, never()).addResourceToCache(any(String.class), any(String.class),
+            any(TemporaryResourceReference.class));
+    }
+
+    @Test
+    void existingTemporaryFileIsNotRewritten() throws IOException
+    {
+        Files.write(this.tempFile.toPath(), "<svg></svg>".getBytes(StandardCharsets.UTF_8));
+        DiagramSink diagramSink = mock(DiagramSink.class);
+        when(this.diagramFileStore.openDiagram(this.hash)).thenReturn(diagramSink);
+
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        // The temporary file may be being served.
+        assertEquals("<svg></svg>", readTemporaryFile());
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, resourceReference);
+        verify(diagramSink).commit();
+    }
+
+    @Test
+    void getCacheKey()
+    {
+        assertEquals(this.hash, this.diagramResourceManager.getCacheKey("graphviz", "svg", this.content));
+
+        // There's no configuration for this type of diagram.
+        when(this.diagramRenderer.getCacheNamespace("unknown")).thenThrow(new RuntimeException());
+        when(this.cacheKeyGenerator.getCacheKey("", "unknown", "svg", this.content)).thenReturn("1234");
+        assertEquals("1234", this.diagramResourceManager.getCacheKey("unknown", "svg", this.content));
+    }
+
+    @Test
+    void getDiagramResourceStoredOnDisk() throws IOException
+    {
+        InputStream storedDiagram = spy(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+        when(this.diagramFileStore.contains(this.hash)).thenReturn(true);
+        when(this.diagramFileStore.getDiagram(this.hash)).thenReturn(storedDiagram);
+
+        assertFalse(this.diagramResourceManager.needsRendering("svg", this.hash));
+
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        assertEquals("<svg/>", readTemporaryFile());
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, resourceReference);
+        verify(this.diagramFileStore).openDiagram(this.hash);
+        verify(storedDiagram, atLeastOnce()).close();
+    }
+
+    @Test
+    void renderedDiagramIsStoredOnDisk() throws IOException
+    {
+        DiagramSink diagramSink = mock(DiagramSink.class);
+        when(this.diagramFileStore.openDiagram(this.hash)).thenReturn(diagramSink);
+
+        getDiagramResource();
+
+        verify(this.diagramFileStore).getDiagram(this.hash);
+        // The diagram is stored on disk while it's written to the temporary file.
+        verify(diagramSink).write(any(byte[].class), eq(0), eq(6));
+        verify(diagramSink).commit();
+        verify(diagramSink).close();
+    }
+
+    @Test
+    void renderedDiagramIsStoredUnderRenderingNamespace() throws Exception
+    {
+        // The version of the backend is discovered when it's initialized to render the diagram.
+        when(this.diagramRenderer.getCacheNamespace(eq("graphviz"), any(InputStream.class)))
+            .thenReturn("docker:kroki|sha256:1234");
+        when(this.cacheKeyGenerator.getCacheKey("docker:kroki|sha256:1234", "graphviz", "svg", this.content))
+            .thenReturn("5678");
+
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        verify(this.cacheManager).addResourceToCache("svg", "5678", resourceReference);
+        assertEquals(Arrays.asList("graphviz", "5678.svg"), resourceReference.getResourcePath());
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        assertTrue(sharedStore.contains("5678"));
+        assertFalse(sharedStore.contains(this.hash));
+    }
+
+    @Test
+    void getDiagramResourceFromSharedStore() throws Exception
+    {
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        try (DiagramSink sharedSink = sharedStore.openDiagram(this.hash)) {
+            sharedSink.write("<svg/>".getBytes(StandardCharsets.UTF_8), 0, 6);
+            sharedSink.commit();
+        }
+
+        DiagramSink diagramSink = mock(DiagramSink.class);
+        when(this.diagramFileStore.openDiagram(this.hash)).thenReturn(diagramSink);
+
+        assertFalse(this.diagramResourceManager.needsRendering("svg", this.hash));
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, resourceReference);
+        // The diagram is also kept on the local disk.
+        verify(diagramSink).commit();
+    }
+
+    @Test
+    void renderedDiagramIsShared() throws Exception
+    {
+        getDiagramResource();
+
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        assertTrue(sharedStore.contains(this.hash));
+        try (InputStream sharedDiagram = sharedStore.getDiagram(this.hash)) {
+            assertEquals("<svg/>", IOUtils.toString(sharedDiagram, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void getDiagramResourceConcurrently() throws Exception
+    {
+        CountDownLatch renderStarted = new CountDownLatch(1);
+        CountDownLatch renderAllowed = new CountDownLatch(1);
+        when(this.diagramRenderer.render("graphviz", "svg", this.content)).then(invocation -> {
+            renderStarted.countDown();
+            renderAllowed.await(10, TimeUnit.SECONDS);
+            return this.contentStream;
+        });
+        cacheStoredDiagrams();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<TemporaryResourceReference> first = executor.submit(this::getDiagramResource);
+            assertTrue(renderStarted.await(10, TimeUnit.SECONDS));
+            assertFalse(this.diagramResourceManager.needsRendering("svg", this.hash));
+
+            Future<TemporaryResourceReference> second = executor.submit(this::getDiagramResource);
+            renderAllowed.countDown();
+
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(this.diagramRenderer).render("graphviz", "svg", this.content);
+        verify(this.cacheManager).addResourceToCache(eq("svg"), eq(this.hash), any(TemporaryResourceReference.class));
+    }
+
+    @Test
+    void prefetch() throws IOException
+    {
+        CompletableFuture<InputStream> renderedDiagram = new CompletableFuture<>();
+        when(this.diagramRenderer.renderAsync("graphviz", "svg", this.content)).thenReturn(renderedDiagram);
+        cacheStoredDiagrams();
+
+        this.diagramResourceManager.prefetch("graphviz", "svg", this.content, this.docReference);
+        // The diagram is already being rendered.
+        this.diagramResourceManager.prefetch("graphviz", "svg", this.content, this.docReference);
+        assertFalse(this.diagramResourceManager.needsRendering("svg", this.hash));
+
+        renderedDiagram.complete(this.contentStream);
+
+        TemporaryResourceReference resourceReference = getDiagramResource();
+
+        verify(this.diagramRenderer).renderAsync("graphviz", "svg", this.content);
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        assertEquals("<svg/>", readTemporaryFile());
+        verify(this.cacheManager).addResourceToCache("svg", this.hash, resourceReference);
+    }
+
+    @Test
+    void openRenderedDiagram() throws Exception
+    {
+        assertNull(this.diagramResourceManager.openRenderedDiagram("svg", this.hash));
+
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        try (DiagramSink sharedSink = sharedStore.openDiagram(this.hash)) {
+            sharedSink.write("<svg/>".getBytes(StandardCharsets.UTF_8), 0, 6);
+            sharedSink.commit();
+        }
+        try (InputStream diagram = this.diagramResourceManager.openRenderedDiagram("svg", this.hash)) {
+            assertEquals("<svg/>", IOUtils.toString(diagram, StandardCharsets.UTF_8));
+        }
+
+        Files.write(this.tempFile.toPath(), "<svg>cached</svg>".getBytes(StandardCharsets.UTF_8));
+        when(this.cacheManager.getResourceFromCache("svg", this.hash))
+            .thenReturn(mock(TemporaryResourceReference.class));
+        try (InputStream diagram = this.diagramResourceManager.openRenderedDiagram("svg", this.hash)) {
+            assertEquals("<svg>cached</svg>", IOUtils.toString(diagram, StandardCharsets.UTF_8));
+        }
+
+        // Opening a diagram never renders it.
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        verify(this.diagramRenderer, never()).renderAsync(any(String.class), any(String.class), any(String.class));
+    }
+
+    @Test
+    void getDiagram() throws Exception
+    {
+        byte[] diagram = this.diagramResourceManager.getDiagram("graphviz", "svg", this.content, this.hash);
+
+        assertEquals("<svg/>", new String(diagram, StandardCharsets.UTF_8));
+        // The embedded diagrams don't use temporary resources but are still kept in the stores.
+        verify(this.temporaryResourceStore, never()).getTemporaryFile(any(TemporaryResourceReference.class));
+        verify(this.cacheManager, never()).addResourceToCache(any(String.class), any(String.class),
+            any(TemporaryResourceReference.class));
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        assertTrue(sharedStore.contains(this.hash));
+        verify(this.contentStream, atLeastOnce()).close();
+    }
+
+    @Test
+    void getDiagramStoredOnDisk() throws IOException
+    {
+        when(this.diagramFileStore.getDiagram(this.hash))
+            .thenReturn(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+
+        byte[] diagram = this.diagramResourceManager.getDiagram("graphviz", "svg", this.content, this.hash);
+
+        assertEquals("<svg/>", new String(diagram, StandardCharsets.UTF_8));
+        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
+        verify(this.temporaryResourceStore, never()).getTemporaryFile(any(TemporaryResourceReference.class));
+    }
+
+    @Test
+    void getDiagramTooLarge() throws Exception
+    {
+        assertNull(this.diagramResourceManager.getDiagram("graphviz", "svg", this.content, this.hash, 5));
+
+        // The diagram is kept in the stores so that it can be served as a temporary resource without being rendered
+        // again.
+        DiagramStore sharedStore = this.componentManager.getInstance(DiagramStore.class, "memory");
+        try (InputStream sharedDiagram = sharedStore.getDiagram(this.hash)) {
+            assertEquals("<svg/>", IOUtils.toString(sharedDiagram, StandardCharsets.UTF_8));
+        }
+        verify(this.temporaryResourceStore, never()).getTemporaryFile(any(TemporaryResourceReference.class));
+    }
+
+    private TemporaryResourceReference getDiagramResource() throws IOException
+    {
+        return this.diagramResourceManager.getDiagramResource("graphviz", "svg", this.content, this.hash,
+            this.docReference);
+    }
+
+    private String readTemporaryFile() throws IOException
+    {
+        return new String(Files.readAllBytes(this.tempFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private void cacheStoredDiagrams()
+    {
+        Map<String, TemporaryResourceReference> cache = new ConcurrentHashMap<>();
+        when(this.cacheManager.getResourceFromCache(eq("svg"), any(String.class)))
+            .then(invocation -> cache.get(invocation.<String>getArgument(1)));
+        doAnswer(invocation -> cache.put(invocation.getArgument(1), invocation.getArgument(2))).when(this.cacheManager)
+            .addResourceToCache(eq("svg"), any(String.class), any(TemporaryResourceReference.class));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ComponentTest
+class DiagramSVGSanitizerTest
+{
+    private static final String SVG_START = "<svg xmlns=\"http://www.w3.org/2000/svg\" "
+        + "xmlns:xlink=\"http://www.w3.org/1999/xlink\">";
+
+    private static final String SANITIZED_SVG_START = "<svg xmlns=\"http://www.w3.org/2000/svg\" "
+        + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" id=\"kroki-1234\">";
+
+    @InjectMockComponents
+    private DiagramSVGSanitizer svgSanitizer;
+
+    @Test
+    void sanitizeRemovesDeclarationAndDocumentType() throws IOException
+    {
+        String svg = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<!DOCTYPE svg PUBLIC \"-//W3C//DTD SVG 1.1//EN\" \"http://www.w3.org/Graphics/SVG/1.1/DTD/svg11.dtd\">\n"
+            + SVG_START + "<g><text>Hello</text></g></svg>";
+
+        assertEquals(SANITIZED_SVG_START + "<g><text>Hello</text></g></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeRemovesScripts() throws IOException
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+            + "onload=\"alert(1)\"><script>alert(2)</script><g onclick=\"alert(3)\"><text>Hello</text></g>"
+            + "<iframe src=\"https://www.xwiki.org\"/><x:unknown xmlns:x=\"urn:x\"/><metadata><x/></metadata></svg>";
+
+        assertEquals(SANITIZED_SVG_START + "<g><text>Hello</text></g></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeForeignObjects() throws IOException
+    {
+        String svg = SVG_START + "<foreignObject width=\"10\"><div xmlns=\"http://www.w3.org/1999/xhtml\" "
+            + "onclick=\"alert(1)\" class=\"label\"><span>Hello <b>World</b></span><iframe/><br/><i/>"
+            + "<svg xmlns=\"http://www.w3.org/2000/svg\"><script>alert(2)</script></svg></div>"
+            + "<text>Text</text></foreignObject></svg>";
+
+        // The HTML labels are kept.
+        assertEquals(SANITIZED_SVG_START + "<foreignObject width=\"10\"><div xmlns=\"http://www.w3.org/1999/xhtml\" "
+            + "class=\"label\"><span>Hello <b>World</b></span><br/><i></i></div></foreignObject></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeStyles() throws IOException
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" id=\"diagram\"><style>"
+            + "@import url(https://www.xwiki.org/a.css);"
+            + "text{fill:red;background:url(https://www.xwiki.org/a.png)}"
+            + "@font-face{font-family:x;src:url(https://www.xwiki.org/a.woff)}svg .a, :root b{fill:blue}"
+            + "@media print{g{display:none}}</style>"
+            + "<g style=\"fill:red;background-image:url(javascript:alert(1))\" fill=\"url(https://www.xwiki.org/#a)\" "
+            + "stroke=\"url(#gradient)\"><text>Hello</text></g></svg>";
+
+        // The style sheets are restricted to the diagram.
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" id=\"kroki-1234\"><style>#kroki-1234 text{fill:red}"
+            + "#kroki-1234 .a,#kroki-1234 b{fill:blue}@media print{#kroki-1234 g{display:none}}</style>"
+            + "<g stroke=\"url(#gradient)\" style=\"fill:red\"><text>Hello</text></g></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeStylesThatCantBeParsed() throws IOException
+    {
+        String svg = SVG_START + "<style>text{content:\"}\"} body{color:red}</style><text>Hello</text></svg>";
+
+        assertEquals(SANITIZED_SVG_START + "<text>Hello</text></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeStylesWithoutDiagramIdentifier() throws IOException
+    {
+        String sanitizedSVG = this.svgSanitizer.sanitize(
+            (SVG_START + "<style>text{fill:red}</style><text>Hello</text></svg>").getBytes(StandardCharsets.UTF_8),
+            null);
+
+        // An identifier is generated to restrict the style sheet to the diagram.
+        assertTrue(sanitizedSVG.matches(".*id=\"(kroki-[0-9a-f]{8})\"><style>#\\1 text\\{fill:red}</style>.*"));
+    }
+
+    @Test
+    void sanitizeIdentifiers() throws IOException
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+            + "id=\"container\" aria-labelledby=\"title other\"><title id=\"title\">Title</title>"
+            + "<style>#container .a{fill:url(#gradient)}#marker path{fill:#fff}</style>"
+            + "<linearGradient id=\"gradient\"/><marker id=\"marker\"><path d=\"M 0 0\"/></marker>"
+            + "<path marker-end=\"url(#marker)\" style=\"fill:url('#gradient')\" d=\"M 0 0\"/>"
+            + "<use xlink:href=\"#marker\"/><use href=\"#other\"/></svg>";
+
+        // The identifiers are specific to the diagram so that they don't conflict with those of the other diagrams.
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+            + "aria-labelledby=\"kroki-1234-title other\" id=\"kroki-1234\"><title id=\"kroki-1234-title\">"
+            + "Title</title><style>#kroki-1234 .a{fill:url(#kroki-1234-gradient)}"
+            + "#kroki-1234 #kroki-1234-marker path{fill:#fff}</style><linearGradient id=\"kroki-1234-gradient\"/>"
+            + "<marker id=\"kroki-1234-marker\"><path d=\"M 0 0\"/></marker>"
+            + "<path d=\"M 0 0\" marker-end=\"url(#kroki-1234-marker)\" "
+            + "style=\"fill:url('#kroki-1234-gradient')\"/><use xlink:href=\"#kroki-1234-marker\"/>"
+            + "<use href=\"#other\"/></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeMermaidDiagram() throws IOException
+    {
+        String svg;
+        try (InputStream mermaid = getClass().getResourceAsStream("/mermaid.svg")) {
+            svg = IOUtils.toString(mermaid, StandardCharsets.UTF_8);
+        }
+
+        String sanitizedSVG = sanitize(svg);
+
+        // The style sheet is already restricted to the diagram, but all the diagrams rendered by Mermaid use the same
+        // identifiers.
+        assertTrue(sanitizedSVG.contains("<style>#kroki-1234{font-family:\"trebuchet ms\",verdana,arial,sans-serif;"));
+        assertTrue(sanitizedSVG.contains("@keyframes dash{to{stroke-dashoffset:0;}}"));
+        assertTrue(sanitizedSVG.contains("id=\"kroki-1234-container_flowchart-pointEnd\""));
+        assertTrue(sanitizedSVG.contains("marker-end=\"url(#kroki-1234-container_flowchart-pointEnd)\""));
+        // The node labels are HTML.
+        assertTrue(sanitizedSVG.contains("<foreignObject height=\"19\" width=\"79.390625\"><div "
+            + "xmlns=\"http://www.w3.org/1999/xhtml\" style=\"display: inline-block; white-space: nowrap;\">"
+            + "<span class=\"nodeLabel\">Sanitize <b>SVG</b></span></div></foreignObject>"));
+        // The empty HTML elements are closed with an end tag because the HTML parsers ignore the self-closing syntax
+        // outside of the SVG elements.
+        assertTrue(sanitizedSVG.contains("<span class=\"edgeLabel\"></span>"));
+        assertFalse(sanitizedSVG.contains("<span class=\"edgeLabel\"/>"));
+        assertTrue(sanitizedSVG.contains("<g class=\"clusters\"/>"));
+        // Nothing is removed from a sanitized diagram.
+        assertEquals(sanitizedSVG, sanitize(sanitizedSVG));
+    }
+
+    @Test
+    void sanitizeLinks() throws IOException
+    {
+        String svg = SVG_START + "<a xlink:href=\"java&#x09;script:alert(1)\"><text>Hello</text></a>"
+            + "<a href=\"https://www.xwiki.org\"><text>XWiki</text></a>"
+            + "<set attributeName=\"xlink:href\" to=\"javascript:alert(2)\"/>"
+            + "<animate attributeName=\"opacity\" values=\"0;1\"/></svg>";
+
+        assertEquals(SANITIZED_SVG_START + "<a><text>Hello</text></a>"
+            + "<a href=\"https://www.xwiki.org\"><text>XWiki</text></a>"
+            + "<animate attributeName=\"opacity\" values=\"0;1\"/></svg>", sanitize(svg));
+    }
+
+    @Test
+    void sanitizeInvalidDiagram()
+    {
+        assertThrows(IOException.class, () -> sanitize("<svg><g></svg>"));
+        assertThrows(IOException.class, () -> sanitize("<html><body/></html>"));
+    }
+
+    private String sanitize(String svg) throws IOException
+    {
+        return this.svgSanitizer.sanitize(svg.getBytes(StandardCharsets.UTF_8), "1234");
+    }
+}
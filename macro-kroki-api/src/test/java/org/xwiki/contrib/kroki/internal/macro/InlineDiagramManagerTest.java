@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.macro;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class InlineDiagramManagerTest
+{
+    private static final String SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\"/>";
+
+    @InjectMockComponents
+    private InlineDiagramManager inlineDiagramManager;
+
+    @MockComponent
+    private DiagramResourceManager diagramResourceManager;
+
+    @MockComponent
+    private DiagramCacheManager cacheManager;
+
+    @MockComponent
+    private DiagramSVGSanitizer svgSanitizer;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    @BeforeEach
+    void configure()
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacro.dataURIMaxSize", 0)).thenReturn(4);
+    }
+
+    @Test
+    void supports()
+    {
+        assertTrue(this.inlineDiagramManager.supports("svg"));
+        assertFalse(this.inlineDiagramManager.supports("png"));
+    }
+
+    @Test
+    void getCachedInlineDiagram() throws IOException
+    {
+        when(this.cacheManager.getInlineDiagramFromCache("1234")).thenReturn(SVG);
+
+        assertEquals(SVG, this.inlineDiagramManager.getInlineDiagram("graphviz", "content", "1234"));
+        verify(this.diagramResourceManager, never()).getDiagram(any(), any(), any(), any());
+    }
+
+    @Test
+    void getInlineDiagram() throws IOException
+    {
+        byte[] diagram = "<svg xmlns=\"http://www.w3.org/2000/svg\" onload=\"alert(1)\"/>"
+            .getBytes(StandardCharsets.UTF_8);
+        // The diagram is read in memory, without creating a temporary resource.
+        when(this.diagramResourceManager.getDiagram("graphviz", "svg", "content", "1234")).thenReturn(diagram);
+        when(this.svgSanitizer.sanitize(diagram, "1234")).thenReturn(SVG);
+
+        assertEquals(SVG, this.inlineDiagramManager.getInlineDiagram("graphviz", "content", "1234"));
+        verify(this.svgSanitizer).sanitize(diagram, "1234");
+        verify(this.cacheManager).addInlineDiagramToCache("1234", SVG);
+        verify(this.diagramResourceManager, never()).getDiagramResource(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void getDataURIDisabled() throws IOException
+    {
+        when(this.configurationSource.getProperty("contrib.krokiMacro.dataURIMaxSize", 0)).thenReturn(0);
+
+        assertNull(this.inlineDiagramManager.getDataURI("graphviz", "png", "content", "5678"));
+        verify(this.diagramResourceManager, never()).getDiagram(any(), any(), any(), any(), anyLong());
+    }
+
+    @Test
+    void getDataURIForSVG() throws IOException
+    {
+        assertNull(this.inlineDiagramManager.getDataURI("graphviz", "svg", "content", "1234"));
+        verify(this.diagramResourceManager, never()).getDiagram(any(), any(), any(), any(), anyLong());
+    }
+
+    @Test
+    void getDataURIForSmallDiagram() throws IOException
+    {
+        when(this.diagramResourceManager.getDiagram("graphviz", "png", "content", "5678", 4))
+            .thenReturn(new byte[] { 1, 2, 3 });
+
+        assertEquals("data:image/png;base64,AQID",
+            this.inlineDiagramManager.getDataURI("graphviz", "png", "content", "5678"));
+        verify(this.cacheManager).addInlineDiagramToCache("5678", "data:image/png;base64,AQID");
+    }
+
+    @Test
+    void getDataURIForLargeDiagram() throws IOException
+    {
+        // The diagram is served as a temporary resource.
+        when(this.diagramResourceManager.getDiagram("graphviz", "png", "content", "5678", 4)).thenReturn(null);
+
+        assertNull(this.inlineDiagramManager.getDataURI("graphviz", "png", "content", "5678"));
+        verify(this.cacheManager).addInlineDiagramToCache("5678", "");
+    }
+
+    @Test
+    void getDataURIForLargeCachedDiagram() throws IOException
+    {
+        when(this.cacheManager.getInlineDiagramFromCache("5678")).thenReturn("");
+
+        assertNull(this.inlineDiagramManager.getDataURI("graphviz", "png", "content", "5678"));
+        verify(this.diagramResourceManager, never()).getDiagram(any(), any(), any(), any(), anyLong());
+    }
+}
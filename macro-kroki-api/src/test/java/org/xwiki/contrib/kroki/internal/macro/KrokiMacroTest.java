@@ -20,9 +20,11 @@
 package org.xwiki.contrib.kroki.internal.macro;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.inject.Named;
@@ -30,13 +32,16 @@ import javax.inject.Named;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 import org.xwiki.component.manager.ComponentLookupException;
-import org.xwiki.contrib.kroki.internal.caching.DiagramCacheManager;
 import org.xwiki.contrib.kroki.macro.KrokiMacroParameters;
-import org.xwiki.contrib.kroki.renderer.DiagramRenderer;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
 import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.XDOM;
 import org.xwiki.rendering.block.match.BlockMatcher;
 import org.xwiki.rendering.internal.renderer.event.EventBlockRenderer;
 import org.xwiki.rendering.internal.renderer.event.EventRenderer;
@@ -45,12 +50,12 @@ import org.xwiki.rendering.listener.reference.ResourceReference;
 import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.rendering.renderer.BlockRenderer;
 import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
 import org.xwiki.rendering.transformation.MacroTransformationContext;
 import org.xwiki.resource.ResourceReferenceSerializer;
 import org.xwiki.resource.SerializeResourceReferenceException;
 import org.xwiki.resource.UnsupportedResourceReferenceException;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
-import org.xwiki.resource.temporary.TemporaryResourceStore;
 import org.xwiki.test.annotation.BeforeComponent;
 import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
@@ -61,8 +66,8 @@ import org.xwiki.test.mockito.MockitoComponentManager;
 import org.xwiki.url.ExtendedURL;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -79,9 +84,6 @@ class KrokiMacroTest
     @InjectMockComponents
     private KrokiMacro krokiMacro;
 
-    @MockComponent
-    private TemporaryResourceStore temporaryResourceStore;
-
     @MockComponent
     @Named("standard/tmp")
     private ResourceReferenceSerializer<TemporaryResourceReference, ExtendedURL> resourceReferenceSerializer;
@@ -90,10 +92,16 @@ class KrokiMacroTest
     private DocumentReferenceResolver<String> documentReferenceResolver;
 
     @MockComponent
-    private DiagramRenderer diagramRenderer;
+    private DiagramResourceManager diagramResourceManager;
+
+    @MockComponent
+    private DiagramAttachmentManager diagramAttachmentManager;
 
     @MockComponent
-    private DiagramCacheManager cacheManager;
+    private EntityReferenceSerializer<String> entityReferenceSerializer;
+
+    @MockComponent
+    private InlineDiagramManager inlineDiagramManager;
 
     private MacroTransformationContext context;
 
@@ -103,28 +111,22 @@ class KrokiMacroTest
 
     private final String content = "content";
 
+    private final String hash = "1234";
+
     private TemporaryResourceReference resourceReference;
 
     private DocumentReference docReference;
 
-    private ResourceReference fileReference;
-
-    private InputStream contentStream;
-
-    private final String hash = "53f3f0e5430f905f2a6d7f8ca51870d0";
+    private MacroBlock block;
 
     @BeforeComponent
     void configure() throws SerializeResourceReferenceException, UnsupportedResourceReferenceException
     {
         parameters.setDiagramType("graphviz");
         parameters.setOutputType("svg");
-        contentStream = mock(InputStream.class);
-
-        when(diagramRenderer.render(parameters.getDiagramType(), parameters.getOutputType(), content)).thenReturn(
-            contentStream);
 
         docReference = mock(DocumentReference.class);
-        when(this.documentReferenceResolver.resolve(any(String.class))).thenReturn(docReference);
+        when(this.documentReferenceResolver.resolve(nullable(String.class))).thenReturn(docReference);
 
         resourceReference = new TemporaryResourceReference("kroki",
             Arrays.asList(parameters.getDiagramType(), UUID.randomUUID() + "." + parameters.getOutputType()),
@@ -134,7 +136,10 @@ class KrokiMacroTest
         when(extendedURL.serialize()).thenReturn("graphviz/svg");
         when(this.resourceReferenceSerializer.serialize(any(TemporaryResourceReference.class))).thenReturn(extendedURL);
 
-        MacroBlock block = mock(MacroBlock.class);
+        when(this.diagramResourceManager.getCacheKey(any(String.class), any(String.class), any(String.class)))
+            .thenReturn(this.hash);
+
+        block = mock(MacroBlock.class);
         when(block.getFirstBlock(any(BlockMatcher.class),any(Block.Axes.class))).thenReturn(null);
 
         context = mock(MacroTransformationContext.class);
@@ -146,16 +151,13 @@ class KrokiMacroTest
     void executeWithReferenceFromCacheTest()
         throws IOException, MacroExecutionException, ComponentLookupException
     {
-        when(cacheManager.getResourceFromCache(hash)).thenReturn(resourceReference);
+        when(this.diagramResourceManager.getDiagramResource("graphviz", "svg", content, hash, docReference))
+            .thenReturn(resourceReference);
 
         List<Block> output = this.krokiMacro.execute(parameters, content, context);
 
         verify(this.documentReferenceResolver).resolve(nullable(String.class));
-        verify(this.cacheManager).getResourceFromCache(hash);
-        verify(this.temporaryResourceStore, never()).createTemporaryFile(any(TemporaryResourceReference.class),
-            any(InputStream.class));
-        verify(this.diagramRenderer, never()).render(any(String.class), any(String.class), any(String.class));
-        verify(this.cacheManager, never()).addResourceToCache(any(String.class), any(TemporaryResourceReference.class));
+        verify(this.context, never()).getXDOM();
 
         List<String> events = Arrays.asList(
             "beginParagraph",
@@ -172,16 +174,114 @@ class KrokiMacroTest
     }
 
     @Test
-    void executeWithNewReferenceTest() throws MacroExecutionException, IOException
+    void executeWithNewReferencePrefetchesOtherDiagramsTest() throws MacroExecutionException, IOException
+    {
+        when(this.diagramResourceManager.needsRendering("svg", hash)).thenReturn(true);
+        when(this.diagramResourceManager.getDiagramResource("graphviz", "svg", content, hash, docReference))
+            .thenReturn(resourceReference);
+
+        MacroBlock otherBlock = new MacroBlock("kroki", Collections.singletonMap("DiagramType", "mermaid"),
+            "graph TD; A-->B;", false);
+        XDOM xdom = new XDOM(Arrays.asList(block, otherBlock));
+        when(this.context.getXDOM()).thenReturn(xdom);
+
+        this.krokiMacro.execute(parameters, content, context);
+
+        verify(this.diagramResourceManager).prefetch("mermaid", "svg", "graph TD; A-->B;", docReference);
+        verify(this.diagramResourceManager, never()).prefetch("graphviz", "svg", content, docReference);
+        verify(this.diagramResourceManager).getDiagramResource("graphviz", "svg", content, hash, docReference);
+        // The cache key of the executed macro is computed only once.
+        verify(this.diagramResourceManager).getCacheKey("graphviz", "svg", content);
+    }
+
+    @Test
+    void executeWithAttachmentPersistenceTest() throws IOException, MacroExecutionException, ComponentLookupException
     {
-        when(cacheManager.getResourceFromCache(any(String.class))).thenReturn(null);
+        AttachmentReference attachmentReference = mock(AttachmentReference.class);
+        when(this.diagramAttachmentManager.isEnabled()).thenReturn(true);
+        when(this.diagramAttachmentManager.getDiagramAttachment("svg", hash, docReference))
+            .thenReturn(attachmentReference);
+        when(this.entityReferenceSerializer.serialize(attachmentReference)).thenReturn("Space.Page@kroki-hash.svg");
 
         List<Block> output = this.krokiMacro.execute(parameters, content, context);
-        verify(this.documentReferenceResolver).resolve(nullable(String.class));
-        verify(this.cacheManager).getResourceFromCache(hash);
-        verify(diagramRenderer).render(parameters.getDiagramType(), parameters.getOutputType(), content);
-        verify(this.temporaryResourceStore).createTemporaryFile(any(TemporaryResourceReference.class), eq(contentStream));
-        verify(this.cacheManager).addResourceToCache(eq(hash), any(TemporaryResourceReference.class));
+
+        verify(this.diagramResourceManager, never()).getDiagramResource("graphviz", "svg", content, hash, docReference);
+
+        List<String> events = Arrays.asList(
+            "beginParagraph",
+            "beginLink [Typed = [true] Type = [attach] Reference = [Space.Page@kroki-hash.svg]] [true] "
+                + "[[target]=[_blank][title]=[graphviz diagram]]",
+            "onImage [Typed = [true] Type = [attach] Reference = [Space.Page@kroki-hash.svg]] [true] "
+                + "[[alt]=[graphviz diagram]]",
+            "endLink [Typed = [true] Type = [attach] Reference = [Space.Page@kroki-hash.svg]] [true] "
+                + "[[target]=[_blank][title]=[graphviz diagram]]",
+            "endParagraph",
+            ""
+        );
+
+        assertBlockEvents(StringUtils.join(events, "\n"), output.get(0));
+    }
+
+    @Test
+    void executeWithInlineSVGTest() throws IOException, MacroExecutionException
+    {
+        this.parameters.setInline(true);
+        when(this.inlineDiagramManager.supports("svg")).thenReturn(true);
+        when(this.inlineDiagramManager.getInlineDiagram("graphviz", content, hash)).thenReturn("<svg></svg>");
+
+        List<Block> output = this.krokiMacro.execute(parameters, content, context);
+
+        verify(this.diagramResourceManager, never()).getDiagramResource("graphviz", "svg", content, hash, docReference);
+        verify(this.context, never()).getXDOM();
+
+        assertTrue(output.get(0) instanceof GroupBlock);
+        assertEquals("img", output.get(0).getParameter("role"));
+        assertEquals("graphviz diagram", output.get(0).getParameter("aria-label"));
+        RawBlock rawBlock = (RawBlock) output.get(0).getChildren().get(0);
+        assertEquals("<svg></svg>", rawBlock.getRawContent());
+        assertEquals(Syntax.HTML_5_0, rawBlock.getSyntax());
+    }
+
+    @Test
+    void executeDoesNotPrefetchInlineDiagramsTest() throws MacroExecutionException, IOException
+    {
+        when(this.inlineDiagramManager.supports("svg")).thenReturn(true);
+        when(this.diagramResourceManager.needsRendering("svg", hash)).thenReturn(true);
+        when(this.diagramResourceManager.getDiagramResource("graphviz", "svg", content, hash, docReference))
+            .thenReturn(resourceReference);
+
+        Map<String, String> inlineParameters = new HashMap<>();
+        inlineParameters.put("diagramType", "mermaid");
+        inlineParameters.put("inline", "true");
+        MacroBlock inlineBlock = new MacroBlock("kroki", inlineParameters, "graph TD; A-->B;", false);
+        XDOM xdom = new XDOM(Arrays.asList(block, inlineBlock));
+        when(this.context.getXDOM()).thenReturn(xdom);
+
+        this.krokiMacro.execute(parameters, content, context);
+
+        verify(this.diagramResourceManager, never()).prefetch("mermaid", "svg", "graph TD; A-->B;", docReference);
+    }
+
+    @Test
+    void executeWithDataURITest() throws IOException, MacroExecutionException, ComponentLookupException
+    {
+        this.parameters.setOutputType("png");
+        when(this.inlineDiagramManager.getDataURI("graphviz", "png", content, hash))
+            .thenReturn("data:image/png;base64,AQID");
+
+        List<Block> output = this.krokiMacro.execute(parameters, content, context);
+
+        verify(this.diagramResourceManager, never()).getDiagramResource("graphviz", "png", content, hash, docReference);
+
+        List<String> events = Arrays.asList(
+            "beginParagraph",
+            "onImage [Typed = [true] Type = [url] Reference = [data:image/png;base64,AQID]] [true] "
+                + "[[alt]=[graphviz diagram]]",
+            "endParagraph",
+            ""
+        );
+
+        assertBlockEvents(StringUtils.join(events, "\n"), output.get(0));
     }
 
     private void assertBlockEvents(String expected, Block block) throws ComponentLookupException
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.internal.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.container.Container;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class KrokiTemporaryResourceReferenceHandlerTest
+{
+    private static final String HASH = "18f0a024f11263eb95a9644ce3ecb76438a421803753b74e0a7458c6f1aaf6d5";
+
+    @InjectMockComponents
+    private KrokiTemporaryResourceReferenceHandler handler;
+
+    @MockComponent
+    private Container container;
+
+    @MockComponent
+    private AuthorizationManager authorizationManager;
+
+    @MockComponent
+    private TemporaryResourceStore temporaryResourceStore;
+
+    private File tempDirectory;
+
+    private HttpServletRequest httpRequest;
+
+    private HttpServletResponse httpResponse;
+
+    private ResourceReferenceHandlerChain chain;
+
+    private DocumentReference documentReference = new DocumentReference("wiki", "Space", "Page");
+
+    private TemporaryResourceReference diagramReference =
+        new TemporaryResourceReference("kroki", Arrays.asList("graphviz", HASH + ".svg"), this.documentReference);
+
+    @BeforeEach
+    void configure() throws IOException
+    {
+        this.tempDirectory = Files.createTempDirectory("kroki").toFile();
+        File diagramFile = new File(this.tempDirectory, HASH + ".svg");
+        Files.write(diagramFile.toPath(), "<svg/>".getBytes(StandardCharsets.UTF_8));
+        when(this.temporaryResourceStore.getTemporaryFile(this.diagramReference)).thenReturn(diagramFile);
+        when(this.authorizationManager.hasAccess(Right.VIEW, this.documentReference)).thenReturn(true);
+
+        this.httpRequest = mock(HttpServletRequest.class);
+        ServletRequest request = mock(ServletRequest.class);
+        when(request.getHttpServletRequest()).thenReturn(this.httpRequest);
+        when(this.container.getRequest()).thenReturn(request);
+
+        this.httpResponse = mock(HttpServletResponse.class);
+        ServletResponse response = mock(ServletResponse.class);
+        when(response.getHttpServletResponse()).thenReturn(this.httpResponse);
+        when(this.container.getResponse()).thenReturn(response);
+
+        this.chain = mock(ResourceReferenceHandlerChain.class);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException
+    {
+        FileUtils.deleteDirectory(this.tempDirectory);
+    }
+
+    @Test
+    void handlePublicDiagram() throws Exception
+    {
+        when(this.authorizationManager.hasAccess(Right.VIEW, null, this.documentReference)).thenReturn(true);
+
+        this.handler.handle(this.diagramReference, this.chain);
+
+        verify(this.httpResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        verify(this.httpResponse).setHeader("ETag", '"' + HASH + '"');
+        verify(this.chain).handleNext(this.diagramReference);
+    }
+
+    @Test
+    void handlePrivateDiagram() throws Exception
+    {
+        this.handler.handle(this.diagramReference, this.chain);
+
+        verify(this.httpResponse).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        verify(this.chain).handleNext(this.diagramReference);
+    }
+
+    @Test
+    void handleNotModifiedDiagram() throws Exception
+    {
+        when(this.httpRequest.getHeader("If-None-Match")).thenReturn('"' + HASH + '"');
+
+        this.handler.handle(this.diagramReference, this.chain);
+
+        verify(this.httpResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.chain, never()).handleNext(this.diagramReference);
+    }
+
+    @Test
+    void handleDiagramWithoutViewRight() throws Exception
+    {
+        when(this.httpRequest.getHeader("If-None-Match")).thenReturn('"' + HASH + '"');
+        when(this.authorizationManager.hasAccess(Right.VIEW, this.documentReference)).thenReturn(false);
+
+        this.handler.handle(this.diagramReference, this.chain);
+
+        // The forbidden response must not be cached.
+        verify(this.httpResponse, never()).setHeader(anyString(), anyString());
+        verify(this.httpResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.chain).handleNext(this.diagramReference);
+    }
+
+    @Test
+    void handleMissingDiagram() throws Exception
+    {
+        FileUtils.cleanDirectory(this.tempDirectory);
+        when(this.httpRequest.getHeader("If-None-Match")).thenReturn('"' + HASH + '"');
+
+        this.handler.handle(this.diagramReference, this.chain);
+
+        // The not found response must not be cached.
+        verify(this.httpResponse, never()).setHeader(anyString(), anyString());
+        verify(this.httpResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.chain).handleNext(this.diagramReference);
+    }
+
+    @Test
+    void handleOtherTemporaryResource() throws Exception
+    {
+        TemporaryResourceReference reference =
+            new TemporaryResourceReference("other", Arrays.asList("file.png"), this.documentReference);
+
+        this.handler.handle(reference, this.chain);
+
+        verify(this.httpResponse, never()).setHeader(anyString(), anyString());
+        verify(this.chain).handleNext(reference);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.renderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncResponseProducer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.Http2KrokiTransport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class Http2KrokiTransportTest
+{
+    private static final int LARGE_SIZE = 1024 * 1024;
+
+    private HttpAsyncServer server;
+
+    private String baseURL;
+
+    private Http2KrokiTransport transport;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.server = H2ServerBootstrap.bootstrap()
+            // Accept both HTTP/2 (prior knowledge) and HTTP/1.1 since there's no TLS to negotiate the protocol.
+            .setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+            .register("/graphviz/svg",
+                handler((request, body) -> new BasicResponseProducer(200, "<svg>" + body + "</svg>")))
+            .register("/compressed/svg", handler((request, body) -> {
+                Header contentEncoding = request.getFirstHeader("Content-Encoding");
+                return new BasicResponseProducer(200,
+                    (contentEncoding != null ? contentEncoding.getValue() : null) + ":" + body);
+            }))
+            .register("/large/svg",
+                handler((request, body) -> new BasicResponseProducer(200, StringUtils.repeat('x', LARGE_SIZE))))
+            .register("/invalid/svg", handler((request, body) -> new BasicResponseProducer(400, "Syntax error")))
+            .register("/version", new AsyncServerRequestHandler<Message<HttpRequest, byte[]>>()
+            {
+                @Override
+                public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request,
+                    EntityDetails entityDetails, HttpContext context)
+                {
+                    return new BasicRequestConsumer<>(new BasicAsyncEntityConsumer());
+                }
+
+                @Override
+                public void handle(Message<HttpRequest, byte[]> message, ResponseTrigger responseTrigger,
+                    HttpContext context) throws HttpException, IOException
+                {
+                    responseTrigger.submitResponse(
+                        new BasicResponseProducer(200, String.valueOf(context.getProtocolVersion().getMajor())),
+                        context);
+                }
+            })
+            .create();
+        this.server.start();
+        ListenerEndpoint endpoint = this.server.listen(new InetSocketAddress("localhost", 0)).get();
+        this.baseURL = "http://localhost:" + ((InetSocketAddress) endpoint.getAddress()).getPort();
+
+        this.transport = new Http2KrokiTransport(mockConfiguration(0));
+    }
+
+    private KrokiMacroConfiguration mockConfiguration(int compressionThreshold)
+    {
+        KrokiMacroConfiguration config = mock(KrokiMacroConfiguration.class);
+        when(config.getKrokiConnectTimeout()).thenReturn(1000);
+        when(config.getKrokiReadTimeout()).thenReturn(5000);
+        when(config.getKrokiConnectionIdleTimeout()).thenReturn(10000);
+        when(config.getKrokiRequestCompressionThreshold()).thenReturn(compressionThreshold);
+        when(config.getKrokiMaxConnections()).thenReturn(5);
+        return config;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException
+    {
+        this.transport.close();
+        this.server.close(CloseMode.IMMEDIATE);
+    }
+
+    @Test
+    void execute() throws IOException
+    {
+        for (int i = 0; i < 5; i++) {
+            try (InputStream response = this.transport.execute("POST", this.baseURL + "/graphviz/svg", "A->B")) {
+                assertEquals("<svg>A->B</svg>", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void executeWithErrorStatus()
+    {
+        IOException exception = assertThrows(IOException.class,
+            () -> this.transport.execute("POST", this.baseURL + "/invalid/svg", "A->"));
+        assertEquals("Server returned HTTP response code: 400 for URL: " + this.baseURL + "/invalid/svg",
+            exception.getMessage());
+    }
+
+    @Test
+    void executeOverHTTP2() throws IOException
+    {
+        try (Http2KrokiTransport http2Transport =
+            new Http2KrokiTransport(mockConfiguration(0), HttpVersionPolicy.FORCE_HTTP_2)) {
+            try (InputStream response = http2Transport.execute("GET", this.baseURL + "/version", null)) {
+                assertEquals("2", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+            try (InputStream response = http2Transport.execute("POST", this.baseURL + "/graphviz/svg", "A->B")) {
+                assertEquals("<svg>A->B</svg>", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void executeFallsBackToHTTP11() throws IOException
+    {
+        // HTTP/2 can't be negotiated without TLS.
+        try (InputStream response = this.transport.execute("GET", this.baseURL + "/version", null)) {
+            assertEquals("1", IOUtils.toString(response, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void executeWithLargeResponse() throws IOException
+    {
+        try (InputStream response = this.transport.execute("POST", this.baseURL + "/large/svg", "A->B")) {
+            assertEquals(LARGE_SIZE, IOUtils.consume(response));
+        }
+    }
+
+    @Test
+    void closeResponseBeforeTheEnd() throws IOException
+    {
+        for (int i = 0; i < 10; i++) {
+            try (InputStream response = this.transport.execute("POST", this.baseURL + "/large/svg", "A->B")) {
+                assertEquals('x', response.read());
+            }
+        }
+
+        // The transport can still be used after the responses that were not fully read.
+        try (InputStream response = this.transport.execute("POST", this.baseURL + "/graphviz/svg", "A->B")) {
+            assertEquals("<svg>A->B</svg>", IOUtils.toString(response, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void getStatusCode() throws IOException
+    {
+        assertEquals(200, this.transport.getStatusCode("POST", this.baseURL + "/graphviz/svg", "A->B"));
+        assertEquals(400, this.transport.getStatusCode("POST", this.baseURL + "/invalid/svg", "A->"));
+    }
+
+    @Test
+    void executeWithCompressedBody() throws IOException
+    {
+        try (Http2KrokiTransport compressingTransport = new Http2KrokiTransport(mockConfiguration(10))) {
+            // Below the compression threshold.
+            try (InputStream response =
+                compressingTransport.execute("POST", this.baseURL + "/compressed/svg", "A->B")) {
+                assertEquals("null:A->B", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+
+            try (InputStream response =
+                compressingTransport.execute("POST", this.baseURL + "/compressed/svg", "A->B; B->C; C->A")) {
+                assertEquals("gzip:A->B; B->C; C->A", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static AsyncServerRequestHandler<Message<HttpRequest, byte[]>> handler(
+        BiFunction<HttpRequest, String, AsyncResponseProducer> responder)
+    {
+        return new AsyncServerRequestHandler<Message<HttpRequest, byte[]>>()
+        {
+            @Override
+            public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request,
+                EntityDetails entityDetails, HttpContext context)
+            {
+                return new BasicRequestConsumer<>(new BasicAsyncEntityConsumer());
+            }
+
+            @Override
+            public void handle(Message<HttpRequest, byte[]> message, ResponseTrigger responseTrigger,
+                HttpContext context) throws HttpException, IOException
+            {
+                responseTrigger.submitResponse(responder.apply(message.getHead(), readBody(message)), context);
+            }
+        };
+    }
+
+    private static String readBody(Message<HttpRequest, byte[]> message) throws IOException
+    {
+        if (message.getBody() == null) {
+            return "";
+        }
+        InputStream body = new ByteArrayInputStream(message.getBody());
+        if (message.getHead().containsHeader("Content-Encoding")) {
+            body = new GZIPInputStream(body);
+        }
+        return IOUtils.toString(body, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.renderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.docker.ContainerManager;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackend;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackendRegistry;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiClient;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiService;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.github.dockerjava.api.model.HostConfig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class KrokiBackendRegistryTest
+{
+    private final String containerId = "8f55a905efec";
+
+    private final String containerIpAddress = "172.17.0.2";
+
+    private HostConfig hostConfig;
+
+    private KrokiMacroConfiguration configuration;
+
+    private File permanentDirectory;
+
+    @InjectMockComponents
+    private KrokiBackendRegistry backendRegistry;
+
+    @MockComponent
+    private KrokiService krokiService;
+
+    @MockComponent
+    private ContainerManager containerManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @BeforeEach
+    void configure()
+    {
+        configuration = mock(KrokiMacroConfiguration.class);
+        when(this.configuration.getKrokiDockerContainerName()).thenReturn("test-kroki");
+        when(this.configuration.getKrokiDockerImage()).thenReturn("yuzutech/kroki:latest");
+        when(this.configuration.getKrokiHost()).thenReturn("");
+        when(this.configuration.getKrokiPort()).thenReturn(8000);
+
+        this.hostConfig = mock(HostConfig.class);
+        when(this.containerManager.getHostConfig(8000)).thenReturn(this.hostConfig);
+        when(this.containerManager.getIpAddress(this.containerId)).thenReturn(this.containerIpAddress);
+        when(this.containerManager.createContainer("yuzutech/kroki:latest", "test-kroki", new ArrayList<>(),
+            this.hostConfig)).thenReturn(this.containerId);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException
+    {
+        if (this.permanentDirectory != null) {
+            FileUtils.deleteDirectory(this.permanentDirectory);
+        }
+    }
+
+    @Test
+    void initializeAndDispose() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(null);
+        when(this.containerManager.isLocalImagePresent("yuzutech/kroki:latest")).thenReturn(false);
+
+        KrokiClient client = mock(KrokiClient.class);
+        when(this.krokiService.connect(this.containerIpAddress, this.configuration, "http")).thenReturn(client);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+
+        verify(this.containerManager).pullImage("yuzutech/kroki:latest");
+        verify(this.containerManager).startContainer(this.containerId);
+        assertEquals("docker:test-kroki", backend.getId());
+        assertSame(client, backend.getClient());
+        assertEquals(this.containerId, backend.getContainerId());
+
+        this.backendRegistry.dispose();
+        verify(this.containerManager).stopContainer(this.containerId);
+    }
+
+    @Test
+    void getRenderQueueMetrics() throws Exception
+    {
+        when(this.configuration.getKrokiMaxConcurrentRenders()).thenReturn(4);
+        when(this.configuration.getKrokiRenderQueueSize()).thenReturn(10);
+        when(this.configuration.getKrokiRenderQueueTimeout()).thenReturn(1000);
+
+        assertEquals(Collections.emptyMap(), this.backendRegistry.getRenderQueueMetrics());
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        backend.getBulkhead().acquire();
+
+        Map<String, Number> metrics = this.backendRegistry.getRenderQueueMetrics().get("docker:test-kroki");
+        assertEquals(1, metrics.get("inFlight"));
+        assertEquals(0, metrics.get("queueDepth"));
+        assertEquals(0L, metrics.get("rejected"));
+        assertEquals(4, metrics.get("maxConcurrentRenders"));
+        assertEquals(10, metrics.get("queueSize"));
+    }
+
+    @Test
+    void initializeWithExistingContainer() throws Exception
+    {
+        when(this.configuration.isKrokiDockerContainerReusable()).thenReturn(true);
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", true)).thenReturn(this.containerId);
+
+        this.backendRegistry.getBackend(this.configuration);
+
+        verify(this.containerManager, never()).pullImage(any(String.class));
+        verify(this.containerManager, never()).startContainer(any(String.class));
+        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
+
+        this.backendRegistry.dispose();
+        verify(this.containerManager).stopContainer(this.containerId);
+    }
+
+    @Test
+    void initializeWithRemoteKroki() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.configuration.getKrokiUseTLS()).thenReturn(true);
+        when(this.krokiService.createRequestPath("https://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+
+        verify(this.containerManager, never()).maybeReuseContainerByName(any(String.class), any(Boolean.class));
+        verify(this.containerManager, never()).startContainer(any(String.class));
+        verify(this.krokiService).connect("remote-kroki", this.configuration, "https");
+        assertNull(backend.getContainerId());
+
+        this.backendRegistry.dispose();
+        verify(this.containerManager, never()).stopContainer(any(String.class));
+    }
+
+    @Test
+    void backendIsInitializedOnlyOnce() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(this.containerId);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+
+        verify(this.containerManager).maybeReuseContainerByName(any(String.class), any(Boolean.class));
+        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
+    }
+
+    @Test
+    void backendIsResolvedOncePerConfiguration() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.krokiService.createRequestPath("http://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+        assertEquals("remote-kroki-id", this.backendRegistry.getCacheNamespace(this.configuration));
+
+        verify(this.krokiService).createRequestPath("http://", "remote-kroki", 8000, "");
+    }
+
+    @Test
+    void backendIsValidatedAgainAfterFailure() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(null);
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", true)).thenReturn(this.containerId);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        this.backendRegistry.invalidate(backend);
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+
+        // The container we created is reused even though the configuration doesn't allow reusing containers.
+        verify(this.containerManager).createContainer("yuzutech/kroki:latest", "test-kroki", new ArrayList<>(),
+            this.hostConfig);
+        verify(this.containerManager).maybeReuseContainerByName("test-kroki", true);
+        verify(this.krokiService, times(2)).connect(this.containerIpAddress, this.configuration, "http");
+    }
+
+    @Test
+    void configurationsWithSameSettingsShareTheBackend() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.krokiService.createRequestPath("http://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+        KrokiMacroConfiguration otherConfiguration = mock(KrokiMacroConfiguration.class);
+        when(otherConfiguration.getKrokiHost()).thenReturn("remote-kroki");
+        when(otherConfiguration.getKrokiPort()).thenReturn(8000);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        assertSame(backend, this.backendRegistry.getBackend(otherConfiguration));
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+        assertSame(backend, this.backendRegistry.getBackend(otherConfiguration));
+
+        // The configurations don't re-initialize each other.
+        verify(this.krokiService).connect("remote-kroki", this.configuration, "http");
+        verify(this.krokiService, never()).connect("remote-kroki", otherConfiguration, "http");
+        verify(this.krokiService, never()).closeQuietly(any(KrokiClient.class));
+    }
+
+    @Test
+    void configurationsWithDifferentSettingsOnTheSameHost() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.krokiService.createRequestPath("http://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+        KrokiMacroConfiguration otherConfiguration = mock(KrokiMacroConfiguration.class);
+        when(otherConfiguration.getKrokiHost()).thenReturn("remote-kroki");
+        when(otherConfiguration.getKrokiPort()).thenReturn(8000);
+        when(otherConfiguration.getKrokiMaxConcurrentRenders()).thenReturn(2);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        KrokiBackend otherBackend = this.backendRegistry.getBackend(otherConfiguration);
+        assertNotSame(backend, otherBackend);
+        assertSame(backend, this.backendRegistry.getBackend(this.configuration));
+        assertSame(otherBackend, this.backendRegistry.getBackend(otherConfiguration));
+
+        verify(this.krokiService).connect("remote-kroki", this.configuration, "http");
+        verify(this.krokiService).connect("remote-kroki", otherConfiguration, "http");
+        verify(this.krokiService, never()).closeQuietly(any(KrokiClient.class));
+
+        Map<String, Map<String, Number>> metrics = this.backendRegistry.getRenderQueueMetrics();
+        assertEquals(2, metrics.size());
+        assertTrue(metrics.containsKey("remote-kroki-id"));
+        assertTrue(metrics.containsKey("remote-kroki-id#2"));
+    }
+
+    @Test
+    void configurationChangeReusesTheStartedContainer() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(null);
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", true)).thenReturn(this.containerId);
+
+        KrokiMacroConfiguration newConfiguration = mock(KrokiMacroConfiguration.class);
+        when(newConfiguration.getKrokiDockerContainerName()).thenReturn("test-kroki");
+        when(newConfiguration.getKrokiDockerImage()).thenReturn("yuzutech/kroki:latest");
+        when(newConfiguration.getKrokiHost()).thenReturn("");
+        when(newConfiguration.getKrokiPort()).thenReturn(8000);
+        when(newConfiguration.getKrokiReadTimeout()).thenReturn(60000);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        KrokiBackend newBackend = this.backendRegistry.getBackend(newConfiguration);
+
+        assertNotSame(backend, newBackend);
+        assertSame(newConfiguration, newBackend.getConfiguration());
+        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
+        verify(this.krokiService).connect(this.containerIpAddress, newConfiguration, "http");
+        verify(this.containerManager).createContainer("yuzutech/kroki:latest", "test-kroki", new ArrayList<>(),
+            this.hostConfig);
+        verify(this.containerManager).maybeReuseContainerByName("test-kroki", true);
+
+        // The shared container is stopped only once.
+        this.backendRegistry.dispose();
+        verify(this.containerManager).stopContainer(this.containerId);
+    }
+
+    @Test
+    void unusedBackendsAreClosed() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.krokiService.createRequestPath("http://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+        KrokiClient client = mock(KrokiClient.class);
+        when(this.krokiService.connect("remote-kroki", this.configuration, "http")).thenReturn(client);
+        KrokiMacroConfiguration otherConfiguration = mock(KrokiMacroConfiguration.class);
+        when(otherConfiguration.getKrokiHost()).thenReturn("remote-kroki");
+        when(otherConfiguration.getKrokiPort()).thenReturn(8000);
+        when(otherConfiguration.getKrokiMaxConcurrentRenders()).thenReturn(2);
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        KrokiBackend otherBackend = this.backendRegistry.getBackend(otherConfiguration);
+
+        // The backend is closed only once its renders are done.
+        backend.getBulkhead().acquire();
+        this.backendRegistry.retain(Collections.singletonList(otherConfiguration));
+        verify(this.krokiService, never()).closeQuietly(client);
+        assertEquals(Collections.singleton("remote-kroki-id"),
+            this.backendRegistry.getRenderQueueMetrics().keySet());
+
+        backend.getBulkhead().release();
+        this.backendRegistry.retain(Collections.singletonList(otherConfiguration));
+        verify(this.krokiService).closeQuietly(client);
+        assertSame(otherBackend, this.backendRegistry.getBackend(otherConfiguration));
+        assertNotSame(backend, this.backendRegistry.getBackend(this.configuration));
+    }
+
+    @Test
+    void unusedContainerIsStopped() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(null);
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", true)).thenReturn(this.containerId);
+
+        KrokiMacroConfiguration newConfiguration = mock(KrokiMacroConfiguration.class);
+        when(newConfiguration.getKrokiDockerContainerName()).thenReturn("test-kroki");
+        when(newConfiguration.getKrokiDockerImage()).thenReturn("yuzutech/kroki:latest");
+        when(newConfiguration.getKrokiHost()).thenReturn("");
+        when(newConfiguration.getKrokiPort()).thenReturn(8000);
+        when(newConfiguration.getKrokiReadTimeout()).thenReturn(60000);
+
+        this.backendRegistry.getBackend(this.configuration);
+
+        // The container is still needed by the new configuration.
+        this.backendRegistry.retain(Arrays.asList(newConfiguration));
+        verify(this.containerManager, never()).stopContainer(any(String.class));
+        this.backendRegistry.getBackend(newConfiguration);
+        verify(this.containerManager).maybeReuseContainerByName("test-kroki", true);
+
+        this.backendRegistry.retain(Collections.emptyList());
+        verify(this.containerManager).stopContainer(this.containerId);
+    }
+
+    @Test
+    void getCacheNamespaceWithDocker() throws Exception
+    {
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(this.containerId);
+        when(this.containerManager.getImageId(this.containerId)).thenReturn("sha256:1234");
+
+        // The backend is not initialized to compute the namespace.
+        assertEquals("docker:test-kroki|yuzutech/kroki:latest",
+            this.backendRegistry.getCacheNamespace(this.configuration));
+        verify(this.krokiService, never()).connect(any(String.class), any(KrokiMacroConfiguration.class),
+            any(String.class));
+
+        KrokiBackend backend = this.backendRegistry.getBackend(this.configuration);
+        assertEquals("docker:test-kroki|yuzutech/kroki:latest|sha256:1234",
+            this.backendRegistry.getCacheNamespace(this.configuration));
+
+        // The namespace of a backend that failed is still available, without validating the backend again.
+        this.backendRegistry.invalidate(backend);
+        assertEquals("docker:test-kroki|yuzutech/kroki:latest|sha256:1234",
+            this.backendRegistry.getCacheNamespace(this.configuration));
+        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
+    }
+
+    @Test
+    void getCacheNamespaceWithRemoteKroki() throws Exception
+    {
+        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
+        when(this.krokiService.createRequestPath("http://", "remote-kroki", 8000, "")).thenReturn("remote-kroki-id");
+        KrokiClient client = mock(KrokiClient.class);
+        when(this.krokiService.connect("remote-kroki", this.configuration, "http")).thenReturn(client);
+        when(client.getVersion()).thenReturn("0.25.0,9.4.3");
+
+        this.backendRegistry.getBackend(this.configuration);
+
+        assertEquals("remote-kroki-id|0.25.0,9.4.3", this.backendRegistry.getCacheNamespace(this.configuration));
+        assertEquals("", this.backendRegistry.getCacheNamespace(null));
+    }
+
+    @Test
+    void cacheNamespaceIsSaved() throws Exception
+    {
+        this.permanentDirectory = Files.createTempDirectory("kroki").toFile();
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.containerManager.maybeReuseContainerByName("test-kroki", false)).thenReturn(this.containerId);
+        when(this.containerManager.getImageId(this.containerId)).thenReturn("sha256:1234");
+
+        this.backendRegistry.getBackend(this.configuration);
+
+        Properties namespaces = new Properties();
+        try (InputStream input =
+            Files.newInputStream(new File(this.permanentDirectory, "kroki/cacheNamespaces.properties").toPath())) {
+            namespaces.load(input);
+        }
+        assertEquals("docker:test-kroki|yuzutech/kroki:latest|sha256:1234",
+            namespaces.getProperty("docker:test-kroki|yuzutech/kroki:latest"));
+    }
+
+    @Test
+    void getCacheNamespaceBeforeInitialization() throws Exception
+    {
+        this.permanentDirectory = Files.createTempDirectory("kroki").toFile();
+        // Saved the last time the backend was initialized, before a restart.
+        Properties namespaces = new Properties();
+        namespaces.setProperty("docker:test-kroki|yuzutech/kroki:latest",
+            "docker:test-kroki|yuzutech/kroki:latest|sha256:1234");
+        File namespacesFile = new File(this.permanentDirectory, "kroki/cacheNamespaces.properties");
+        namespacesFile.getParentFile().mkdirs();
+        try (OutputStream output = Files.newOutputStream(namespacesFile.toPath())) {
+            namespaces.store(output, null);
+        }
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+
+        assertEquals("docker:test-kroki|yuzutech/kroki:latest|sha256:1234",
+            this.backendRegistry.getCacheNamespace(this.configuration));
+        verify(this.containerManager, never()).maybeReuseContainerByName(any(String.class), any(Boolean.class));
+        verify(this.krokiService, never()).connect(any(String.class), any(KrokiMacroConfiguration.class),
+            any(String.class));
+    }
+}
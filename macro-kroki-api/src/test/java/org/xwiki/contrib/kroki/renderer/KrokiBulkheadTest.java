@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.renderer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBulkhead;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KrokiBulkheadTest
+{
+    @Test
+    void acquireAndRelease()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(2, 0, 0);
+
+        bulkhead.acquire();
+        bulkhead.acquire();
+        assertEquals(2, bulkhead.getInFlight());
+
+        bulkhead.release();
+        assertEquals(1, bulkhead.getInFlight());
+        bulkhead.acquire();
+        assertEquals(2, bulkhead.getInFlight());
+        assertEquals(0, bulkhead.getRejectedCount());
+    }
+
+    @Test
+    void rejectWhenQueueIsFull()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 0, 1000);
+        bulkhead.acquire();
+
+        RejectedExecutionException exception = assertThrows(RejectedExecutionException.class, bulkhead::acquire);
+        assertEquals("The Kroki backend is overloaded. The render queue is full.", exception.getMessage());
+        assertEquals(1, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getQueueDepth());
+    }
+
+    @Test
+    void rejectAfterQueueTimeout()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 1, 10);
+        bulkhead.acquire();
+
+        RejectedExecutionException exception = assertThrows(RejectedExecutionException.class, bulkhead::acquire);
+        assertEquals("The Kroki backend is overloaded. No render slot became available after [10] ms.",
+            exception.getMessage());
+        assertEquals(1, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getQueueDepth());
+    }
+
+    @Test
+    void waitInQueue() throws Exception
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 1, 10000);
+        bulkhead.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            bulkhead.acquire();
+            acquired.countDown();
+        });
+        waiting.start();
+
+        while (bulkhead.getQueueDepth() == 0) {
+            Thread.sleep(5);
+        }
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+
+        bulkhead.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(0, bulkhead.getQueueDepth());
+        assertEquals(1, bulkhead.getInFlight());
+    }
+
+    @Test
+    void hasLimits()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(4, 10, 1000);
+
+        assertTrue(bulkhead.hasLimits(4, 10, 1000));
+        assertFalse(bulkhead.hasLimits(8, 10, 1000));
+        assertFalse(bulkhead.hasLimits(4, 10, 500));
+    }
+}
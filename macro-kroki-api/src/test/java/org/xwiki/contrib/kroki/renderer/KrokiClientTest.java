@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.renderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiClient;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiTransport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class KrokiClientTest
+{
+    private static final String BASE_URL = "http://localhost:8000";
+
+    private static final String DIAGRAM_URL = BASE_URL + "/graphviz/svg";
+
+    private final KrokiTransport transport = mock(KrokiTransport.class);
+
+    private final InputStream response = new ByteArrayInputStream(new byte[0]);
+
+    @Test
+    void renderDiagramWithPOST() throws IOException
+    {
+        when(this.transport.execute("POST", DIAGRAM_URL, "A->B")).thenReturn(this.response);
+
+        KrokiClient client = new KrokiClient(BASE_URL, this.transport);
+        assertSame(this.response, client.renderDiagram("graphviz", "svg", "A->B"));
+    }
+
+    @Test
+    void renderSmallDiagramWithGET() throws IOException
+    {
+        ArgumentCaptor<String> urlCaptor = ArgumentCaptor.forClass(String.class);
+        when(this.transport.execute(eq("GET"), urlCaptor.capture(), isNull())).thenReturn(this.response);
+
+        KrokiClient client = new KrokiClient(BASE_URL, this.transport, 100);
+        assertSame(this.response, client.renderDiagram("graphviz", "svg", "digraph { A -> B }"));
+
+        String url = urlCaptor.getValue();
+        assertTrue(url.startsWith(DIAGRAM_URL + "/"));
+        String encodedContent = url.substring(DIAGRAM_URL.length() + 1);
+        try (InputStream decodedContent =
+            new InflaterInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(encodedContent)))) {
+            assertEquals("digraph { A -> B }", IOUtils.toString(decodedContent, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void renderLargeDiagramWithPOST() throws IOException
+    {
+        when(this.transport.execute("POST", DIAGRAM_URL, "digraph { A -> B }")).thenReturn(this.response);
+
+        // The encoded diagram source is longer than 10 characters.
+        KrokiClient client = new KrokiClient(BASE_URL, this.transport, 10);
+        assertSame(this.response, client.renderDiagram("graphviz", "svg", "digraph { A -> B }"));
+        verify(this.transport).execute("POST", DIAGRAM_URL, "digraph { A -> B }");
+    }
+
+    @Test
+    void renderLongDiagramWithPOST() throws IOException
+    {
+        // The encoded diagram source would fit, but the source is too long to be worth compressing.
+        String graphContent = StringUtils.repeat("A->B; ", 2000);
+        when(this.transport.execute("POST", DIAGRAM_URL, graphContent)).thenReturn(this.response);
+
+        KrokiClient client = new KrokiClient(BASE_URL, this.transport, 100);
+        assertSame(this.response, client.renderDiagram("graphviz", "svg", graphContent));
+        verify(this.transport, never()).execute(eq("GET"), any(), any());
+    }
+}
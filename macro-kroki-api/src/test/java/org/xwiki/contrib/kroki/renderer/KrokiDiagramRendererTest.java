@@ -19,43 +19,51 @@
  */
 package org.xwiki.contrib.kroki.renderer;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.inject.Named;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
 import org.xwiki.contrib.kroki.internal.configuration.KrokiConfiguration;
-import org.xwiki.contrib.kroki.internal.docker.ContainerManager;
-import org.xwiki.contrib.kroki.internal.rendrer.KrokiService;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackend;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBackendRegistry;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiBulkhead;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiClient;
 import org.xwiki.contrib.kroki.internal.rendrer.KrokiDiagramRenderer;
 import org.xwiki.test.annotation.BeforeComponent;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
-import com.github.dockerjava.api.model.HostConfig;
-
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.same;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ComponentTest
 class KrokiDiagramRendererTest
 {
-    private final String containerId = "8f55a905efec";
+    private KrokiMacroConfiguration configuration;
 
-    private final String containerIpAddress = "172.17.0.2";
+    private KrokiBackend backend;
 
-    HostConfig hostConfig;
-
-    private KrokiMacroConfiguration configuration;
+    private KrokiClient krokiClient;
 
     @InjectMockComponents
     private KrokiDiagramRenderer krokiDiagramRenderer;
@@ -64,87 +72,34 @@ class KrokiDiagramRendererTest
     private KrokiConfiguration configurationManager;
 
     @MockComponent
-    private KrokiService krokiService;
+    private KrokiBackendRegistry backendRegistry;
 
     @MockComponent
-    private ContainerManager containerManager;
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
 
     @BeforeComponent
-    void configure()
+    void configure() throws Exception
     {
         configuration = mock(KrokiMacroConfiguration.class);
-        when(this.configuration.getKrokiDockerContainerName()).thenReturn("test-kroki");
-        when(this.configuration.getKrokiDockerImage()).thenReturn("yuzutech/kroki:latest");
-        when(this.configuration.getKrokiHost()).thenReturn("");
-        when(this.configuration.getKrokiPort()).thenReturn(8000);
-
-        mockNetwork(this.configuration);
+        krokiClient = mock(KrokiClient.class);
+        backend = mock(KrokiBackend.class);
+        when(backend.getClient()).thenReturn(krokiClient);
+        when(backend.getBulkhead()).thenReturn(new KrokiBulkhead(2, 0, 0));
 
         when(this.configurationManager.getConfiguration(any(String.class))).thenReturn(configuration);
+        when(this.backendRegistry.getBackend(configuration)).thenReturn(backend);
 
-        when(this.containerManager.createContainer(this.configuration.getKrokiDockerImage(),
-            this.configuration.getKrokiDockerContainerName(),
-            new ArrayList<>(),
-            this.hostConfig)).thenReturn(this.containerId);
-    }
-
-    @BeforeComponent("initializeAndDispose")
-    void beforeInitializeAndDispose()
-    {
-        when(this.containerManager.maybeReuseContainerByName(this.configuration.getKrokiDockerContainerName(), false))
-            .thenReturn(null);
-        when(this.containerManager.isLocalImagePresent(this.configuration.getKrokiDockerImage())).thenReturn(false);
+        // Use the default values.
+        doAnswer(invocation -> invocation.getArgument(1)).when(this.configurationSource)
+            .getProperty(any(String.class), any(Object.class));
     }
 
     @Test
-    void initializeAndDispose() throws Exception
+    void initialize() throws Exception
     {
         verify(this.configurationManager).getConfiguration("plantuml");
-        verify(this.containerManager).pullImage(this.configuration.getKrokiDockerImage());
-        verify(this.containerManager).startContainer(this.containerId);
-        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
-
-        this.krokiDiagramRenderer.dispose();
-        verify(this.containerManager).stopContainer(this.containerId);
-    }
-
-    @BeforeComponent("initializeWithExistingContainer")
-    void beforeInitializeWithExistingContainer()
-    {
-        mockNetwork(this.configuration);
-        when(this.configuration.isKrokiDockerContainerReusable()).thenReturn(true);
-        when(this.containerManager.maybeReuseContainerByName(this.configuration.getKrokiDockerContainerName(), true))
-            .thenReturn(this.containerId);
-    }
-
-    @Test
-    void initializeWithExistingContainer() throws Exception
-    {
-        verify(this.containerManager, never()).pullImage(any(String.class));
-        verify(this.containerManager, never()).startContainer(any(String.class));
-        verify(this.krokiService).connect(this.containerIpAddress, this.configuration, "http");
-
-        this.krokiDiagramRenderer.dispose();
-        verify(this.containerManager).stopContainer(this.containerId);
-    }
-
-    @BeforeComponent("initializeWithRemoteKroki")
-    void beforeInitializeWithRemoteKroki()
-    {
-        when(this.configuration.getKrokiHost()).thenReturn("remote-kroki");
-        when(this.configuration.getKrokiUseTLS()).thenReturn(true);
-    }
-
-    @Test
-    void initializeWithRemoteKroki() throws Exception
-    {
-        verify(this.containerManager, never()).maybeReuseContainerByName(any(String.class), any(Boolean.class));
-        verify(this.containerManager, never()).startContainer(any(String.class));
-
-        verify(this.krokiService).connect("remote-kroki", this.configuration, "https");
-
-        this.krokiDiagramRenderer.dispose();
-        verify(this.containerManager, never()).stopContainer(any(String.class));
+        verify(this.backendRegistry).getBackend(this.configuration);
     }
 
     @Test
@@ -181,7 +136,7 @@ class KrokiDiagramRendererTest
     }
 
     @Test
-    void generateDiagram()
+    void generateDiagram() throws Exception
     {
         String diagramType = "graphviz";
         String outputType= "svg";
@@ -189,19 +144,137 @@ class KrokiDiagramRendererTest
 
         InputStream diagramInputStream = mock(InputStream.class);
 
-        when(this.krokiService.renderDiagram(same(diagramType), same(outputType), same(diagramContent))).thenReturn(
-            diagramInputStream);
+        when(this.krokiClient.renderDiagram(same(diagramType), same(outputType), same(diagramContent)))
+            .thenReturn(diagramInputStream);
+
+        this.krokiDiagramRenderer.render(diagramType, outputType, diagramContent).close();
+        this.krokiDiagramRenderer.render(diagramType, outputType, diagramContent).close();
+        verify(diagramInputStream, times(2)).close();
+
+        // The backend is resolved through the registry which initializes it only once.
+        verify(this.backendRegistry, times(3)).getBackend(this.configuration);
+        verify(this.backendRegistry, never()).invalidate(any(KrokiBackend.class));
+    }
+
+    @Test
+    void generateDiagramAsync() throws Exception
+    {
+        when(this.krokiClient.renderDiagram("graphviz", "svg", "digraph G {Hello->World}"))
+            .thenReturn(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+
+        CompletableFuture<InputStream> result =
+            this.krokiDiagramRenderer.renderAsync("graphviz", "svg", "digraph G {Hello->World}");
+
+        try (InputStream diagram = result.get()) {
+            assertEquals("<svg/>", IOUtils.toString(diagram, StandardCharsets.UTF_8));
+        }
+        verify(this.configurationManager).getConfiguration("graphviz");
+    }
+
+    @Test
+    void generateDiagramAsyncWithFailure()
+    {
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenThrow(new RuntimeException("Server returned HTTP response code: 400"));
+
+        CompletableFuture<InputStream> result =
+            this.krokiDiagramRenderer.renderAsync("graphviz", "svg", "digraph G {Hello->");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, result::get);
+        assertEquals("Server returned HTTP response code: 400", exception.getCause().getMessage());
+    }
+
+    @Test
+    void generateDiagramWithUnreachableBackend()
+    {
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenThrow(new RuntimeException(new ConnectException("Connection refused")));
+
+        assertThrows(RuntimeException.class,
+            () -> this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->World}"));
 
-        assertSame(diagramInputStream,
-            this.krokiDiagramRenderer.render(diagramType, outputType, diagramContent));
+        verify(this.backendRegistry).invalidate(this.backend);
     }
 
-    private void mockNetwork(KrokiMacroConfiguration config)
+    @Test
+    void generateDiagramWithInvalidContent()
     {
-        when(this.containerManager.getIpAddress(this.containerId)).thenReturn(this.containerIpAddress);
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenThrow(new RuntimeException("Server returned HTTP response code: 400"));
 
-        this.hostConfig = mock(HostConfig.class);
-        when(this.containerManager.getHostConfig(config.getKrokiPort()))
-            .thenReturn(this.hostConfig);
+        assertThrows(RuntimeException.class,
+            () -> this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->"));
+
+        verify(this.backendRegistry, never()).invalidate(any(KrokiBackend.class));
+    }
+
+    @Test
+    void generateDiagramWithOverloadedBackend()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 0, 0);
+        when(this.backend.getBulkhead()).thenReturn(bulkhead);
+        bulkhead.acquire();
+
+        RejectedExecutionException exception = assertThrows(RejectedExecutionException.class,
+            () -> this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->World}"));
+        assertEquals("The Kroki backend is overloaded. The render queue is full.", exception.getMessage());
+        verify(this.krokiClient, never()).renderDiagram(any(String.class), any(String.class), any(String.class));
+        verify(this.backendRegistry, never()).invalidate(any(KrokiBackend.class));
+    }
+
+    @Test
+    void generateDiagramReleasesRenderSlot()
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 0, 0);
+        when(this.backend.getBulkhead()).thenReturn(bulkhead);
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenThrow(new RuntimeException("Server returned HTTP response code: 400"));
+
+        assertThrows(RuntimeException.class,
+            () -> this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->"));
+        assertEquals(0, bulkhead.getInFlight());
+    }
+
+    @Test
+    void generateDiagramHoldsRenderSlotUntilRead() throws Exception
+    {
+        KrokiBulkhead bulkhead = new KrokiBulkhead(1, 0, 0);
+        when(this.backend.getBulkhead()).thenReturn(bulkhead);
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenReturn(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+
+        InputStream diagram = this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->World}");
+        // The response body may still be streamed from the backend.
+        assertEquals(1, bulkhead.getInFlight());
+
+        diagram.close();
+        assertEquals(0, bulkhead.getInFlight());
+        // The render slot is released only once.
+        diagram.close();
+        assertEquals(0, bulkhead.getInFlight());
+    }
+
+    @Test
+    void getCacheNamespace()
+    {
+        when(this.backendRegistry.getCacheNamespace(this.configuration)).thenReturn("docker:kroki|sha256:1234");
+
+        assertEquals("docker:kroki|sha256:1234", this.krokiDiagramRenderer.getCacheNamespace("graphviz"));
+    }
+
+    @Test
+    void getCacheNamespaceOfRenderedDiagram() throws Exception
+    {
+        // The version of the backend is known only once it's initialized to render the diagram.
+        when(this.backendRegistry.getCacheNamespace(this.configuration)).thenReturn("docker:kroki");
+        when(this.backend.getCacheNamespace()).thenReturn("docker:kroki|sha256:1234");
+        when(this.krokiClient.renderDiagram(any(String.class), any(String.class), any(String.class)))
+            .thenReturn(new ByteArrayInputStream("<svg/>".getBytes(StandardCharsets.UTF_8)));
+
+        try (InputStream diagram = this.krokiDiagramRenderer.render("graphviz", "svg", "digraph G {Hello->World}")) {
+            assertEquals("docker:kroki|sha256:1234", this.krokiDiagramRenderer.getCacheNamespace("graphviz", diagram));
+        }
+        assertEquals("docker:kroki", this.krokiDiagramRenderer.getCacheNamespace("graphviz",
+            new ByteArrayInputStream(new byte[0])));
     }
-}
\ No newline at end of file
+}
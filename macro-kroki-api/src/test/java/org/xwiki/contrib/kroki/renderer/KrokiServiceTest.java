@@ -19,24 +19,29 @@
  */
 package org.xwiki.contrib.kroki.renderer;
 
+import java.io.IOException;
+
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.Http2KrokiTransport;
 import org.xwiki.contrib.kroki.internal.rendrer.KrokiService;
-import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.contrib.kroki.internal.rendrer.KrokiTransport;
+import org.xwiki.contrib.kroki.internal.rendrer.PooledKrokiTransport;
 import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 @ComponentTest
 class KrokiServiceTest
 {
+    @InjectMockComponents
     private KrokiService krokiService;
 
-    @BeforeComponent
-    void initialize(){
-        krokiService = new KrokiService();
-    }
-
 
     @Test
     @DisplayName("Test creation of a valid path")
@@ -61,4 +66,31 @@ class KrokiServiceTest
         String actual = krokiService.createRequestPath("", "", 0, "");
         assertEquals(":0", actual);
     }
-}
\ No newline at end of file
+
+    @Test
+    void createTransport() throws IOException
+    {
+        KrokiMacroConfiguration config = mock(KrokiMacroConfiguration.class);
+        when(config.getKrokiMaxConnections()).thenReturn(2);
+        when(config.getKrokiConnectTimeout()).thenReturn(1000);
+        when(config.getKrokiReadTimeout()).thenReturn(5000);
+        when(config.getKrokiConnectionIdleTimeout()).thenReturn(10000);
+        when(config.getKrokiUseHTTP2()).thenReturn(true);
+
+        // HTTP/2 is used only over TLS.
+        assertTransport(Http2KrokiTransport.class, config, "https");
+        assertTransport(PooledKrokiTransport.class, config, "http");
+
+        when(config.getKrokiUseHTTP2()).thenReturn(false);
+        assertTransport(PooledKrokiTransport.class, config, "https");
+        assertTransport(PooledKrokiTransport.class, config, "http");
+    }
+
+    private void assertTransport(Class<? extends KrokiTransport> expectedType, KrokiMacroConfiguration config,
+        String httpProtocol) throws IOException
+    {
+        try (KrokiTransport transport = this.krokiService.createTransport(config, httpProtocol)) {
+            assertTrue(expectedType.isInstance(transport), transport.getClass().getName());
+        }
+    }
+}
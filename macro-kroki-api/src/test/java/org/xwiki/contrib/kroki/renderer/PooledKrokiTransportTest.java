@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.kroki.renderer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.kroki.configuration.KrokiMacroConfiguration;
+import org.xwiki.contrib.kroki.internal.rendrer.PooledKrokiTransport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PooledKrokiTransportTest
+{
+    private HttpServer server;
+
+    private String baseURL;
+
+    private final Set<InetSocketAddress> clientAddresses = Collections.synchronizedSet(new HashSet<>());
+
+    private PooledKrokiTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/graphviz/svg", exchange -> {
+            this.clientAddresses.add(exchange.getRemoteAddress());
+            String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            respond(exchange, 200, "<svg>" + body + "</svg>");
+        });
+        this.server.createContext("/compressed/svg", exchange -> {
+            String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            InputStream requestBody = exchange.getRequestBody();
+            if ("gzip".equals(contentEncoding)) {
+                requestBody = new GZIPInputStream(requestBody);
+            }
+            String body = IOUtils.toString(requestBody, StandardCharsets.UTF_8);
+            respond(exchange, 200, contentEncoding + ":" + body);
+        });
+        this.server.createContext("/invalid/svg", exchange -> respond(exchange, 400, "Syntax error"));
+        this.server.start();
+        this.baseURL = "http://localhost:" + this.server.getAddress().getPort();
+
+        this.transport = new PooledKrokiTransport(mockConfiguration(0));
+    }
+
+    private KrokiMacroConfiguration mockConfiguration(int compressionThreshold)
+    {
+        KrokiMacroConfiguration config = mock(KrokiMacroConfiguration.class);
+        when(config.getKrokiMaxConnections()).thenReturn(2);
+        when(config.getKrokiConnectTimeout()).thenReturn(1000);
+        when(config.getKrokiReadTimeout()).thenReturn(5000);
+        when(config.getKrokiConnectionIdleTimeout()).thenReturn(10000);
+        when(config.getKrokiRequestCompressionThreshold()).thenReturn(compressionThreshold);
+        return config;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException
+    {
+        this.transport.close();
+        this.server.stop(0);
+    }
+
+    @Test
+    void executeReusesConnections() throws IOException
+    {
+        for (int i = 0; i < 5; i++) {
+            try (InputStream response = this.transport.execute("POST", this.baseURL + "/graphviz/svg", "A->B")) {
+                assertEquals("<svg>A->B</svg>", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+        }
+
+        // All the requests were sent sequentially over the same keep-alive connection.
+        assertEquals(1, this.clientAddresses.size());
+    }
+
+    @Test
+    void executeWithErrorStatus()
+    {
+        IOException exception = assertThrows(IOException.class,
+            () -> this.transport.execute("POST", this.baseURL + "/invalid/svg", "A->"));
+        assertEquals("Server returned HTTP response code: 400 for URL: " + this.baseURL + "/invalid/svg",
+            exception.getMessage());
+    }
+
+    @Test
+    void getStatusCode() throws IOException
+    {
+        assertEquals(200, this.transport.getStatusCode("POST", this.baseURL + "/graphviz/svg", "A->B"));
+        assertEquals(400, this.transport.getStatusCode("POST", this.baseURL + "/invalid/svg", "A->"));
+    }
+
+    @Test
+    void executeWithCompressedBody() throws IOException
+    {
+        try (PooledKrokiTransport compressingTransport = new PooledKrokiTransport(mockConfiguration(10))) {
+            // Below the compression threshold.
+            try (InputStream response =
+                compressingTransport.execute("POST", this.baseURL + "/compressed/svg", "A->B")) {
+                assertEquals("null:A->B", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+
+            try (InputStream response =
+                compressingTransport.execute("POST", this.baseURL + "/compressed/svg", "A->B; B->C; C->A")) {
+                assertEquals("gzip:A->B; B->C; C->A", IOUtils.toString(response, StandardCharsets.UTF_8));
+            }
+        }
+
+        // Compression is disabled by default.
+        try (InputStream response =
+            this.transport.execute("POST", this.baseURL + "/compressed/svg", "A->B; B->C; C->A")) {
+            assertEquals("null:A->B; B->C; C->A", IOUtils.toString(response, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void respond(HttpExchange exchange, int statusCode, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}